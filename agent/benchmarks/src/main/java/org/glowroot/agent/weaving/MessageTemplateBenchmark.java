@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// measures rendering of a config-driven instrumentation message with nested property paths, using
+// generated accessors vs reflection (run with -prof gc to compare allocation rates)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private MessageTemplate template;
+    private Object receiver;
+    private Object[] args;
+
+    @Setup
+    public void setup() throws Exception {
+        Method method = MessageTemplateBenchmark.class.getMethod("execute", Order.class,
+                int.class);
+        template = MessageTemplate.create(
+                "execute order {{0.id}} for {{0.customer.name}} ({{1}} items): {{methodName}}",
+                method);
+        receiver = this;
+        args = new Object[] {new Order(), 3};
+    }
+
+    @Benchmark
+    public String generated() {
+        return render();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.disableGeneratedAccessors=true")
+    public String reflection() {
+        return render();
+    }
+
+    private String render() {
+        return GenericMessageSupplier.create(template, receiver, "execute", args)
+                .getMessageText();
+    }
+
+    public void execute(@SuppressWarnings("unused") Order order,
+            @SuppressWarnings("unused") int count) {}
+
+    public static class Order {
+
+        private final Customer customer = new Customer();
+
+        public long getId() {
+            return 12345;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+    }
+
+    public static class Customer {
+
+        public String getName() {
+            return "abc";
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// simulates agent startup by weaving all of the spring classes with a fresh AnalyzedWorld
+//
+// "none" is without the weaving cache, "cold" is with an empty weaving cache (which shows the
+// overhead of populating the cache), and "warm" is with a fully populated weaving cache
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class WeavingCacheBenchmark {
+
+    @Param({"none", "cold", "warm"})
+    private String cache;
+
+    private File tempDir;
+    private File cacheFile;
+    private ConfigService configService;
+    private List<Advice> advisors;
+    private Map<String, byte[]> classBytesMap;
+
+    @Setup
+    public void setup() throws Exception {
+        tempDir = Files.createTempDir();
+        cacheFile = new File(tempDir, "weaving-cache.dat");
+        configService = ConfigService.create(tempDir, ImmutableList.<PluginDescriptor>of());
+        advisors = ImmutableList.of(new AdviceBuilder(CollectionSizeAdvice.class).build());
+        classBytesMap = getSpringClassBytes();
+        if (cache.equals("warm")) {
+            weaveAll();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        if (cache.equals("cold")) {
+            cacheFile.delete();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public int weaveAll() throws IOException {
+        WeavingCache weavingCache = null;
+        if (!cache.equals("none")) {
+            weavingCache = new WeavingCache(cacheFile, "benchmark");
+        }
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, new TransactionRegistry(),
+                new TimerNameCache(), configService, weavingCache);
+        ClassLoader loader = WeavingCacheBenchmark.class.getClassLoader();
+        int wovenCount = 0;
+        for (Map.Entry<String, byte[]> entry : classBytesMap.entrySet()) {
+            if (weaver.weave(entry.getValue(), entry.getKey(), null, loader) != null) {
+                wovenCount++;
+            }
+        }
+        if (weavingCache != null) {
+            weavingCache.close();
+        }
+        return wovenCount;
+    }
+
+    private static Map<String, byte[]> getSpringClassBytes() throws IOException {
+        Map<String, byte[]> classBytesMap = Maps.newLinkedHashMap();
+        for (String path : getClassPath()) {
+            if (!path.endsWith(".jar")) {
+                continue;
+            }
+            JarFile jarFile = new JarFile(path);
+            try {
+                Enumeration<JarEntry> e = jarFile.entries();
+                while (e.hasMoreElements()) {
+                    JarEntry jarEntry = e.nextElement();
+                    String name = jarEntry.getName();
+                    if (name.startsWith("org/springframework/") && name.endsWith(".class")) {
+                        String className = name.substring(0, name.length() - ".class".length());
+                        classBytesMap.put(className,
+                                ByteStreams.toByteArray(jarFile.getInputStream(jarEntry)));
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        return classBytesMap;
+    }
+
+    private static List<String> getClassPath() {
+        String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
+        return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
+    }
+
+    @Pointcut(className = "java.util.Collection", methodName = "size",
+            methodParameterTypes = {}, timerName = "collection size")
+    public static class CollectionSizeAdvice {
+        @OnBefore
+        public static void onBefore() {}
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.embedded.util.BlockCodec;
+import org.glowroot.agent.embedded.util.BlockCodecs;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BlockCodecBenchmark {
+
+    private static final String[] QUERIES = {
+            "select id, name, email, created_at from users where id = ?",
+            "select o.id, o.total, o.status from orders o inner join users u on o.user_id = u.id"
+                    + " where u.id = ? order by o.created_at desc",
+            "update orders set status = ?, updated_at = ? where id = ?",
+            "insert into audit_log (user_id, action, created_at) values (?, ?, ?)"};
+
+    @Param({"lzf", "deflate-dictionary"})
+    private String codecName;
+
+    // entries are similar to a typical trace's entries, profile is built from real stack traces of
+    // the current JVM
+    @Param({"entries", "profile"})
+    private String payload;
+
+    private BlockCodec codec;
+
+    private byte[] uncompressed;
+    private byte[] compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = BlockCodecs.getCodec(codecName);
+        if (payload.equals("entries")) {
+            uncompressed = createEntries();
+        } else {
+            uncompressed = createProfile();
+        }
+        compressed = compress();
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = codec.compress(baos);
+        out.write(uncompressed);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        InputStream in = codec.decompress(new ByteArrayInputStream(compressed));
+        byte[] bytes = ByteStreams.toByteArray(in);
+        in.close();
+        return bytes;
+    }
+
+    private static byte[] createEntries() throws IOException {
+        Random random = new Random(0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            Trace.Entry.Builder entry = Trace.Entry.newBuilder()
+                    .setDepth(1 + random.nextInt(3))
+                    .setStartOffsetNanos(i * 1000000L + random.nextInt(1000000))
+                    .setDurationNanos(random.nextInt(10000000));
+            if (i % 10 == 0) {
+                entry.setMessage("http client request: GET http://localhost:8080/api/users/"
+                        + random.nextInt(1000));
+            } else {
+                entry.setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(random.nextInt(QUERIES.length))
+                        .setPrefix("jdbc query: ")
+                        .setSuffix(" [" + random.nextInt(1000) + "] => 1 row"));
+            }
+            entry.build().writeDelimitedTo(baos);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] createProfile() {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 10; i++) {
+            for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces()
+                    .entrySet()) {
+                profile.merge(Arrays.asList(entry.getValue()), entry.getKey().getState());
+            }
+        }
+        return profile.toProto().toByteArray();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// run with "-prof gc" to compare allocation rates across significant digits
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LazyHistogramBenchmark {
+
+    // 5 is the default (and the only option prior to significant digits being configurable)
+    @Param({"5", "3", "2"})
+    private int significantDigits;
+
+    @Param({"100", "10000", "1000000"})
+    private int valueCount;
+
+    private long[] values;
+
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        values = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            // log-normal-ish distribution of nanosecond durations centered around 10 milliseconds
+            values[i] = (long) (10000000 * Math.exp(random.nextGaussian()));
+        }
+        scratchBuffer = new ScratchBuffer();
+    }
+
+    @Benchmark
+    public Aggregate.Histogram execute() {
+        LazyHistogram histogram = new LazyHistogram(significantDigits);
+        for (long value : values) {
+            histogram.add(value);
+        }
+        return histogram.toProto(scratchBuffer);
+    }
+}
@@ -15,24 +15,37 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.RecordSender;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -57,6 +70,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggrega
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -73,11 +87,20 @@ public class CentralCollector implements Collector {
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
+    private final AtomicBoolean inConnectionFailure = new AtomicBoolean();
+
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    // null when spooling is disabled (the default)
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ScheduledExecutorService spoolReplayExecutor;
+    private final int spoolReplayPerSecond;
+
     private volatile int nextAggregateDelayMillis;
 
-    public CentralCollector(Map<String, String> properties, String collectorHost,
+    private volatile boolean initCallSucceeded;
+
+    public CentralCollector(Map<String, String> properties, String collectorHost, File agentDir,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
             throws Exception {
@@ -104,7 +127,6 @@ public class CentralCollector implements Collector {
             startupLogger.info("agent id: {}, rollup id: {}", agentId, agentRollupId);
         }
 
-        AtomicBoolean inConnectionFailure = new AtomicBoolean();
         centralConnection =
                 new CentralConnection(collectorHost, collectorPort, inConnectionFailure);
         collectorServiceStub = CollectorServiceGrpc.newStub(centralConnection.getChannel())
@@ -112,6 +134,37 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        int spoolSizeMb = getIntProperty(properties, "glowroot.collector.spoolSizeMb", 0);
+        // 0 means no limit, the spool is replayed as fast as the central collector accepts it
+        spoolReplayPerSecond =
+                getIntProperty(properties, "glowroot.collector.spoolReplayPerSecond", 0);
+        if (spoolSizeMb > 0) {
+            spool = new CentralSpool(new File(agentDir, "central-spool"),
+                    spoolSizeMb * 1024L * 1024, Clock.systemClock());
+            spoolReplayExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Central-Spool-Replay")
+                            .build());
+            spoolReplayExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        replaySpool();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            }, 1, 1, SECONDS);
+        } else {
+            spool = null;
+            spoolReplayExecutor = null;
+        }
+    }
+
+    public @Nullable CentralSpoolMXBean getSpoolStats() {
+        return spool;
     }
 
     @Override
@@ -134,6 +187,11 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}:{}, version {}",
                         collectorHost, collectorPort, response.getGlowrootCentralVersion());
+                initCallSucceeded = true;
+                // older central collectors do not send this, leaving it 0
+                // Math.min is just for safety
+                nextAggregateDelayMillis =
+                        Math.min(response.getNextAggregateDelayMillis(), 30000);
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -149,6 +207,10 @@ public class CentralCollector implements Collector {
     // collecting even when no aggregates since collection triggers transaction-based alerts
     @Override
     public void collectAggregates(final long captureTime, final Aggregates aggregates) {
+        if (shouldSpoolDirectly()) {
+            spoolAggregates(captureTime, aggregates);
+            return;
+        }
         centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
                 new CollectAggregatesGrpcCall(aggregates, captureTime));
     }
@@ -180,6 +242,11 @@ public class CentralCollector implements Collector {
         final Trace traceWithoutSharedQueryText = trace.toBuilder()
                 .clearSharedQueryText()
                 .build();
+        if (shouldSpoolDirectly()) {
+            spoolTrace(trace.getHeader().getCaptureTime(), sharedQueryTexts,
+                    traceWithoutSharedQueryText);
+            return;
+        }
         final List<String> fullTextSha1s = Lists.newArrayList();
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
@@ -214,6 +281,11 @@ public class CentralCollector implements Collector {
                     sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
                 }
             }
+            @Override
+            void doWhenGivingUp() {
+                spoolTrace(traceWithoutSharedQueryText.getHeader().getCaptureTime(),
+                        sharedQueryTexts, traceWithoutSharedQueryText);
+            }
         });
     }
 
@@ -239,7 +311,16 @@ public class CentralCollector implements Collector {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        if (spoolReplayExecutor != null) {
+            spoolReplayExecutor.shutdown();
+            if (!spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        if (spool != null) {
+            spool.close();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
@@ -249,6 +330,189 @@ public class CentralCollector implements Collector {
         centralConnection.awaitClose();
     }
 
+    // new data is sent directly whenever the connection is healthy, even while the spool is still
+    // being replayed, otherwise an agent producing data faster than the spool can be replayed
+    // would never catch up (the central collector does not require data in capture time order,
+    // late aggregates are rolled up again)
+    private boolean shouldSpoolDirectly() {
+        return spool != null && inConnectionFailure.get();
+    }
+
+    private void spoolAggregates(long captureTime, Aggregates aggregates) {
+        if (spool == null) {
+            return;
+        }
+        final List<AggregateStreamMessage> messages = Lists.newArrayList();
+        messages.add(AggregateStreamMessage.newBuilder()
+                .setHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setCaptureTime(captureTime))
+                .build());
+        // shared query texts are always spooled with full text since there is no way to know if
+        // the central collector will still have them by the time the spool is replayed
+        aggregates.accept(new AggregateVisitor<RuntimeException>() {
+            @Override
+            public void visitOverallAggregate(String transactionType,
+                    List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                addSharedQueryTexts(sharedQueryTexts);
+                messages.add(AggregateStreamMessage.newBuilder()
+                        .setOverallAggregate(OverallAggregate.newBuilder()
+                                .setTransactionType(transactionType)
+                                .setAggregate(overallAggregate))
+                        .build());
+            }
+            @Override
+            public void visitTransactionAggregate(String transactionType,
+                    String transactionName, List<String> sharedQueryTexts,
+                    Aggregate transactionAggregate) {
+                addSharedQueryTexts(sharedQueryTexts);
+                messages.add(AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(TransactionAggregate.newBuilder()
+                                .setTransactionType(transactionType)
+                                .setTransactionName(transactionName)
+                                .setAggregate(transactionAggregate))
+                        .build());
+            }
+            private void addSharedQueryTexts(List<String> sharedQueryTexts) {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    messages.add(AggregateStreamMessage.newBuilder()
+                            .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                                    .setFullText(sharedQueryText))
+                            .build());
+                }
+            }
+        });
+        spool(CentralSpool.AGGREGATES, captureTime, messages);
+    }
+
+    private void spoolTrace(long captureTime, List<String> sharedQueryTexts,
+            Trace traceWithoutSharedQueryText) {
+        if (spool == null) {
+            return;
+        }
+        List<TraceStreamMessage> messages = Lists.newArrayList();
+        messages.add(TraceStreamMessage.newBuilder()
+                .setHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentId))
+                .build());
+        for (String sharedQueryText : sharedQueryTexts) {
+            messages.add(TraceStreamMessage.newBuilder()
+                    .setSharedQueryText(Trace.SharedQueryText.newBuilder()
+                            .setFullText(sharedQueryText))
+                    .build());
+        }
+        messages.add(TraceStreamMessage.newBuilder()
+                .setTrace(traceWithoutSharedQueryText)
+                .build());
+        spool(CentralSpool.TRACE, captureTime, messages);
+    }
+
+    private void spool(byte kind, long captureTime, List<? extends MessageLite> messages) {
+        if (spool == null) {
+            return;
+        }
+        try {
+            spool.append(kind, captureTime, messages);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private void replaySpool() throws Exception {
+        if (spool == null) {
+            return;
+        }
+        // this is run once a second, so limiting each round limits the replay rate per second
+        int maxRecords = spoolReplayPerSecond > 0 ? spoolReplayPerSecond : Integer.MAX_VALUE;
+        spool.replay(maxRecords, new RecordSender() {
+            @Override
+            public boolean send(SpooledRecord record) throws Exception {
+                if (!initCallSucceeded || inConnectionFailure.get()) {
+                    // will try again in the next round
+                    return false;
+                }
+                try {
+                    return replay(record);
+                } catch (InvalidProtocolBufferException e) {
+                    logger.error("skipping unreadable spooled record: {}", e.getMessage(), e);
+                    return true;
+                }
+            }
+        });
+    }
+
+    private boolean replay(SpooledRecord record) throws Exception {
+        InputStream in = new ByteArrayInputStream(record.getPayload());
+        if (record.getKind() == CentralSpool.AGGREGATES) {
+            List<AggregateStreamMessage> messages = Lists.newArrayList();
+            AggregateStreamMessage message;
+            while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+            ReplayResponseObserver<AggregateResponseMessage> responseObserver =
+                    new ReplayResponseObserver<AggregateResponseMessage>();
+            StreamObserver<AggregateStreamMessage> requestObserver =
+                    collectorServiceStub.collectAggregateStream(responseObserver);
+            for (AggregateStreamMessage msg : messages) {
+                requestObserver.onNext(msg);
+            }
+            requestObserver.onCompleted();
+            return responseObserver.awaitSuccess();
+        } else if (record.getKind() == CentralSpool.TRACE) {
+            List<TraceStreamMessage> messages = Lists.newArrayList();
+            TraceStreamMessage message;
+            while ((message = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+            ReplayResponseObserver<EmptyMessage> responseObserver =
+                    new ReplayResponseObserver<EmptyMessage>();
+            StreamObserver<TraceStreamMessage> requestObserver =
+                    collectorServiceStub.collectTraceStream(responseObserver);
+            for (TraceStreamMessage msg : messages) {
+                requestObserver.onNext(msg);
+            }
+            requestObserver.onCompleted();
+            return responseObserver.awaitSuccess();
+        } else {
+            throw new InvalidProtocolBufferException(
+                    "Unexpected spooled record kind: " + record.getKind());
+        }
+    }
+
+    private static int getIntProperty(Map<String, String> properties, String name,
+            int defaultValue) {
+        String value = properties.get(name);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    private static class ReplayResponseObserver<T> implements StreamObserver<T> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean success;
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug(t.getMessage(), t);
+            latch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            success = true;
+            latch.countDown();
+        }
+
+        private boolean awaitSuccess() throws InterruptedException {
+            return latch.await(60, SECONDS) && success;
+        }
+    }
+
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private final Aggregates aggregates;
@@ -320,5 +584,9 @@ public class CentralCollector implements Collector {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
         }
+        @Override
+        void doWhenGivingUp() {
+            spoolAggregates(captureTime, aggregates);
+        }
     }
 }
@@ -121,12 +121,14 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.doWhenGivingUp();
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
                 backPressureLogger.warn("not sending data to the central collector because of an"
                         + " excessive backlog of {} requests in progress", PENDING_LIMIT);
+                call.doWhenGivingUp();
                 return;
             }
             pendingRequestCount++;
@@ -201,6 +203,8 @@ class CentralConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when the data will not be sent (not called when the connection is closed)
+        void doWhenGivingUp() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -242,6 +246,9 @@ class CentralConnection {
             }
             if (inConnectionFailure.get()) {
                 decrementPendingRequestCount();
+                if (!init) {
+                    grpcCall.doWhenGivingUp();
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -256,6 +263,7 @@ class CentralConnection {
                             t.getMessage(), t);
                 }
                 decrementPendingRequestCount();
+                grpcCall.doWhenGivingUp();
                 return;
             }
 
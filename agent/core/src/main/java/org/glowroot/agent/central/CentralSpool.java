@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.protobuf.MessageLite;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.Clock;
+
+// bounded on-disk spool of data that could not be sent to the central collector
+//
+// the spool is a sequence of append-only segment files, each record is written as
+// [kind (1 byte)][capture time (8 bytes)][payload length (4 bytes)][payload], where the payload is
+// a sequence of length-delimited grpc stream messages
+//
+// the replay position is not persisted, so after a restart, records from the oldest segment may be
+// replayed again, which is ok since collecting aggregates and traces is idempotent on the central
+// collector
+class CentralSpool implements CentralSpoolMXBean {
+
+    static final byte AGGREGATES = 1;
+    static final byte TRACE = 2;
+
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private static final long MAX_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    private static final Pattern SEGMENT_FILE_NAME_PATTERN =
+            Pattern.compile("segment-([0-9]+)\\.spool");
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final Clock clock;
+
+    private final RateLimitedLogger droppedLogger = new RateLimitedLogger(CentralSpool.class);
+
+    // oldest segment first, the newest segment is the one being appended to
+    @GuardedBy("this")
+    private final Deque<Segment> segments = Queues.newArrayDeque();
+    @GuardedBy("this")
+    private @Nullable FileOutputStream out;
+    @GuardedBy("this")
+    private long nextSegmentNum;
+
+    // replay position in the oldest segment
+    @GuardedBy("this")
+    private long readPosition;
+    @GuardedBy("this")
+    private int readRecordCount;
+    // capture time of the oldest record that has not been replayed yet, maintained as records are
+    // appended, replayed and dropped so that reading the replay lag has no side effects
+    @GuardedBy("this")
+    private long oldestPendingCaptureTime;
+
+    @GuardedBy("this")
+    private long totalSpooledRecordCount;
+    @GuardedBy("this")
+    private long totalReplayedRecordCount;
+    @GuardedBy("this")
+    private long totalDroppedRecordCount;
+
+    CentralSpool(File dir, long maxSizeBytes, Clock clock) throws IOException {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.clock = clock;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        loadExistingSegments();
+    }
+
+    boolean append(byte kind, long captureTime, List<? extends MessageLite> messages)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(kind);
+        dos.writeLong(captureTime);
+        dos.writeInt(0); // placeholder for payload length
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(dos);
+        }
+        dos.flush();
+        byte[] record = baos.toByteArray();
+        int payloadLength = record.length - RECORD_HEADER_SIZE;
+        record[9] = (byte) (payloadLength >>> 24);
+        record[10] = (byte) (payloadLength >>> 16);
+        record[11] = (byte) (payloadLength >>> 8);
+        record[12] = (byte) payloadLength;
+        synchronized (this) {
+            if (record.length > maxSizeBytes) {
+                totalDroppedRecordCount++;
+                droppedLogger.warn("not spooling data for the central collector since a single"
+                        + " record is larger than the max spool size");
+                return false;
+            }
+            while (getSizeBytes() + record.length > maxSizeBytes) {
+                dropOldestSegment();
+            }
+            if (getPendingRecordCount() == 0) {
+                oldestPendingCaptureTime = captureTime;
+            }
+            Segment segment = segments.peekLast();
+            if (segment == null || out == null || segment.size >= MAX_SEGMENT_SIZE_BYTES) {
+                segment = startNewSegment();
+            }
+            FileOutputStream out = this.out;
+            if (out == null) {
+                throw new IllegalStateException("Segment file output stream is null");
+            }
+            out.write(record);
+            out.flush();
+            if (segment.recordCount == 0) {
+                segment.firstCaptureTime = captureTime;
+            }
+            segment.size += record.length;
+            segment.recordCount++;
+            totalSpooledRecordCount++;
+            return true;
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return getPendingRecordCount() == 0;
+    }
+
+    // returns the oldest record that has not been replayed yet
+    synchronized @Nullable SpooledRecord peek() throws IOException {
+        while (true) {
+            Segment segment = segments.peekFirst();
+            if (segment == null) {
+                return null;
+            }
+            if (readPosition < segment.size) {
+                return readRecord(segment, readPosition);
+            }
+            // fully replayed
+            if (segment == segments.peekLast()) {
+                // no need to keep appending to a fully replayed segment
+                closeOut();
+            }
+            deleteOldestSegment();
+        }
+    }
+
+    synchronized void markReplayed(SpooledRecord record) throws IOException {
+        Segment segment = segments.peekFirst();
+        if (segment != record.segment || readPosition != record.position) {
+            // segment was dropped in the meantime
+            return;
+        }
+        readPosition = record.endPosition;
+        readRecordCount++;
+        totalReplayedRecordCount++;
+        if (readPosition < segment.size) {
+            oldestPendingCaptureTime = readCaptureTime(segment, readPosition);
+        } else {
+            // the next segment (if any) is now the oldest pending
+            Iterator<Segment> i = segments.iterator();
+            i.next();
+            if (i.hasNext()) {
+                oldestPendingCaptureTime = i.next().firstCaptureTime;
+            }
+        }
+    }
+
+    // replays up to maxRecords of the oldest records, stopping early if the spool is empty or if a
+    // record is not sent, and returns the number of records replayed
+    //
+    // the spool lock is not held while sending, so that appends are not blocked by replay
+    int replay(int maxRecords, RecordSender sender) throws Exception {
+        int count = 0;
+        while (count < maxRecords) {
+            SpooledRecord record = peek();
+            if (record == null || !sender.send(record)) {
+                break;
+            }
+            markReplayed(record);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size - readPosition;
+    }
+
+    @Override
+    public synchronized long getPendingRecordCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.recordCount;
+        }
+        return count - readRecordCount;
+    }
+
+    @Override
+    public synchronized long getReplayLagMillis() {
+        if (getPendingRecordCount() == 0) {
+            return 0;
+        }
+        return Math.max(0, clock.currentTimeMillis() - oldestPendingCaptureTime);
+    }
+
+    @Override
+    public synchronized long getTotalSpooledRecordCount() {
+        return totalSpooledRecordCount;
+    }
+
+    @Override
+    public synchronized long getTotalReplayedRecordCount() {
+        return totalReplayedRecordCount;
+    }
+
+    @Override
+    public synchronized long getTotalDroppedRecordCount() {
+        return totalDroppedRecordCount;
+    }
+
+    synchronized void close() throws IOException {
+        closeOut();
+    }
+
+    @GuardedBy("this")
+    private void loadExistingSegments() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        List<Long> segmentNums = Lists.newArrayList();
+        for (File file : files) {
+            Matcher matcher = SEGMENT_FILE_NAME_PATTERN.matcher(file.getName());
+            if (matcher.matches()) {
+                segmentNums.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        Long[] sortedSegmentNums = segmentNums.toArray(new Long[segmentNums.size()]);
+        Arrays.sort(sortedSegmentNums);
+        for (long segmentNum : sortedSegmentNums) {
+            Segment segment = new Segment(getSegmentFile(segmentNum));
+            scanSegment(segment);
+            if (segment.recordCount == 0) {
+                deleteFile(segment.file);
+            } else {
+                segments.add(segment);
+            }
+            nextSegmentNum = segmentNum + 1;
+        }
+        Segment oldestSegment = segments.peekFirst();
+        if (oldestSegment != null) {
+            oldestPendingCaptureTime = oldestSegment.firstCaptureTime;
+        }
+    }
+
+    // counts the records, and truncates any partially written record at the end of the segment
+    private static void scanSegment(Segment segment) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(segment.file, "rw");
+        try {
+            long length = in.length();
+            long position = 0;
+            while (position + RECORD_HEADER_SIZE <= length) {
+                if (position == 0) {
+                    in.seek(1);
+                    segment.firstCaptureTime = in.readLong();
+                }
+                in.seek(position + 9);
+                long endPosition = position + RECORD_HEADER_SIZE + in.readInt();
+                if (endPosition > length) {
+                    break;
+                }
+                position = endPosition;
+                segment.recordCount++;
+            }
+            if (position < length) {
+                in.setLength(position);
+            }
+            segment.size = position;
+        } finally {
+            in.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private SpooledRecord readRecord(Segment segment, long position) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            in.seek(position);
+            byte kind = in.readByte();
+            long captureTime = in.readLong();
+            int payloadLength = in.readInt();
+            if (position + RECORD_HEADER_SIZE + payloadLength > segment.size) {
+                throw new EOFException("Unexpected end of spool segment");
+            }
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            return new SpooledRecord(segment, position, position + RECORD_HEADER_SIZE
+                    + payloadLength, kind, captureTime, payload);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long readCaptureTime(Segment segment, long position) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            in.seek(position + 1);
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private Segment startNewSegment() throws IOException {
+        closeOut();
+        Segment segment = new Segment(getSegmentFile(nextSegmentNum++));
+        out = new FileOutputStream(segment.file, true);
+        segments.add(segment);
+        return segment;
+    }
+
+    @GuardedBy("this")
+    private void dropOldestSegment() throws IOException {
+        Segment segment = segments.peekFirst();
+        if (segment == null) {
+            return;
+        }
+        int droppedRecordCount = segment.recordCount - readRecordCount;
+        totalDroppedRecordCount += droppedRecordCount;
+        droppedLogger.warn("dropped {} spooled records for the central collector since the"
+                + " spool reached its max size", droppedRecordCount);
+        if (segment == segments.peekLast()) {
+            closeOut();
+        }
+        deleteOldestSegment();
+    }
+
+    @GuardedBy("this")
+    private void deleteOldestSegment() throws IOException {
+        Segment segment = segments.removeFirst();
+        readPosition = 0;
+        readRecordCount = 0;
+        Segment oldestSegment = segments.peekFirst();
+        if (oldestSegment != null) {
+            oldestPendingCaptureTime = oldestSegment.firstCaptureTime;
+        }
+        deleteFile(segment.file);
+    }
+
+    @GuardedBy("this")
+    private void closeOut() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private File getSegmentFile(long segmentNum) {
+        return new File(dir, "segment-" + segmentNum + ".spool");
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (!file.delete()) {
+            throw new IOException("Could not delete file: " + file.getAbsolutePath());
+        }
+    }
+
+    interface RecordSender {
+        // returns false if the record was not sent (and should be tried again later)
+        boolean send(SpooledRecord record) throws Exception;
+    }
+
+    static class SpooledRecord {
+
+        private final Segment segment;
+        private final long position;
+        private final long endPosition;
+        private final byte kind;
+        private final long captureTime;
+        private final byte[] payload;
+
+        private SpooledRecord(Segment segment, long position, long endPosition, byte kind,
+                long captureTime, byte[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.endPosition = endPosition;
+            this.kind = kind;
+            this.captureTime = captureTime;
+            this.payload = payload;
+        }
+
+        byte getKind() {
+            return kind;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private long size;
+        private int recordCount;
+        private long firstCaptureTime;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+    }
+}
@@ -75,6 +75,24 @@ public abstract class AdvancedConfig {
         return 50000;
     }
 
+    // used to limit the cost (and memory) of each stack trace capture, 0 means no limit
+    //
+    // stack traces that exceed this depth are truncated at the bottom (the frames closest to the
+    // thread's entry point are dropped)
+    @Value.Default
+    public int maxStackTraceDepth() {
+        return 0;
+    }
+
+    // used to limit the duration of each stack trace capture (which happens at a safepoint) when
+    // there are a large number of active transactions, 0 means no limit
+    //
+    // when this limit is exceeded, threads are chosen round-robin across captures
+    @Value.Default
+    public int maxStackTraceThreadsPerCapture() {
+        return 0;
+    }
+
     @Value.Default
     public int mbeanGaugeNotFoundDelaySeconds() {
         return 60;
@@ -90,13 +108,17 @@ public abstract class AdvancedConfig {
                 .setMaxAggregateServiceCallsPerType(of(maxAggregateServiceCallsPerType()))
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
+                .setMaxStackTraceDepth(maxStackTraceDepth())
+                .setMaxStackTraceThreadsPerCapture(maxStackTraceThreadsPerCapture())
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                 .build();
     }
 
     public static AdvancedConfig create(AgentConfig.AdvancedConfig config) {
         ImmutableAdvancedConfig.Builder builder = ImmutableAdvancedConfig.builder()
-                .weavingTimer(config.getWeavingTimer());
+                .weavingTimer(config.getWeavingTimer())
+                .maxStackTraceDepth(config.getMaxStackTraceDepth())
+                .maxStackTraceThreadsPerCapture(config.getMaxStackTraceThreadsPerCapture());
         if (config.hasImmediatePartialStoreThresholdSeconds()) {
             builder.immediatePartialStoreThresholdSeconds(
                     config.getImmediatePartialStoreThresholdSeconds().getValue());
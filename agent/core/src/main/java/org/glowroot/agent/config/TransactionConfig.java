@@ -42,11 +42,20 @@ public abstract class TransactionConfig {
         return true;
     }
 
+    // 0 means trace entry sampling disabled (all transactions capture trace entries), otherwise
+    // only up to this many transactions per second capture trace entries from the start, and the
+    // others only start capturing trace entries once they run longer than most transactions
+    @Value.Default
+    public int fullCaptureTransactionsPerSecond() {
+        return 0;
+    }
+
     public AgentConfig.TransactionConfig toProto() {
         return AgentConfig.TransactionConfig.newBuilder()
                 .setSlowThresholdMillis(of(slowThresholdMillis()))
                 .setProfilingIntervalMillis(of(profilingIntervalMillis()))
                 .setCaptureThreadStats(captureThreadStats())
+                .setFullCaptureTransactionsPerSecond(fullCaptureTransactionsPerSecond())
                 .build();
     }
 
@@ -59,6 +68,7 @@ public abstract class TransactionConfig {
             builder.profilingIntervalMillis(config.getProfilingIntervalMillis().getValue());
         }
         return builder.captureThreadStats(config.getCaptureThreadStats())
+                .fullCaptureTransactionsPerSecond(config.getFullCaptureTransactionsPerSecond())
                 .build();
     }
 
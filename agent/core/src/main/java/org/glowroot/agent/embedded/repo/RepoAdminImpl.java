@@ -19,6 +19,8 @@ import java.util.List;
 
 import javax.crypto.SecretKey;
 
+import org.glowroot.agent.embedded.util.BlockCodec;
+import org.glowroot.agent.embedded.util.BlockCodecs;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.common.config.SmtpConfig;
@@ -78,12 +80,18 @@ class RepoAdminImpl implements RepoAdmin {
 
     @Override
     public void resizeIfNeeded() throws Exception {
+        // the codec only applies to new blocks, existing blocks are still read using the codec
+        // that they were written with
+        BlockCodec codec =
+                BlockCodecs.getCodec(configRepository.getFatStorageConfig().cappedDatabaseCodec());
         // resize() doesn't do anything if the new and old value are the same
         for (int i = 0; i < rollupCappedDatabases.size(); i++) {
+            rollupCappedDatabases.get(i).setCodec(codec);
             rollupCappedDatabases.get(i).resize(
                     configRepository.getFatStorageConfig().rollupCappedDatabaseSizesMb().get(i)
                             * 1024);
         }
+        traceCappedDatabase.setCodec(codec);
         traceCappedDatabase
                 .resize(configRepository.getFatStorageConfig().traceCappedDatabaseSizeMb() * 1024);
     }
@@ -26,6 +26,8 @@ import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
+import org.glowroot.agent.embedded.util.BlockCodec;
+import org.glowroot.agent.embedded.util.BlockCodecs;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.H2DatabaseStats;
@@ -67,15 +69,16 @@ public class SimpleRepoModule {
         this.dataSource = dataSource;
         this.configRepository = configRepository;
         FatStorageConfig storageConfig = configRepository.getFatStorageConfig();
+        BlockCodec codec = BlockCodecs.getCodec(storageConfig.cappedDatabaseCodec());
         List<CappedDatabase> rollupCappedDatabases = Lists.newArrayList();
         for (int i = 0; i < storageConfig.rollupCappedDatabaseSizesMb().size(); i++) {
             File file = new File(dataDir, "rollup-" + i + "-detail.capped.db");
             int sizeKb = storageConfig.rollupCappedDatabaseSizesMb().get(i) * 1024;
-            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, ticker));
+            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, codec, ticker));
         }
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
-                storageConfig.traceCappedDatabaseSizeMb() * 1024, ticker);
+                storageConfig.traceCappedDatabaseSizeMb() * 1024, codec, ticker);
 
         environmentDao = new EnvironmentDao(dataSource);
         transactionTypeDao = new TransactionTypeDao(dataSource);
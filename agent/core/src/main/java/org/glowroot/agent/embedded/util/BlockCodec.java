@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// compression codec used for capped database blocks, see BlockCodecs for the available codecs
+public interface BlockCodec {
+
+    // the name used to select the codec in the storage config
+    String name();
+
+    // the id is written as the first byte of each block so that blocks can always be read back,
+    // regardless of which codec is currently selected
+    //
+    // the exception is LZF which does not write an id, since it predates block codec ids (all LZF
+    // blocks start with the LZF chunk signature 'Z' instead)
+    int id();
+
+    OutputStream compress(OutputStream out) throws IOException;
+
+    InputStream decompress(InputStream in) throws IOException;
+}
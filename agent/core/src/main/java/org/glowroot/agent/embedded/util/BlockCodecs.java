@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.ning.compress.lzf.LZFChunk;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class BlockCodecs {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockCodecs.class);
+
+    public static final BlockCodec LZF = new LzfBlockCodec();
+
+    // the dictionary is part of the block format, so any change to it requires a new codec id
+    public static final BlockCodec DEFLATE_DICTIONARY =
+            new DeflateDictionaryBlockCodec("deflate-dictionary", 1, Dictionaries.V1);
+
+    private static final ImmutableList<BlockCodec> codecs = ImmutableList.of(LZF,
+            DEFLATE_DICTIONARY);
+
+    private BlockCodecs() {}
+
+    public static BlockCodec getCodec(String name) {
+        for (BlockCodec codec : codecs) {
+            if (codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        logger.warn("unexpected capped database codec: {}, using {} instead", name, LZF.name());
+        return LZF;
+    }
+
+    static OutputStream compress(BlockCodec codec, OutputStream out) throws IOException {
+        if (codec != LZF) {
+            out.write(codec.id());
+        }
+        return codec.compress(out);
+    }
+
+    // the input stream must support mark/reset
+    static InputStream decompress(InputStream in) throws IOException {
+        in.mark(1);
+        int id = in.read();
+        if (id == -1 || id == LZFChunk.BYTE_Z) {
+            in.reset();
+            return LZF.decompress(in);
+        }
+        for (BlockCodec codec : codecs) {
+            if (codec.id() == id) {
+                return codec.decompress(in);
+            }
+        }
+        throw new IOException("Unexpected capped database block codec id: " + id);
+    }
+
+    private static class LzfBlockCodec implements BlockCodec {
+
+        @Override
+        public String name() {
+            return "lzf";
+        }
+
+        @Override
+        public int id() {
+            return LZFChunk.BYTE_Z;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new LZFOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new LZFInputStream(in);
+        }
+    }
+
+    // uses a preset dictionary of strings that are common in trace entries, queries and profiles,
+    // which makes a big difference for small blocks where there is not much repetition within the
+    // block itself
+    private static class DeflateDictionaryBlockCodec implements BlockCodec {
+
+        private final String name;
+        private final int id;
+        private final byte[] dictionary;
+
+        private DeflateDictionaryBlockCodec(String name, int id, byte[] dictionary) {
+            this.name = name;
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setDictionary(dictionary);
+            return new EndingDeflaterOutputStream(out, deflater);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new DictionaryInflaterInputStream(in, new Inflater(), dictionary);
+        }
+    }
+
+    // DeflaterOutputStream only ends the deflater (releasing its native memory) when it creates
+    // the deflater itself
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+
+        private EndingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    private static class DictionaryInflaterInputStream extends InflaterInputStream {
+
+        private final byte[] dictionary;
+
+        private DictionaryInflaterInputStream(InputStream in, Inflater inflater,
+                byte[] dictionary) {
+            super(in, inflater);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1 && inf.needsDictionary()) {
+                // InflaterInputStream returns -1 when the inflater needs the preset dictionary
+                inf.setDictionary(dictionary);
+                n = super.read(b, off, len);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    private static class Dictionaries {
+
+        // deflate favors matches at shorter distances, so the most common strings are at the end
+        private static final byte[] V1 = (""
+                + "java.lang.reflect.Method.invoke"
+                + "sun.reflect.NativeMethodAccessorImpl.invoke0"
+                + "sun.reflect.DelegatingMethodAccessorImpl.invoke"
+                + "java.util.concurrent.ThreadPoolExecutor$Worker.run"
+                + "java.util.concurrent.ThreadPoolExecutor.runWorker"
+                + "java.util.concurrent.FutureTask.run"
+                + "java.util.concurrent.locks.LockSupport.park"
+                + "sun.misc.Unsafe.park"
+                + "java.net.SocketInputStream.socketRead0"
+                + "java.net.SocketInputStream.read"
+                + "java.io.BufferedInputStream.fill"
+                + "org.springframework.web.servlet.DispatcherServlet.doDispatch"
+                + "org.springframework.web.servlet.FrameworkServlet.processRequest"
+                + "org.apache.catalina.core.ApplicationFilterChain.internalDoFilter"
+                + "org.apache.catalina.core.ApplicationFilterChain.doFilter"
+                + "org.apache.catalina.core.StandardWrapperValve.invoke"
+                + "org.apache.coyote.http11.Http11Processor.service"
+                + "javax.servlet.http.HttpServlet.service"
+                + "org.hibernate.internal.SessionImpl.list"
+                + "org.hibernate.loader.Loader.doQuery"
+                + "com.mysql.jdbc.PreparedStatement.executeQuery"
+                + "oracle.jdbc.driver.OraclePreparedStatementWrapper.executeQuery"
+                + "org.postgresql.jdbc.PgPreparedStatement.executeQuery"
+                + "java.lang.Thread.run"
+                + "Thread.javaMethod.javaThreadPoolExecutor.javaFutureTask.java"
+                + "NativeMethodAccessorImpl.javaDelegatingMethodAccessorImpl.java"
+                + "Unknown Source<init><clinit>"
+                + "http client request: GET http://POST https://"
+                + "jdbc query: jdbc execute: jdbc commit jdbc get connection"
+                + " => 1 row => 0 rows"
+                + "insert into values (?, ?, ?)"
+                + "update set = ? where = ? and = ?"
+                + "delete from select count(*) from select * from "
+                + " order by group by left outer join inner join on "
+                + " where id = ? and ").getBytes(Charsets.UTF_8);
+    }
+}
@@ -16,17 +16,25 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Charsets;
@@ -34,6 +42,7 @@ import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
@@ -41,8 +50,6 @@ import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,20 +60,46 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    private static final int INITIAL_BLOCK_BUFFER_SIZE = 8192;
+    // don't retain huge buffers after writing an unusually large block
+    private static final int MAX_RETAINED_BLOCK_BUFFER_SIZE = 1024 * 1024;
+
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
+    // reads do not acquire lock, so they never wait on writes, they only need to be excluded from
+    // resize (which replaces the underlying file) and close
+    private final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    @GuardedBy("resizeLock")
     private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    // blocks that have been compressed by their caller and are waiting to be written
+    private final Queue<PendingBlock> pendingBlocks = Queues.newConcurrentLinkedQueue();
+
+    private final ThreadLocal<BlockBuffer> blockBuffers = new ThreadLocal<BlockBuffer>() {
+        @Override
+        protected BlockBuffer initialValue() {
+            return new BlockBuffer();
+        }
+    };
+
+    // the codec is only used for writing, blocks are read using the codec that they were written with
+    private volatile BlockCodec codec;
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, BlockCodecs.LZF, ticker);
+    }
+
+    public CappedDatabase(File file, int requestedSizeKb, BlockCodec codec, Ticker ticker)
+            throws IOException {
         this.file = file;
+        this.codec = codec;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
         inFile = new RandomAccessFile(file, "r");
@@ -114,27 +147,81 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        // compression is performed on the caller's thread, outside of the lock, into a buffer that
+        // is re-used by the caller's thread for subsequent writes
+        BlockBuffer buffer = blockBuffers.get();
+        buffer.reset();
+        CountingOutputStream countingStreamBeforeCompression =
+                new CountingOutputStream(BlockCodecs.compress(codec, buffer));
+        copier.copyTo(countingStreamBeforeCompression);
+        countingStreamBeforeCompression.close();
+        PendingBlock block = new PendingBlock(type, buffer,
+                countingStreamBeforeCompression.getCount(), startTick);
+        pendingBlocks.add(block);
         synchronized (lock) {
-            if (closed) {
-                return -1;
+            // group commit: whichever thread obtains the lock writes and syncs all pending blocks,
+            // so threads that were waiting on the lock will usually find their block already done
+            if (!block.done) {
+                writePendingBlocks();
+            }
+        }
+        if (buffer.size() > MAX_RETAINED_BLOCK_BUFFER_SIZE) {
+            blockBuffers.remove();
+        }
+        IOException exception = block.exception;
+        if (exception != null) {
+            throw new IOException(exception.getMessage(), exception);
+        }
+        return block.cappedId;
+    }
+
+    @GuardedBy("lock")
+    private void writePendingBlocks() {
+        List<PendingBlock> blocks = Lists.newArrayList();
+        PendingBlock block;
+        while ((block = pendingBlocks.poll()) != null) {
+            blocks.add(block);
+        }
+        if (closed) {
+            for (PendingBlock pendingBlock : blocks) {
+                pendingBlock.done = true;
+            }
+            return;
+        }
+        for (PendingBlock pendingBlock : blocks) {
+            BlockBuffer buffer = pendingBlock.buffer;
+            try {
+                pendingBlock.cappedId = out.appendBlock(buffer.getBytes(), buffer.size());
+            } catch (IOException e) {
+                pendingBlock.exception = e;
+            }
+        }
+        try {
+            out.writeBatch();
+        } catch (IOException e) {
+            for (PendingBlock pendingBlock : blocks) {
+                if (pendingBlock.exception == null) {
+                    pendingBlock.exception = e;
+                }
+            }
+        }
+        long endTick = ticker.read();
+        for (PendingBlock pendingBlock : blocks) {
+            pendingBlock.done = true;
+            if (pendingBlock.exception != null) {
+                continue;
             }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(new LZFOutputStream(countingStreamAfterCompression));
-            copier.copyTo(countingStreamBeforeCompression);
-            countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
+            CappedDatabaseStats stats = statsByType.get(pendingBlock.type);
             if (stats == null) {
                 stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+                statsByType.put(pendingBlock.type, stats);
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            stats.record(pendingBlock.bytesBeforeCompression, pendingBlock.buffer.size(),
+                    endTick - pendingBlock.startTick);
         }
     }
 
@@ -142,9 +229,12 @@ public class CappedDatabase {
             Parser<T> parser) throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
+        resizeLock.readLock().lock();
+        try {
             overwritten = out.isOverwritten(cappedId);
             inTheFuture = cappedId >= out.getCurrIndex();
+        } finally {
+            resizeLock.readLock().unlock();
         }
         if (overwritten) {
             return null;
@@ -157,15 +247,12 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = openCompressedBlockStream(cappedId);
         try {
+            input = BlockCodecs.decompress(input);
             return parser.parseFrom(input);
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -178,9 +265,12 @@ public class CappedDatabase {
             throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
+        resizeLock.readLock().lock();
+        try {
             overwritten = out.isOverwritten(cappedId);
             inTheFuture = cappedId >= out.getCurrIndex();
+        } finally {
+            resizeLock.readLock().unlock();
         }
         if (overwritten) {
             return ImmutableList.of();
@@ -193,21 +283,18 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = openCompressedBlockStream(cappedId);
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
         try {
+            input = BlockCodecs.decompress(input);
             T message;
             while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
                 messages.add(message);
             }
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -223,25 +310,40 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
+        resizeLock.readLock().lock();
+        try {
             return out.isOverwritten(cappedId);
+        } finally {
+            resizeLock.readLock().unlock();
         }
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
+        resizeLock.readLock().lock();
+        try {
             return out.getSmallestNonOverwrittenId();
+        } finally {
+            resizeLock.readLock().unlock();
         }
     }
 
+    public void setCodec(BlockCodec codec) {
+        this.codec = codec;
+    }
+
     public void resize(int newSizeKb) throws IOException {
         synchronized (lock) {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            resizeLock.writeLock().lock();
+            try {
+                inFile.close();
+                out.resize(newSizeKb);
+                inFile = new RandomAccessFile(file, "r");
+            } finally {
+                resizeLock.writeLock().unlock();
+            }
         }
     }
 
@@ -249,8 +351,13 @@ public class CappedDatabase {
     public void close() throws IOException {
         synchronized (lock) {
             closed = true;
-            out.close();
-            inFile.close();
+            resizeLock.writeLock().lock();
+            try {
+                out.close();
+                inFile.close();
+            } finally {
+                resizeLock.writeLock().unlock();
+            }
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
@@ -266,12 +373,8 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(new LZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    Charsets.UTF_8);
+            return new InputStreamReader(
+                    BlockCodecs.decompress(openCompressedBlockStream(cappedId)), Charsets.UTF_8);
         }
     }
 
@@ -290,25 +393,49 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
+            try {
+                resizeLock.readLock().lock();
+                try {
+                    return readInternal(bytes, off, len);
+                } finally {
+                    resizeLock.readLock().unlock();
+                }
+            } catch (ClosedByInterruptException e) {
+                // interrupting a thread that is reading from a FileChannel closes the channel, so
+                // it needs to be re-opened for other readers
+                reopenInFile();
+                throw e;
+            }
+        }
+
+        @GuardedBy("resizeLock")
+        private int readInternal(byte[] bytes, int off, int len) throws IOException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            FileChannel inChannel = inFile.getChannel();
+            if (blockLength == -1) {
+                ByteBuffer blockLengthBuffer = ByteBuffer.allocate(8);
+                readFully(inChannel, out.convertToFilePosition(cappedId), blockLengthBuffer);
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                blockLength = blockLengthBuffer.getLong(0);
             }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            readFully(inChannel, filePosition, ByteBuffer.wrap(bytes, off, numToRead));
+            // positional reads run concurrently with writes, so the block may have been
+            // overwritten while it was being read (the start of a block is always overwritten
+            // before the rest of it, and currIndex is advanced before any bytes are written)
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            blockIndex += numToRead;
+            return numToRead;
         }
 
         @Override
@@ -325,6 +452,39 @@ public class CappedDatabase {
         }
     }
 
+    private InputStream openCompressedBlockStream(long cappedId) {
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying FileChannel (BufferedInputStream also provides
+        // the mark/reset support needed for reading the block codec id)
+        final int bufferSize = 32768;
+        return new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+    }
+
+    private void reopenInFile() throws IOException {
+        resizeLock.writeLock().lock();
+        try {
+            if (closed || inFile.getChannel().isOpen()) {
+                return;
+            }
+            inFile.close();
+            inFile = new RandomAccessFile(file, "r");
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    private static void readFully(FileChannel inChannel, long filePosition, ByteBuffer buffer)
+            throws IOException {
+        long position = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition;
+        while (buffer.hasRemaining()) {
+            int n = inChannel.read(buffer, position);
+            if (n == -1) {
+                throw new EOFException("Unexpected end of capped database file");
+            }
+            position += n;
+        }
+    }
+
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
@@ -334,8 +494,13 @@ public class CappedDatabase {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
-                    out.close();
-                    inFile.close();
+                    resizeLock.writeLock().lock();
+                    try {
+                        out.close();
+                        inFile.close();
+                    } finally {
+                        resizeLock.writeLock().unlock();
+                    }
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -343,42 +508,78 @@ public class CappedDatabase {
         }
     }
 
-    private interface Copier {
-        void copyTo(OutputStream out) throws IOException;
-    }
+    private static class PendingBlock {
 
-    @SuppressWarnings("serial")
-    private static class CappedBlockRolledOverMidReadException extends IOException {
-        public CappedBlockRolledOverMidReadException(String message) {
-            super(message);
+        private final String type;
+        private final BlockBuffer buffer;
+        private final long bytesBeforeCompression;
+        private final long startTick;
+
+        // these are only accessed under lock
+        private boolean done;
+        private long cappedId = -1;
+        private @Nullable IOException exception;
+
+        private PendingBlock(String type, BlockBuffer buffer, long bytesBeforeCompression,
+                long startTick) {
+            this.type = type;
+            this.buffer = buffer;
+            this.bytesBeforeCompression = bytesBeforeCompression;
+            this.startTick = startTick;
         }
     }
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
+    // similar to ByteArrayOutputStream, but exposes the underlying byte array to avoid copying
+    private static class BlockBuffer extends OutputStream {
 
-        private long count;
+        private byte[] bytes = new byte[INITIAL_BLOCK_BUFFER_SIZE];
+        private int count;
 
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            bytes[count++] = (byte) b;
         }
 
         @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, bytes, count, len);
             count += len;
         }
 
+        // close is called when the codec's stream is closed, and the buffer needs to stay usable
         @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            count++;
+        public void close() {}
+
+        private void reset() {
+            count = 0;
         }
 
-        @Override
-        public void close() {}
+        private byte[] getBytes() {
+            return bytes;
+        }
 
-        private long getCount() {
+        private int size() {
             return count;
         }
+
+        private void ensureCapacity(int numBytes) {
+            int minCapacity = count + numBytes;
+            if (minCapacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length * 2));
+            }
+        }
+    }
+
+    private interface Copier {
+        void copyTo(OutputStream out) throws IOException;
+    }
+
+    @SuppressWarnings("serial")
+    private static class CappedBlockRolledOverMidReadException extends IOException {
+        public CappedBlockRolledOverMidReadException(String message) {
+            super(message);
+        }
     }
 }
@@ -17,34 +17,44 @@ package org.glowroot.agent.embedded.util;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
-class CappedDatabaseOutputStream extends OutputStream {
+// Needs to be externally synchronized around appendBlock()/writeBatch(). The read-only methods isOverwritten(), getSmallestNonOverwrittenId(),
+// getCurrIndex() and convertToFilePosition() can be called concurrently with writes, but need to be
+// externally synchronized with resize().
+class CappedDatabaseOutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
     private static final int HEADER_CURR_INDEX_POS = 0;
 
+    private static final int INITIAL_BATCH_BUFFER_SIZE = 32768;
+    // don't retain huge batch buffers after an unusually large batch
+    private static final int MAX_RETAINED_BATCH_BUFFER_SIZE = 1024 * 1024;
+
     private final File file;
     private RandomAccessFile out;
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is volatile so that it can be read concurrently with writes, and it is always
+    // advanced before the corresponding bytes are written, so that concurrent readers can detect
+    // blocks that are in the process of being overwritten
+    private volatile long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
-    // startBlock()/write()/endBlock()
+    // appendBlock()/writeBatch()
     private volatile int sizeKb;
     private long sizeBytes;
 
-    private long blockStartIndex;
-    private long blockStartPosition;
+    // blocks appended since the last writeBatch(), laid out exactly as they will be in the file
+    private byte[] batchBuffer = new byte[INITIAL_BATCH_BUFFER_SIZE];
+    private int batchLength;
+    private long batchStartIndex;
 
     CappedDatabaseOutputStream(File file, int requestedSizeKb) throws IOException {
         this.file = file;
@@ -68,24 +78,64 @@ class CappedDatabaseOutputStream extends OutputStream {
         }
     }
 
-    void startBlock() {
+    // appends a complete block to the current batch, the block is not written to the file until
+    // writeBatch() is called
+    long appendBlock(byte[] b, int len) throws IOException {
+        if (BLOCK_HEADER_SKIP_BYTES + len > sizeBytes) {
+            throw new IOException(
+                    "A single block cannot have more bytes than size of the capped database");
+        }
+        if (batchLength == 0) {
+            batchStartIndex = currIndex;
+        }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         long remainingBytes = sizeBytes - currPosition;
         if (remainingBytes < BLOCK_HEADER_SKIP_BYTES) {
             // not enough space for contiguous block header
+            ensureBatchCapacity((int) remainingBytes);
+            Arrays.fill(batchBuffer, batchLength, batchLength + (int) remainingBytes, (byte) 0);
+            batchLength += remainingBytes;
             currIndex += remainingBytes;
         }
-        blockStartIndex = currIndex;
-        blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        // make space for block size to be written at start position
-        currIndex += BLOCK_HEADER_SKIP_BYTES;
+        long startIndex = currIndex;
+        ensureBatchCapacity(BLOCK_HEADER_SKIP_BYTES + len);
+        long blockSize = len;
+        for (int i = BLOCK_HEADER_SKIP_BYTES - 1; i >= 0; i--) {
+            batchBuffer[batchLength + i] = (byte) blockSize;
+            blockSize >>= 8;
+        }
+        System.arraycopy(b, 0, batchBuffer, batchLength + BLOCK_HEADER_SKIP_BYTES, len);
+        batchLength += BLOCK_HEADER_SKIP_BYTES + len;
+        currIndex += BLOCK_HEADER_SKIP_BYTES + len;
+        return startIndex;
     }
 
-    long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
-        return blockStartIndex;
+    // writes all blocks appended since the last call, using a single write (or two writes if the
+    // batch wraps around the end of the file) and a single sync
+    void writeBatch() throws IOException {
+        if (batchLength == 0) {
+            return;
+        }
+        try {
+            long index = batchStartIndex;
+            int off = 0;
+            while (off < batchLength) {
+                long position = convertToFilePosition(index);
+                int numToWrite = (int) Math.min(batchLength - off, sizeBytes - position);
+                out.seek(HEADER_SKIP_BYTES + position);
+                out.write(batchBuffer, off, numToWrite);
+                off += numToWrite;
+                index += numToWrite;
+            }
+            out.seek(HEADER_CURR_INDEX_POS);
+            out.writeLong(currIndex);
+            out.getFD().sync();
+        } finally {
+            batchLength = 0;
+            if (batchBuffer.length > MAX_RETAINED_BATCH_BUFFER_SIZE) {
+                batchBuffer = new byte[INITIAL_BATCH_BUFFER_SIZE];
+            }
+        }
     }
 
     boolean isOverwritten(long cappedId) {
@@ -102,7 +152,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         return currIndex;
     }
 
-    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    // this is ok to read outside of external synchronization around appendBlock()/writeBatch()
     int getSizeKb() {
         return sizeKb;
     }
@@ -151,43 +201,10 @@ class CappedDatabaseOutputStream extends OutputStream {
         out = new RandomAccessFile(file, "rw");
     }
 
-    @Override
-    public void close() throws IOException {
+    void close() throws IOException {
         out.close();
     }
 
-    @Override
-    public void write(int b) throws IOException {
-        write(new byte[] {(byte) b}, 0, 1);
-    }
-
-    @Override
-    public void write(byte[] b) throws IOException {
-        write(b, 0, b.length);
-    }
-
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        if (currIndex + len - blockStartIndex > sizeBytes) {
-            throw new IOException(
-                    "A single block cannot have more bytes than size of the capped database");
-        }
-        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
-        long remaining = sizeBytes - currPosition;
-        if (len >= remaining) {
-            // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
-        } else {
-            out.write(b, off, len);
-        }
-        currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
-    }
-
     private boolean performEasyResize(int newSizeKb) throws IOException {
         if (newSizeKb == sizeKb) {
             return true;
@@ -216,9 +233,11 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
-    void sync() throws IOException {
-        out.getFD().sync();
+    private void ensureBatchCapacity(int numBytes) {
+        int minCapacity = batchLength + numBytes;
+        if (minCapacity > batchBuffer.length) {
+            batchBuffer = Arrays.copyOf(batchBuffer, Math.max(minCapacity, batchBuffer.length * 2));
+        }
     }
 
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
@@ -39,6 +40,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
@@ -60,38 +62,59 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // when greater than zero, queries run on a pool of separate reader connections so that long
+    // running queries (e.g. from the UI) do not hold up writes (e.g. the 1 minute aggregate flush)
+    //
+    // this is off by default since it requires h2's multi_threaded mode (otherwise h2 executes
+    // only one statement at a time across all connections), which is experimental in h2 1.3
+    private static final int READER_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readerConnections", 0);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private PooledConnection writer;
+    // readers are removed from the pool for the duration of each query, this is null when not
+    // using separate reader connections
+    private final @Nullable BlockingQueue<PooledConnection> readers;
+    private final int readerCount;
     private volatile boolean closed;
 
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder()
-                    .weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        writer = new PooledConnection(createConnection(null, false));
+        // separate connections to an (unnamed) in-memory database would each get their own
+        // separate database
+        readers = null;
+        readerCount = 0;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READER_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readerCount) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        boolean multiThreaded = readerCount > 0;
+        writer = new PooledConnection(createConnection(dbFile, multiThreaded));
+        if (multiThreaded) {
+            readers = Queues.newArrayBlockingQueue(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                readers.add(new PooledConnection(createConnection(dbFile, true)));
+            }
+        } else {
+            readers = null;
+        }
+        this.readerCount = readerCount;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -104,9 +127,21 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            List<PooledConnection> takenReaders = Lists.newArrayList();
+            boolean readersClosed = false;
+            boolean reopened = false;
+            try {
+                takeAllReaders(takenReaders);
+                readersClosed = true;
+                closeAll(takenReaders);
+                execute("shutdown defrag");
+                writer.invalidateCache();
+                writer = new PooledConnection(createConnection(dbFile, readers != null));
+                takenReaders = createReaders();
+                reopened = true;
+            } finally {
+                returnAll(takenReaders, readersClosed && !reopened);
+            }
         }
     }
 
@@ -118,10 +153,22 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
+            List<PooledConnection> takenReaders = Lists.newArrayList();
+            boolean readersClosed = false;
+            boolean reopened = false;
+            boolean success;
+            try {
+                takeAllReaders(takenReaders);
+                readersClosed = true;
+                closeAll(takenReaders);
+                writer.close();
+                success = dbFile.delete();
+                writer = new PooledConnection(createConnection(dbFile, readers != null));
+                takenReaders = createReaders();
+                reopened = true;
+            } finally {
+                returnAll(takenReaders, readersClosed && !reopened);
+            }
             for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
             }
@@ -140,7 +187,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = writer.connection.createStatement();
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             statement.setQueryTimeout(0);
             StatementCloser closer = new StatementCloser(statement);
@@ -160,43 +207,45 @@ public class DataSource {
         return value == null ? 0L : value;
     }
 
-    public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
+    public @Nullable Long queryForOptionalLong(final @Untainted String sql, final Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
+        return read(new ConnectionCallback</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long doWithConnection(PooledConnection connection)
+                    throws SQLException {
+                return query(connection, sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+                    @Override
+                    public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                        if (!resultSet.next()) {
+                            return null;
+                        }
+                        long val = resultSet.getLong(1);
+                        Long value = resultSet.wasNull() ? null : val;
+                        if (resultSet.next()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        return value;
                     }
-                    return value;
-                }
-            });
-        }
+                });
+            }
+        }, null);
     }
 
-    public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
+    public boolean queryForExists(final @Untainted String sql, final Object... args)
+            throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return false;
+        return read(new ConnectionCallback<Boolean>() {
+            @Override
+            public Boolean doWithConnection(PooledConnection connection) throws SQLException {
+                return query(connection, sql, args, new ResultSetExtractor<Boolean>() {
+                    @Override
+                    public Boolean extractData(ResultSet resultSet) throws SQLException {
+                        return resultSet.next();
+                    }
+                });
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
-                @Override
-                public Boolean extractData(ResultSet resultSet) throws SQLException {
-                    return resultSet.next();
-                }
-            });
-        }
+        }, false);
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -214,25 +263,26 @@ public class DataSource {
         });
     }
 
-    public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+    public <T> T query(final JdbcQuery<T> jdbcQuery) throws Exception {
+        return readWithException(new ConnectionCallback<T>() {
+            @Override
+            public T doWithConnection(PooledConnection connection) throws Exception {
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    return jdbcQuery.processResultSet(resultSet);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+                // don't need to close statement since they are all cached and each connection is
+                // only used by one thread at a time
             }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        }, jdbcQuery.valueIfDataSourceClosed());
     }
 
     public <T extends /*@NonNull*/ Object> /*@Nullable*/ T queryAtMostOne(JdbcRowQuery<T> jdbcQuery)
@@ -247,30 +297,31 @@ public class DataSource {
         return list.get(0);
     }
 
-    public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
+    public <T extends /*@NonNull*/ Object> List<T> query(final JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
+        return read(new ConnectionCallback<List<T>>() {
+            @Override
+            public List<T> doWithConnection(PooledConnection connection) throws Exception {
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    List<T> mappedRows = Lists.newArrayList();
+                    while (resultSet.next()) {
+                        mappedRows.add(jdbcQuery.mapRow(resultSet));
+                    }
+                    return ImmutableList.copyOf(mappedRows);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
                 }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+                // don't need to close statement since they are all cached and each connection is
+                // only used by one thread at a time
             }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        }, ImmutableList.<T>of());
     }
 
     public int update(final @Untainted String sql, final @Nullable Object... args)
@@ -301,7 +352,7 @@ public class DataSource {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement = writer.prepareStatement(jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeUpdate();
             // don't need to close statement since they are all cached and used under lock
@@ -320,7 +371,7 @@ public class DataSource {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement = writer.prepareStatement(jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -342,7 +393,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, writer.connection);
             tables.put(tableName, ImmutableList.copyOf(columns));
         }
     }
@@ -353,7 +404,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, writer.connection);
             this.indexes.put(tableName, indexes);
         }
     }
@@ -365,21 +416,21 @@ public class DataSource {
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.tableExists(tableName, connection);
+            return !closed && Schemas.tableExists(tableName, writer.connection);
         }
     }
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.columnExists(tableName, columnName, connection);
+            return !closed && Schemas.columnExists(tableName, columnName, writer.connection);
         }
     }
 
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (tableExists(oldTableName)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -387,7 +438,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (columnExists(tableName, oldColumnName)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -400,15 +451,141 @@ public class DataSource {
                 return;
             }
             closed = true;
-            connection.close();
+            closeAllAndReturn();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+    private <T extends /*@Nullable*/ Object> T read(ConnectionCallback<T> callback,
+            T valueIfClosed) throws SQLException {
+        try {
+            return readWithException(callback, valueIfClosed);
+        } catch (Exception e) {
+            Throwables.propagateIfPossible(e, SQLException.class);
+            throw new SQLException(e);
+        }
+    }
+
+    private <T extends /*@Nullable*/ Object> T readWithException(ConnectionCallback<T> callback,
+            T valueIfClosed) throws Exception {
+        if (readers == null) {
+            synchronized (lock) {
+                if (closed) {
+                    return valueIfClosed;
+                }
+                return callback.doWithConnection(writer);
+            }
+        }
+        PooledConnection reader = takeReader(readers);
+        try {
+            // closed must be checked after taking the reader, since close() closes the readers
+            // before returning them to the pool
+            if (closed) {
+                return valueIfClosed;
+            }
+            return callback.doWithConnection(reader);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    // readers are added to the passed in list as they are taken, so that the caller can still
+    // return them to the pool if this is interrupted part way through
+    @GuardedBy("lock")
+    private void takeAllReaders(List<PooledConnection> takenReaders) throws SQLException {
+        if (readers == null) {
+            return;
+        }
+        // this waits for any in-progress queries to complete
+        for (int i = 0; i < readerCount; i++) {
+            takenReaders.add(takeReader(readers));
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<PooledConnection> createReaders() throws SQLException {
+        List<PooledConnection> newReaders = Lists.newArrayList();
+        if (readers == null) {
+            return newReaders;
+        }
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                newReaders.add(new PooledConnection(createConnection(checkNotNull(dbFile), true)));
+            }
+        } catch (SQLException e) {
+            closeAllQuietly(newReaders);
+            throw e;
+        } catch (RuntimeException e) {
+            closeAllQuietly(newReaders);
+            throw e;
+        }
+        return newReaders;
+    }
+
+    // if the readers were closed, but the database could not be re-opened, then the data source
+    // is marked closed, since the pool would otherwise be left with closed connections (the closed
+    // readers are still returned to the pool so that any threads waiting on the pool will see the
+    // closed flag and return)
+    @GuardedBy("lock")
+    private void returnAll(List<PooledConnection> takenReaders, boolean failedToReopen) {
+        if (failedToReopen) {
+            logger.error("could not re-open embedded database, it will remain closed");
+            closed = true;
+        }
+        returnAll(takenReaders);
+    }
+
+    private void returnAll(List<PooledConnection> takenReaders) {
+        if (readers != null) {
+            readers.addAll(takenReaders);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void closeAllAndReturn() throws SQLException {
+        List<PooledConnection> takenReaders = Lists.newArrayList();
+        try {
+            takeAllReaders(takenReaders);
+            closeAll(takenReaders);
+            writer.close();
+        } finally {
+            // closed readers are returned to the pool so that any threads waiting on the pool
+            // will see the closed flag and return
+            returnAll(takenReaders);
+        }
+    }
+
+    private static void closeAll(List<PooledConnection> connections) throws SQLException {
+        for (PooledConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private static void closeAllQuietly(List<PooledConnection> connections) {
+        for (PooledConnection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static PooledConnection takeReader(BlockingQueue<PooledConnection> readers)
+            throws SQLException {
+        try {
+            return readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    // connection is only used by one thread at a time
+    private static <T extends /*@Nullable*/ Object> T query(PooledConnection connection,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement =
+                connection.prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -421,27 +598,12 @@ public class DataSource {
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and each connection is only
+        // used by one thread at a time
     }
 
-    private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+    private static Connection createConnection(@Nullable File dbFile, boolean multiThreaded)
             throws SQLException {
-        try {
-            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            return preparedStatement;
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
-            throw new SQLException(e);
-        }
-    }
-
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -455,6 +617,12 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                // h2 1.3 uses table level locks, so a write still needs to wait for any query that
+                // is in progress against the same table (but not for queries against other
+                // tables), the lock timeout is raised so that the write waits instead of failing
+                url += ";multi_threaded=true;lock_timeout=" + QUERY_TIMEOUT_SECONDS * 1000;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -510,6 +678,57 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private interface ConnectionCallback<T extends /*@Nullable*/ Object> {
+        T doWithConnection(PooledConnection connection) throws Exception;
+    }
+
+    // each connection has its own prepared statement cache, since prepared statements cannot be
+    // shared across connections
+    private static class PooledConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private PooledConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            try {
+                PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+                // setQueryTimeout() affects all statements of this connection (at least with h2)
+                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+                return preparedStatement;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+
+        private void invalidateCache() {
+            preparedStatementCache.invalidateAll();
+        }
+
+        private void close() throws SQLException {
+            preparedStatementCache.invalidateAll();
+            connection.close();
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -522,7 +741,7 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
-                    connection.close();
+                    closeAllAndReturn();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
@@ -18,6 +18,7 @@ package org.glowroot.agent.impl;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
@@ -59,10 +60,10 @@ public class AggregateIntervalCollector {
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
-
-    private final Object lock = new Object();
+    // locking is striped by transaction type, so that reading the live aggregates for one
+    // transaction type does not block aggregation of other transaction types (and vice versa)
+    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
@@ -80,30 +81,37 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
+        while (true) {
             IntervalTypeCollector typeCollector =
                     getTypeCollector(transaction.getTransactionType());
-            typeCollector.add(transaction);
+            synchronized (typeCollector.lock) {
+                // if the type collector was cleared (and removed) after it was retrieved above,
+                // then retry with a new type collector
+                if (!typeCollector.cleared) {
+                    typeCollector.add(transaction);
+                    return;
+                }
+            }
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
                     .values()) {
                 aggregateCollector.mergeTransactionSummariesInto(collector);
@@ -113,22 +121,22 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
                     .values()) {
                 aggregateCollector.mergeTransactionErrorSummariesInto(collector);
@@ -138,9 +146,13 @@ public class AggregateIntervalCollector {
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return null;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
@@ -151,9 +163,13 @@ public class AggregateIntervalCollector {
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return null;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
@@ -164,9 +180,13 @@ public class AggregateIntervalCollector {
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return null;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
@@ -176,22 +196,27 @@ public class AggregateIntervalCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
-                }
+        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+            String fullQueryText;
+            synchronized (typeCollector.lock) {
+                fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+            }
+            if (fullQueryText != null) {
+                return fullQueryText;
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return;
             }
@@ -201,9 +226,13 @@ public class AggregateIntervalCollector {
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return;
             }
@@ -213,9 +242,13 @@ public class AggregateIntervalCollector {
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return;
             }
@@ -225,9 +258,13 @@ public class AggregateIntervalCollector {
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        synchronized (typeCollector.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    typeCollector.getAggregateCollector(transactionName);
             if (aggregateCollector == null) {
                 return;
             }
@@ -240,36 +277,37 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (Entry<String, IntervalTypeCollector> entry : typeCollectors.entrySet()) {
+            IntervalTypeCollector typeCollector = entry.getValue();
+            synchronized (typeCollector.lock) {
+                typeCollector.cleared = true;
+                typeCollectors.remove(entry.getKey(), typeCollector);
+            }
         }
     }
 
     private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transactionType, typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         return typeCollector;
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
-        }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
-        }
-    }
-
     private class IntervalTypeCollector {
 
+        private final Object lock = new Object();
+
+        // set when this type collector is removed by clear(), so that add() does not write to a
+        // type collector that is no longer reachable
+        @GuardedBy("lock")
+        private boolean cleared;
+
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
@@ -279,6 +317,17 @@ public class AggregateIntervalCollector {
                     maxAggregateServiceCallsPerType);
         }
 
+        @GuardedBy("lock")
+        private @Nullable AggregateCollector getAggregateCollector(
+                @Nullable String transactionName) {
+            if (transactionName == null) {
+                return overallAggregateCollector;
+            } else {
+                return transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        @GuardedBy("lock")
         private void add(Transaction transaction) {
             merge(transaction, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
@@ -340,12 +389,12 @@ public class AggregateIntervalCollector {
     private class AggregatesImpl implements Aggregates {
         @Override
         public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor) throws T {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                synchronized (intervalTypeCollector.lock) {
                     Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
                             .build(sharedQueryTextCollector, scratchBuffer);
                     aggregateVisitor.visitOverallAggregate(transactionType,
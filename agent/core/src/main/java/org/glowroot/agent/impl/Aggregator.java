@@ -15,9 +15,15 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -31,25 +37,44 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
+    // transactions are partitioned across processing threads by transaction type, so this is only
+    // useful to increase when there are multiple high-volume transaction types
+    private static final int PROCESSING_THREADS = Math.max(1,
+            Integer.getInteger("glowroot.aggregate.processingThreads", 1));
+
+    // back pressure on transaction collection (per processing thread)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // bounds for the number of times the processing thread checks for a new transaction before
+    // parking, the actual number adapts between these bounds depending on whether spinning has
+    // recently been successful at finding a new transaction
+    private static final int MIN_SPIN_ITERATIONS = 16;
+    private static final int MAX_SPIN_ITERATIONS = 1024;
+
+    // interval collectors that have not yet been passed by all processing threads, keyed by
+    // captureTime
+    @GuardedBy("intervalLock")
+    private final NavigableMap<Long, ActiveInterval> activeIntervals =
+            new TreeMap<Long, ActiveInterval>();
+    private final Object intervalLock = new Object();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
+    private final TransactionProcessor[] processors;
+
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
@@ -58,42 +83,46 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
-
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, PROCESSING_THREADS);
+    }
+
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, int processingThreads) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors.newSingleThreadExecutor(
+        processingExecutor = Executors.newFixedThreadPool(processingThreads,
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
-                        .setNameFormat("Glowroot-Aggregate-Processing")
+                        .setNameFormat(processingThreads == 1 ? "Glowroot-Aggregate-Processing"
+                                : "Glowroot-Aggregate-Processing-%d")
                         .build());
         flushingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        AggregateIntervalCollector initialIntervalCollector =
+                createIntervalCollector(clock.currentTimeMillis());
+        long initialCaptureTime = initialIntervalCollector.getCaptureTime();
+        processors = new TransactionProcessor[processingThreads];
+        synchronized (intervalLock) {
+            activeIntervals.put(initialCaptureTime,
+                    new ActiveInterval(initialIntervalCollector, processingThreads));
+            for (int i = 0; i < processingThreads; i++) {
+                processors[i] = new TransactionProcessor(initialIntervalCollector);
+            }
+        }
+        for (TransactionProcessor processor : processors) {
+            processingExecutor.execute(processor);
+        }
     }
 
     // from is non-inclusive
@@ -110,51 +139,125 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        synchronized (intervalLock) {
+            for (ActiveInterval activeInterval : activeIntervals.values()) {
+                activeInterval.intervalCollector.clear();
+            }
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
+        TransactionProcessor processor;
+        if (processors.length == 1) {
+            processor = processors[0];
+        } else {
+            // all transactions of the same type go to the same processing thread, so that each
+            // type collector is only ever written to by a single thread
+            int hash = transaction.getTransactionType().hashCode();
+            processor = processors[(hash & Integer.MAX_VALUE) % processors.length];
+        }
+        return processor.add(transaction);
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+    }
+
+    // called by a processing thread when it reaches a transaction (or end of interval marker) with
+    // captureTime past its current interval, which means that the processing thread will not add
+    // anything more to its current interval (or to any interval prior to the new one)
+    //
+    // an interval is flushed once every processing thread has passed it
+    private AggregateIntervalCollector advance(TransactionProcessor processor, long captureTime) {
+        synchronized (intervalLock) {
+            long priorIntervalCaptureTime = processor.intervalCaptureTime;
+            long intervalCaptureTime = Utils.getRollupCaptureTime(captureTime,
+                    aggregateIntervalMillis);
+            processor.intervalCaptureTime = intervalCaptureTime;
+            ActiveInterval activeInterval = activeIntervals.get(intervalCaptureTime);
+            if (activeInterval == null) {
+                // only processing threads that have not already passed this interval will ever
+                // pass it (and therefore count down)
+                int remainingProcessors = 0;
+                for (TransactionProcessor p : processors) {
+                    if (p.intervalCaptureTime <= intervalCaptureTime) {
+                        remainingProcessors++;
+                    }
+                }
+                activeInterval = new ActiveInterval(createIntervalCollector(captureTime),
+                        remainingProcessors);
+                activeIntervals.put(intervalCaptureTime, activeInterval);
             }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+            Iterator<ActiveInterval> i = activeIntervals
+                    .subMap(priorIntervalCaptureTime, true, intervalCaptureTime, false).values()
+                    .iterator();
+            while (i.hasNext()) {
+                ActiveInterval passedInterval = i.next();
+                if (--passedInterval.remainingProcessors == 0) {
+                    // add to pending before removing from active, see
+                    // getOrderedAllIntervalCollectors()
+                    flush(passedInterval.intervalCollector);
+                    i.remove();
+                }
+            }
+            return activeInterval.intervalCollector;
+        }
+    }
+
+    private void flush(final AggregateIntervalCollector intervalCollector) {
+        if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            return;
         }
-        return captureTime;
+        pendingIntervalCollectors.add(intervalCollector);
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        List<AggregateIntervalCollector> activeIntervalCollectors = Lists.newArrayList();
+        synchronized (intervalLock) {
+            for (ActiveInterval activeInterval : activeIntervals.values()) {
+                activeIntervalCollectors.add(activeInterval.intervalCollector);
+            }
+        }
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
         if (intervalCollectors.isEmpty()) {
             // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+            return ImmutableList.copyOf(activeIntervalCollectors);
+        }
+        for (AggregateIntervalCollector activeIntervalCollector : activeIntervalCollectors) {
+            if (!intervalCollectors.contains(activeIntervalCollector)) {
+                intervalCollectors.add(activeIntervalCollector);
+            }
         }
+        return intervalCollectors;
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        // processing threads may be parked until the end of the current interval
+        for (TransactionProcessor processor : processors) {
+            LockSupport.unpark(processor.processingThread);
+        }
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -167,8 +270,39 @@ public class Aggregator {
 
     private class TransactionProcessor implements Runnable {
 
+        // the transaction queue is a lock-free multi-producer single-consumer linked queue
+        //
+        // head is only accessed by the processing thread
+        private PendingTransaction head = new PendingTransaction(null);
+        private final AtomicReference<PendingTransaction> tail =
+                new AtomicReference<PendingTransaction>(head);
+        // queueLength is only used for back pressure, so it is ok that it is not updated
+        // atomically with the queue itself
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        private volatile @Nullable Thread processingThread;
+        // processingThreadParked is set by the processing thread before it re-checks the queue
+        // and parks, and it is checked by producers after they add to the queue, so that either
+        // the processing thread sees the new transaction or the producer sees that it needs to
+        // unpark the processing thread
+        private volatile boolean processingThreadParked;
+
+        // only accessed by the processing thread
+        private AggregateIntervalCollector intervalCollector;
+        private boolean endOfIntervalMarkerPending;
+        private int spinIterations = MAX_SPIN_ITERATIONS;
+
+        @GuardedBy("intervalLock")
+        private long intervalCaptureTime;
+
+        private TransactionProcessor(AggregateIntervalCollector intervalCollector) {
+            this.intervalCollector = intervalCollector;
+            intervalCaptureTime = intervalCollector.getCaptureTime();
+        }
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -179,96 +313,141 @@ public class Aggregator {
             }
         }
 
-        private void processOne() throws InterruptedException {
+        private long add(Transaction transaction) {
+            if (queueLength.get() >= TRANSACTION_PENDING_LIMIT) {
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                transaction.recycleTraceEntries();
+                return clock.currentTimeMillis();
+            }
+            queueLength.getAndIncrement();
+            long captureTime = enqueue(new PendingTransaction(transaction));
+            if (processingThreadParked) {
+                LockSupport.unpark(processingThread);
+            }
+            return captureTime;
+        }
+
+        // captureTime is read inside the compare-and-set loop, after reading the current tail,
+        // which ensures that transactions are placed into processing queue in the order of
+        // captureTime (so that queue reader can assume if captureTime indicates time to flush,
+        // then no new transactions will come in with prior captureTime)
+        //
+        // this works because if another thread successfully swaps in a new tail after this thread
+        // read the current tail, then this thread's compare-and-set will fail and it will read
+        // captureTime again, which will be no earlier than the captureTime read by the other thread
+        private long enqueue(PendingTransaction newTail) {
+            while (true) {
+                PendingTransaction currTail = tail.get();
+                long captureTime = clock.currentTimeMillis();
+                newTail.captureTime = captureTime;
+                if (tail.compareAndSet(currTail, newTail)) {
+                    // until this link is made, the queue reader will not see the new tail (or any
+                    // transactions that are added after it)
+                    currTail.next = newTail;
+                    return captureTime;
+                }
+            }
+        }
+
+        private void processOne() {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (!endOfIntervalMarkerPending
+                        && clock.currentTimeMillis() > intervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    waitForTransaction();
                 }
                 return;
             }
+            // remove head (the previous head is now unreachable from the queue reader, and the
+            // new head's transaction reference is cleared so it can be garbage collected)
+            head = pendingTransaction;
+            Transaction transaction = pendingTransaction.transaction;
+            pendingTransaction.transaction = null;
+            if (transaction == null) {
+                // end of interval marker
+                endOfIntervalMarkerPending = false;
+                if (pendingTransaction.captureTime > intervalCollector.getCaptureTime()) {
+                    // safe to move on, no pending transactions can be behind the marker in the
+                    // queue with earlier captureTime
+                    intervalCollector = advance(this, pendingTransaction.captureTime);
+                }
+                return;
+            }
+            queueLength.getAndDecrement();
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+            if (pendingTransaction.captureTime > intervalCollector.getCaptureTime()) {
+                intervalCollector = advance(this, pendingTransaction.captureTime);
             }
-            activeIntervalCollector.add(transaction);
+            intervalCollector.add(transaction);
+            transaction.recycleTraceEntries();
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
+        // spins briefly (adaptively) and then parks until either a producer unparks this thread or
+        // the end of the current interval is reached (so that the interval is still flushed on
+        // time when no transactions are arriving)
+        private void waitForTransaction() {
+            for (int i = 0; i < spinIterations; i++) {
                 if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
+                    spinIterations = Math.min(spinIterations * 2, MAX_SPIN_ITERATIONS);
                     return;
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+            spinIterations = Math.max(spinIterations / 2, MIN_SPIN_ITERATIONS);
+            processingThreadParked = true;
+            try {
+                // re-check after setting processingThreadParked, see comment on that field
+                if (head.next != null || closed) {
+                    return;
+                }
+                long waitMillis =
+                        intervalCollector.getCaptureTime() - clock.currentTimeMillis() + 1;
+                // bounded in case of clock adjustment
+                waitMillis = Math.max(1, Math.min(waitMillis, aggregateIntervalMillis));
+                // spurious wakeups are ok since processOne() simply checks the queue again
+                LockSupport.parkNanos(MILLISECONDS.toNanos(waitMillis));
+            } finally {
+                processingThreadParked = false;
             }
         }
 
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
-            }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
+        private void maybeEndOfInterval() {
+            // the queue is empty (or a transaction is just in the process of being added), so add
+            // an end of interval marker to the queue, using the same ordering guarantee as
+            // transactions, and then when the marker is reached, if its captureTime indicates time
+            // to flush, then no transactions can come in after it with prior captureTime
+            endOfIntervalMarkerPending = true;
+            enqueue(new PendingTransaction(null));
+        }
+    }
+
+    private static class ActiveInterval {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private int remainingProcessors;
+
+        private ActiveInterval(AggregateIntervalCollector intervalCollector,
+                int remainingProcessors) {
+            this.intervalCollector = intervalCollector;
+            this.remainingProcessors = remainingProcessors;
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for initial head and for end of interval markers, and cleared once processed
+        private @Nullable Transaction transaction;
+        // non-volatile since visibility to the queue reader is provided by the volatile write to
+        // the prior node's next field
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
@@ -17,16 +17,20 @@ package org.glowroot.agent.impl;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Random;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -40,15 +44,19 @@ public class StackTraceCollector {
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
+    private final Ticker ticker;
+
+    private final StackTraceCollectorStats stats = new StackTraceCollectorStats();
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            final ConfigService configService, Random random, Ticker ticker) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        this.ticker = ticker;
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -72,6 +80,10 @@ public class StackTraceCollector {
         });
     }
 
+    public StackTraceCollectorStats getStats() {
+        return stats;
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         runnable.closed = true;
@@ -81,6 +93,12 @@ public class StackTraceCollector {
 
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
+        captureStackTraces(threadContexts, configService, ManagementFactory.getThreadMXBean());
+    }
+
+    @VisibleForTesting
+    static void captureStackTraces(List<ThreadContextImpl> threadContexts,
+            ConfigService configService, ThreadMXBean threadMXBean) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
@@ -90,10 +108,12 @@ public class StackTraceCollector {
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
+        AdvancedConfig advancedConfig = configService.getAdvancedConfig();
+        int maxDepth = advancedConfig.maxStackTraceDepth();
         @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds,
+                maxDepth <= 0 ? Integer.MAX_VALUE : maxDepth);
+        int limit = advancedConfig.maxStackTraceSamplesPerTransaction();
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
@@ -107,6 +127,10 @@ public class StackTraceCollector {
 
         private volatile boolean closed;
 
+        // only accessed by the processing thread, used for round-robin selection of threads when
+        // there are more active threads than maxStackTraceThreadsPerCapture
+        private final RoundRobinSelector roundRobinSelector = new RoundRobinSelector();
+
         @Override
         public void run() {
             // delay for first
@@ -157,7 +181,44 @@ public class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            captureStackTraces(activeThreadContexts, configService);
+            int maxThreads = configService.getAdvancedConfig().maxStackTraceThreadsPerCapture();
+            List<ThreadContextImpl> threadContexts;
+            if (maxThreads > 0 && activeThreadContexts.size() > maxThreads) {
+                threadContexts = roundRobinSelector.select(activeThreadContexts, maxThreads);
+            } else {
+                threadContexts = activeThreadContexts;
+            }
+            long startTick = ticker.read();
+            captureStackTraces(threadContexts, configService);
+            stats.record(threadContexts.size(),
+                    activeThreadContexts.size() - threadContexts.size(),
+                    ticker.read() - startTick);
+        }
+    }
+
+    // the list of active thread contexts changes between captures, so this is only approximately
+    // fair, but it is good enough to make sure that all threads of long running transactions get
+    // sampled
+    //
+    // not thread safe
+    @VisibleForTesting
+    static class RoundRobinSelector {
+
+        private int nextIndex;
+
+        <T> List<T> select(List<T> items, int max) {
+            int size = items.size();
+            if (size <= max) {
+                return items;
+            }
+            // the list may have shrunk since the last selection
+            int startIndex = nextIndex % size;
+            List<T> selected = Lists.newArrayListWithCapacity(max);
+            for (int i = 0; i < max; i++) {
+                selected.add(items.get((startIndex + i) % size));
+            }
+            nextIndex = (startIndex + max) % size;
+            return selected;
         }
     }
 }
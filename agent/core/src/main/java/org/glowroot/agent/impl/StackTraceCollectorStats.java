@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.glowroot.agent.model.FrameTable;
+
+public class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    @GuardedBy("this")
+    private long captureCount;
+    @GuardedBy("this")
+    private long totalCaptureNanos;
+    @GuardedBy("this")
+    private long maxCaptureNanos;
+    @GuardedBy("this")
+    private long lastCaptureNanos;
+    @GuardedBy("this")
+    private int lastCaptureThreadCount;
+    @GuardedBy("this")
+    private long totalSkippedThreadCount;
+
+    @Override
+    public synchronized long getCaptureCount() {
+        return captureCount;
+    }
+
+    @Override
+    public synchronized double getTotalCaptureMillis() {
+        return totalCaptureNanos / 1000000.0;
+    }
+
+    @Override
+    public synchronized double getAverageCaptureMillis() {
+        return totalCaptureNanos / (1000 * 1000 * (double) captureCount);
+    }
+
+    @Override
+    public synchronized double getMaxCaptureMillis() {
+        return maxCaptureNanos / 1000000.0;
+    }
+
+    @Override
+    public synchronized double getLastCaptureMillis() {
+        return lastCaptureNanos / 1000000.0;
+    }
+
+    @Override
+    public synchronized int getLastCaptureThreadCount() {
+        return lastCaptureThreadCount;
+    }
+
+    // threads that were not captured due to maxStackTraceThreadsPerCapture
+    @Override
+    public synchronized long getTotalSkippedThreadCount() {
+        return totalSkippedThreadCount;
+    }
+
+    // size of the current generation of the frame table that profiles are interned into
+    @Override
+    public int getFrameTableSize() {
+        return FrameTable.getCurrentSize();
+    }
+
+    @Override
+    public long getFrameTableResetCount() {
+        return FrameTable.getResetCount();
+    }
+
+    synchronized void record(int threadCount, int skippedThreadCount, long nanos) {
+        captureCount++;
+        totalCaptureNanos += nanos;
+        maxCaptureNanos = Math.max(maxCaptureNanos, nanos);
+        lastCaptureNanos = nanos;
+        lastCaptureThreadCount = threadCount;
+        totalSkippedThreadCount += skippedThreadCount;
+    }
+}
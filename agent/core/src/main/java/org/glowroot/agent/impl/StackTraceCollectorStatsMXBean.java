@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+// capture time is the time spent inside ThreadMXBean.getThreadInfo(), which is dominated by the
+// time the JVM spends at a safepoint collecting the stack traces
+public interface StackTraceCollectorStatsMXBean {
+
+    long getCaptureCount();
+    double getTotalCaptureMillis();
+    double getAverageCaptureMillis();
+    double getMaxCaptureMillis();
+    double getLastCaptureMillis();
+    int getLastCaptureThreadCount();
+    long getTotalSkippedThreadCount();
+    int getFrameTableSize();
+    long getFrameTableResetCount();
+}
@@ -165,6 +165,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.getRootEntry();
     }
 
+    void setTraceEntryPool(TraceEntryPool traceEntryPool) {
+        traceEntryComponent.setTraceEntryPool(traceEntryPool);
+    }
+
+    void recycleTraceEntries() {
+        traceEntryComponent.recycleEntries();
+    }
+
     TimerImpl getRootTimer() {
         return rootTimer;
     }
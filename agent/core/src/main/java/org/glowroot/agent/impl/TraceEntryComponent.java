@@ -25,6 +25,8 @@ import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 // this supports updating by a single thread and reading by multiple threads
 class TraceEntryComponent {
 
@@ -44,6 +46,9 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // only non-null for the main thread context when trace entry pooling is enabled
+    private @Nullable TraceEntryPool traceEntryPool;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -58,6 +63,10 @@ class TraceEntryComponent {
         return rootEntry;
     }
 
+    void setTraceEntryPool(TraceEntryPool traceEntryPool) {
+        this.traceEntryPool = traceEntryPool;
+    }
+
     long getStartTick() {
         return startTick;
     }
@@ -73,8 +82,13 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry;
+        if (traceEntryPool == null || queryData != null || asyncTimer != null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        } else {
+            entry = pushPooledEntry(traceEntryPool, startTick, messageSupplier, syncTimer);
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -109,6 +123,41 @@ class TraceEntryComponent {
         return entry;
     }
 
+    // called by the aggregation thread once it is done with the (completed) transaction, and only
+    // when the transaction's trace is not going to be stored
+    void recycleEntries() {
+        TraceEntryPool traceEntryPool = this.traceEntryPool;
+        if (traceEntryPool == null) {
+            return;
+        }
+        // entries beyond the remaining pool capacity are left for garbage collection
+        int maxCount = traceEntryPool.getRemainingCapacity();
+        TraceEntryImpl first = null;
+        TraceEntryImpl last = null;
+        int count = 0;
+        TraceEntryImpl entry = rootEntry.getNextTraceEntry();
+        while (entry != null && count < maxCount) {
+            TraceEntryImpl next = entry.getNextTraceEntry();
+            if (entry.isPoolable()) {
+                entry.recycle();
+                if (last == null) {
+                    first = entry;
+                } else {
+                    last.setNextTraceEntry(entry);
+                }
+                last = entry;
+                count++;
+            }
+            entry = next;
+        }
+        rootEntry.setNextTraceEntry(null);
+        tailEntry = rootEntry;
+        activeEntry = rootEntry;
+        if (last != null) {
+            traceEntryPool.offer(checkNotNull(first), last, count);
+        }
+    }
+
     TraceEntryImpl getActiveEntry() {
         return activeEntry;
     }
@@ -136,6 +185,18 @@ class TraceEntryComponent {
         }
     }
 
+    // split pooled path into separate method to not affect inlining budget when pooling is disabled
+    private TraceEntryImpl pushPooledEntry(TraceEntryPool traceEntryPool, long startTick,
+            Object messageSupplier, TimerImpl syncTimer) {
+        TraceEntryImpl entry = traceEntryPool.poll();
+        if (entry == null) {
+            return new TraceEntryImpl(threadContext, activeEntry, messageSupplier, null, 0,
+                    startTick, syncTimer, null);
+        }
+        entry.reuse(threadContext, activeEntry, messageSupplier, startTick, syncTimer);
+        return entry;
+    }
+
     // split typically unused path into separate method to not affect inlining budget
     private void popEntryBailout(TraceEntryImpl entry) {
         logger.error("found entry {} at top of stack when expecting entry {}", activeEntry, entry,
@@ -15,15 +15,18 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,14 +55,30 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // once a transaction has more than this number of trace entries, its completed trace entries
+    // are encoded (see encodeIfEligible()), 0 means disabled
+    private static final int STREAM_ENTRIES_AFTER =
+            Integer.getInteger("glowroot.trace.streamEntriesAfter", 0);
+    // only trace entries at least this deep are encoded, root entries are never encoded since the
+    // transaction headline is read from the root entry's message supplier
+    private static final int STREAM_ENTRIES_MIN_DEPTH =
+            Math.max(1, Integer.getInteger("glowroot.trace.streamEntriesMinDepth", 1));
+
+    // the fields below that are not final are only re-assigned when the trace entry is pooled (see
+    // TraceEntryPool), and pooled trace entries are only handed between threads through the pool
+
+    // only null while the trace entry is in the pool
+    private @Nullable ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    // this is replaced by an EncodedEntry once the trace entry is encoded (see encode()), using a
+    // single reference write, so that readers always see either the message supplier or the
+    // encoded entry, and never neither
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -71,7 +90,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
+    private @Nullable TimerImpl syncTimer;
     private final @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> stackTrace;
@@ -79,7 +98,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only used by transaction thread
     private long stackTraceThreshold;
     // only used by transaction thread
-    private @MonotonicNonNull TimerImpl extendedTimer;
+    private @Nullable TimerImpl extendedTimer;
 
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
@@ -101,6 +120,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     @Override
     public @Nullable Object getMessageSupplier() {
+        Object messageSupplier = this.messageSupplier;
+        if (messageSupplier instanceof EncodedEntry) {
+            return null;
+        }
         return messageSupplier;
     }
 
@@ -124,14 +147,40 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             durationNanos = Math.max(captureTick - revisedStartTick, 0);
             active = true;
         }
-        Object messageSupplier = getMessageSupplier();
-
-        Trace.Entry.Builder builder = Trace.Entry.newBuilder()
-                .setDepth(depth)
+        Trace.Entry.Builder builder = Trace.Entry.newBuilder();
+        // read message supplier field only once, since it can be replaced concurrently by encode()
+        Object messageSupplier = this.messageSupplier;
+        if (messageSupplier instanceof EncodedEntry) {
+            mergeEncodedEntry(builder, ((EncodedEntry) messageSupplier).bytes);
+        } else {
+            addMessage(builder, messageSupplier, sharedQueryTextIndexes);
+        }
+        builder.setDepth(depth)
                 .setStartOffsetNanos(offsetNanos)
                 .setDurationNanos(durationNanos)
                 .setActive(active);
 
+        ErrorMessage errorMessage = this.errorMessage;
+        if (errorMessage != null) {
+            Trace.Error.Builder errorBuilder = builder.getErrorBuilder();
+            errorBuilder.setMessage(errorMessage.message());
+            Proto.Throwable throwable = errorMessage.throwable();
+            if (throwable != null) {
+                errorBuilder.setException(throwable);
+            }
+            errorBuilder.build();
+        }
+        // location stack trace is not part of the encoded entry, since it can still be captured
+        // after encoding if the trace entry is extended
+        ImmutableList<StackTraceElement> stackTrace = this.stackTrace;
+        if (stackTrace != null) {
+            addLocationStackTrace(builder, stackTrace);
+        }
+        return builder.build();
+    }
+
+    private void addMessage(Trace.Entry.Builder builder, @Nullable Object messageSupplier,
+            Map<String, Integer> sharedQueryTextIndexes) {
         // async root entry always has empty message and empty detail
 
         if (messageSupplier instanceof MessageSupplier) {
@@ -161,28 +210,67 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             builder.setQueryEntryMessage(queryMessage);
             builder.addAllDetailEntry(DetailMapWriter.toProto(readableQueryMessage.getDetail()));
         }
+    }
 
-        ErrorMessage errorMessage = this.errorMessage;
-        if (errorMessage != null) {
-            Trace.Error.Builder errorBuilder = builder.getErrorBuilder();
-            errorBuilder.setMessage(errorMessage.message());
-            Proto.Throwable throwable = errorMessage.throwable();
-            if (throwable != null) {
-                errorBuilder.setException(throwable);
-            }
-            errorBuilder.build();
+    // only called by the transaction thread, after the trace entry has been ended
+    //
+    // query entries are not encoded since their row count can still change after they end (e.g.
+    // while iterating over a jdbc result set), and async entries are not encoded since they are
+    // ended by a different thread
+    private void encodeIfEligible() {
+        if (STREAM_ENTRIES_AFTER == 0 || isAsync() || !isCompleted()
+                || !(messageSupplier instanceof MessageSupplier)
+                || getThreadContext().getTransaction().getEntryCountEstimate() <= STREAM_ENTRIES_AFTER
+                || !isAtLeastDepth(STREAM_ENTRIES_MIN_DEPTH)) {
+            return;
         }
-        if (stackTrace != null) {
-            for (StackTraceElement stackTraceElement : stackTrace) {
-                builder.addLocationStackTraceElementBuilder()
-                        .setClassName(stackTraceElement.getClassName())
-                        .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
-                        .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
-                        .setLineNumber(stackTraceElement.getLineNumber())
-                        .build();
+        encode();
+    }
+
+    // only called by the transaction thread, and only for trace entries with a MessageSupplier
+    @VisibleForTesting
+    void encode() {
+        Object messageSupplier = this.messageSupplier;
+        if (!(messageSupplier instanceof MessageSupplier)) {
+            return;
+        }
+        Trace.Entry.Builder builder = Trace.Entry.newBuilder();
+        addMessage(builder, messageSupplier, ImmutableMap.<String, Integer>of());
+        // EncodedEntry's final field guarantees that readers who see the EncodedEntry also see
+        // its bytes
+        this.messageSupplier = new EncodedEntry(builder.build().toByteArray());
+    }
+
+    private boolean isAtLeastDepth(int minDepth) {
+        TraceEntryImpl entry = this;
+        for (int i = 0; i < minDepth; i++) {
+            entry = entry.parentTraceEntry;
+            if (entry == null) {
+                return false;
             }
         }
-        return builder.build();
+        return true;
+    }
+
+    private static void mergeEncodedEntry(Trace.Entry.Builder builder, byte[] encodedEntry) {
+        try {
+            builder.mergeFrom(encodedEntry);
+        } catch (InvalidProtocolBufferException e) {
+            // this is not expected since the bytes were produced by toByteArray() above
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private static void addLocationStackTrace(Trace.Entry.Builder builder,
+            List<StackTraceElement> stackTrace) {
+        for (StackTraceElement stackTraceElement : stackTrace) {
+            builder.addLocationStackTraceElementBuilder()
+                    .setClassName(stackTraceElement.getClassName())
+                    .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
+                    .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
+                    .setLineNumber(stackTraceElement.getLineNumber())
+                    .build();
+        }
     }
 
     long getStartTick() {
@@ -197,6 +285,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         }
         long endTick = ticker.read();
         endInternal(endTick, null);
+        encodeIfEligible();
     }
 
     @Override
@@ -229,6 +318,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             stackTraceThreshold = thresholdNanos;
         }
         endInternal(endTick, null);
+        encodeIfEligible();
     }
 
     @Override
@@ -310,7 +400,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     }
 
     ThreadContextImpl getThreadContext() {
-        return threadContext;
+        return checkNotNull(threadContext);
     }
 
     @Nullable
@@ -323,7 +413,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return nextTraceEntry;
     }
 
-    void setNextTraceEntry(TraceEntryImpl nextTraceEntry) {
+    void setNextTraceEntry(@Nullable TraceEntryImpl nextTraceEntry) {
         this.nextTraceEntry = nextTraceEntry;
     }
 
@@ -334,6 +424,43 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         initialComplete = true;
     }
 
+    // only trace entries that are ended by the transaction thread and that cannot have row
+    // navigation called on them are pooled, since plugins may hold on to query entries (e.g. the
+    // last query entry of a jdbc statement) past the end of the transaction
+    boolean isPoolable() {
+        return syncTimer != null && asyncTimer == null && getQueryData() == null
+                && !(messageSupplier instanceof QueryMessageSupplier);
+    }
+
+    // called by the aggregation thread prior to returning the trace entry to the pool, so that
+    // pooled trace entries do not retain the completed transaction
+    void recycle() {
+        threadContext = null;
+        parentTraceEntry = null;
+        messageSupplier = null;
+        errorMessage = null;
+        nextTraceEntry = null;
+        syncTimer = null;
+        stackTrace = null;
+        extendedTimer = null;
+    }
+
+    // called by the transaction thread after taking the trace entry from the pool
+    void reuse(ThreadContextImpl threadContext, TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, long startTick, TimerImpl syncTimer) {
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        nextTraceEntry = null;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        stackTraceThreshold = 0;
+    }
+
     boolean isAuxThreadRoot() {
         // TODO this is a little hacky depending on timer name
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
@@ -351,7 +478,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
         ErrorMessage errorMessage = ErrorMessage.create(message, t,
-                threadContext.getTransaction().getThrowableFrameLimitCounter());
+                getThreadContext().getTransaction().getThrowableFrameLimitCounter());
         endInternal(ticker.read(), errorMessage);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
@@ -363,6 +490,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
                     "endWithErrorInternal", 2);
             setStackTrace(ImmutableList.copyOf(stackTrace).subList(index, stackTrace.length));
         }
+        encodeIfEligible();
     }
 
     private void endInternal(long endTick, @Nullable ErrorMessage errorMessage) {
@@ -378,10 +506,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
         if (isAsync()) {
-            threadContext.getTransaction().memoryBarrierWrite();
+            getThreadContext().getTransaction().memoryBarrierWrite();
         } else {
             selfNestingLevel--;
-            threadContext.popEntry(this, endTick);
+            getThreadContext().popEntry(this, endTick);
         }
         initialComplete = true;
     }
@@ -405,7 +533,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         checkNotNull(syncTimer);
         syncTimer.stop();
         selfNestingLevel--;
-        threadContext.popNonRootEntry(this);
+        getThreadContext().popNonRootEntry(this);
     }
 
     @Override
@@ -423,6 +551,12 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // and in ThreadContextImpl.populateParentChildMap()
     @Override
     public String toString() {
+        Object messageSupplier = this.messageSupplier;
+        if (messageSupplier instanceof EncodedEntry) {
+            Trace.Entry.Builder builder = Trace.Entry.newBuilder();
+            mergeEncodedEntry(builder, ((EncodedEntry) messageSupplier).bytes);
+            return builder.getMessage();
+        }
         if (messageSupplier instanceof MessageSupplier) {
             return ((ReadableMessage) ((MessageSupplier) messageSupplier).get()).getText();
         } else if (messageSupplier instanceof QueryMessageSupplier) {
@@ -436,4 +570,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         }
         return super.toString();
     }
+
+    // message and detail of a completed trace entry, encoded as a partial Trace.Entry so that the
+    // message supplier (and everything it references) can be released early in long transactions
+    private static class EncodedEntry {
+
+        private final byte[] bytes;
+
+        private EncodedEntry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
 }
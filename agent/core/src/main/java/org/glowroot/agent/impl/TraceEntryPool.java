@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+// per-thread free list of trace entries from completed transactions whose traces were not stored
+//
+// entries are taken only by the owning (transaction) thread, but are returned by the aggregation
+// thread once it is done with the transaction, so returned entries are handed over as a single
+// chain (linked through TraceEntryImpl.nextTraceEntry) using one compare-and-set per transaction
+class TraceEntryPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.traceEntry.pooling");
+
+    // this bounds the number of trace entries retained per thread between transactions
+    private static final int MAX_SIZE =
+            Math.max(1, Integer.getInteger("glowroot.traceEntry.poolMaxSize", 1000));
+
+    // only accessed by the owning thread
+    private @Nullable TraceEntryImpl head;
+
+    private final AtomicReference</*@Nullable*/ TraceEntryImpl> returnedHead =
+            new AtomicReference</*@Nullable*/ TraceEntryImpl>();
+    // this is approximate since it is not updated atomically together with returnedHead
+    private final AtomicInteger size = new AtomicInteger();
+
+    // only called by the owning thread
+    @Nullable
+    TraceEntryImpl poll() {
+        TraceEntryImpl entry = head;
+        if (entry == null) {
+            entry = returnedHead.getAndSet(null);
+            if (entry == null) {
+                return null;
+            }
+        }
+        head = entry.getNextTraceEntry();
+        // unlink from the rest of the free list, otherwise the transaction's entry chain would
+        // continue on into the remaining pooled entries
+        entry.setNextTraceEntry(null);
+        size.getAndDecrement();
+        return entry;
+    }
+
+    int getRemainingCapacity() {
+        return Math.max(MAX_SIZE - size.get(), 0);
+    }
+
+    // called by the aggregation thread, first through last must already be linked together (and
+    // already recycled)
+    void offer(TraceEntryImpl first, TraceEntryImpl last, int count) {
+        size.getAndAdd(count);
+        TraceEntryImpl currHead;
+        do {
+            currHead = returnedHead.get();
+            last.setNextTraceEntry(currHead);
+        } while (!returnedHead.compareAndSet(currHead, first));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// decides which transactions capture trace entries from the start when trace entry sampling is
+// enabled (see TransactionConfig.fullCaptureTransactionsPerSecond())
+//
+// transactions that are not sampled still capture timers and aggregates, and start capturing
+// trace entries once they run longer than a running percentile of the durations of recent
+// transactions of the same type (capped at the slow threshold), so that most slow traces still
+// have the trace entries leading up to their end
+class TraceEntrySampler {
+
+    static final long FULL_CAPTURE = -1;
+
+    private static final double UPGRADE_PERCENTILE = Math.min(Math.max(
+            Integer.getInteger("glowroot.traceEntrySampling.upgradePercentile", 90), 1), 99)
+            / 100.0;
+
+    // step size of the running percentile estimate, relative to the current estimate
+    private static final double LEARNING_RATE = 0.05;
+
+    private static final double UP_FACTOR = Math.exp(LEARNING_RATE * UPGRADE_PERCENTILE);
+    private static final double DOWN_FACTOR = Math.exp(-LEARNING_RATE * (1 - UPGRADE_PERCENTILE));
+
+    // prevents the estimate from collapsing to zero
+    private static final double MIN_ESTIMATE_NANOS = 1000;
+
+    // bounds the number of transaction types that are tracked
+    private static final int MAX_TRANSACTION_TYPES = 100;
+
+    private final ConcurrentMap<String, DurationEstimate> durationEstimates =
+            Maps.newConcurrentMap();
+
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger currentSecondCount = new AtomicInteger();
+
+    private volatile int fullCaptureTransactionsPerSecond;
+    private volatile long slowThresholdNanos;
+
+    void updateConfig(int fullCaptureTransactionsPerSecond, long slowThresholdNanos) {
+        this.fullCaptureTransactionsPerSecond = fullCaptureTransactionsPerSecond;
+        this.slowThresholdNanos = slowThresholdNanos;
+    }
+
+    // returns FULL_CAPTURE if the transaction should capture trace entries from the start,
+    // otherwise returns the duration after which the transaction should start capturing trace
+    // entries
+    long sample(String transactionType, long startTick) {
+        int fullCaptureTransactionsPerSecond = this.fullCaptureTransactionsPerSecond;
+        if (fullCaptureTransactionsPerSecond == 0) {
+            return FULL_CAPTURE;
+        }
+        // the per second count is approximate, since the reset is not atomic with the increments
+        long second = NANOSECONDS.toSeconds(startTick);
+        long currSecond = currentSecond.get();
+        if (second != currSecond && currentSecond.compareAndSet(currSecond, second)) {
+            currentSecondCount.set(0);
+        }
+        if (currentSecondCount.getAndIncrement() < fullCaptureTransactionsPerSecond) {
+            return FULL_CAPTURE;
+        }
+        long slowThresholdNanos = this.slowThresholdNanos;
+        DurationEstimate durationEstimate = durationEstimates.get(transactionType);
+        if (durationEstimate == null) {
+            return slowThresholdNanos;
+        }
+        return Math.min(durationEstimate.getNanos(), slowThresholdNanos);
+    }
+
+    void onCompletedTransaction(String transactionType, long durationNanos) {
+        if (fullCaptureTransactionsPerSecond == 0) {
+            return;
+        }
+        DurationEstimate durationEstimate = durationEstimates.get(transactionType);
+        if (durationEstimate == null) {
+            if (durationEstimates.size() >= MAX_TRANSACTION_TYPES) {
+                return;
+            }
+            durationEstimate = new DurationEstimate(durationNanos);
+            DurationEstimate existing =
+                    durationEstimates.putIfAbsent(transactionType, durationEstimate);
+            if (existing == null) {
+                return;
+            }
+            durationEstimate = existing;
+        }
+        durationEstimate.update(durationNanos);
+    }
+
+    // running estimate of a percentile (stochastic approximation, in log space so that it adapts
+    // quickly regardless of the scale of the durations)
+    private static class DurationEstimate {
+
+        // not updated atomically, lost updates under contention only slow down convergence
+        private volatile double nanos;
+
+        private DurationEstimate(long initialNanos) {
+            nanos = Math.max(initialNanos, MIN_ESTIMATE_NANOS);
+        }
+
+        private long getNanos() {
+            return (long) nanos;
+        }
+
+        private void update(long durationNanos) {
+            double currNanos = nanos;
+            if (durationNanos > currNanos) {
+                nanos = currNanos * UP_FACTOR;
+            } else {
+                nanos = Math.max(currNanos * DOWN_FACTOR, MIN_ESTIMATE_NANOS);
+            }
+        }
+    }
+}
@@ -86,6 +86,8 @@ public class Transaction {
 
     private static final Logger logger = LoggerFactory.getLogger(Transaction.class);
 
+    private static final int TRACE_ENTRIES_RECYCLED = -1;
+
     static final int USE_GENERAL_STORE_THRESHOLD = -1;
 
     static final String AUXILIARY_THREAD_MESSAGE = "auxiliary thread";
@@ -150,6 +152,13 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // set when the trace is not going to be stored, so that trace entries can be returned to the
+    // trace entry pool once the aggregator is done with the transaction
+    private volatile boolean traceEntriesRecyclable;
+    // number of threads currently reading the trace entries (e.g. live trace viewing, partial trace
+    // storage), or TRACE_ENTRIES_RECYCLED once the trace entries have been returned to the pool
+    private final AtomicInteger traceEntryReaderCount = new AtomicInteger();
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -166,6 +175,11 @@ public class Transaction {
     // ideally would use AtomicInteger here, but using plain volatile int as optimization since
     // it's ok if race condition in limit check
     private volatile int entryLimitCounter;
+
+    // when trace entry capture is deferred (see TraceEntrySampler), trace entries are only captured
+    // once the transaction reaches entryCaptureTick
+    private volatile boolean entryCaptureDeferred;
+    private volatile long entryCaptureTick;
     private volatile int extraErrorEntryLimitCounter;
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
@@ -228,6 +242,9 @@ public class Transaction {
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
                 messageSupplier, timerName, startTick, captureThreadStats, threadAllocatedBytes,
                 false, ticker, threadContextHolder, null);
+        if (TraceEntryPool.ENABLED) {
+            mainThreadContext.setTraceEntryPool(transactionRegistry.getTraceEntryPool());
+        }
     }
 
     long getStartTime() {
@@ -431,9 +448,21 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
+        if (entryCaptureDeferred && !startDeferredEntryCapture()) {
+            return false;
+        }
         return entryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
+    // split into separate method to not affect inlining budget of allowAnotherEntry()
+    private boolean startDeferredEntryCapture() {
+        if (ticker.read() - entryCaptureTick < 0) {
+            return false;
+        }
+        entryCaptureDeferred = false;
+        return true;
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherErrorEntry() {
         // use higher entry limit when adding errors, but still need some kind of cap
@@ -441,6 +470,12 @@ public class Transaction {
                 || extraErrorEntryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
+    // the counters above are also incremented by rejected entries, so they are capped at the limit
+    int getEntryCountEstimate() {
+        return Math.min(entryLimitCounter, maxTraceEntriesPerTransaction)
+                + Math.min(extraErrorEntryLimitCounter, maxTraceEntriesPerTransaction);
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherAggregateQuery(boolean bypassLimit) {
         if (aggregateQueryLimitCounter++ < maxAggregateQueriesPerType
@@ -458,6 +493,19 @@ public class Transaction {
 
     public List<Trace.Entry> getEntriesProtobuf(long captureTick,
             Map<String, Integer> sharedQueryTextIndexes) {
+        if (!acquireTraceEntryReader()) {
+            // trace entries have already been returned to the trace entry pool
+            return ImmutableList.of();
+        }
+        try {
+            return getEntriesProtobufInternal(captureTick, sharedQueryTextIndexes);
+        } finally {
+            traceEntryReaderCount.getAndDecrement();
+        }
+    }
+
+    private List<Trace.Entry> getEntriesProtobufInternal(long captureTick,
+            Map<String, Integer> sharedQueryTextIndexes) {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -642,6 +690,12 @@ public class Transaction {
         partiallyStored = true;
     }
 
+    // needs to be called prior to any trace entries being added
+    void deferEntryCapture(long entryCaptureTick) {
+        this.entryCaptureTick = entryCaptureTick;
+        entryCaptureDeferred = true;
+    }
+
     void setTransactionEntry(TransactionEntry transactionEntry) {
         this.transactionEntry = transactionEntry;
     }
@@ -650,6 +704,44 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    void setTraceEntriesRecyclable() {
+        traceEntriesRecyclable = true;
+    }
+
+    // called by the aggregator once it is done with the transaction
+    void recycleTraceEntries() {
+        if (!traceEntriesRecyclable || async) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            // aux thread context trace entries can reference main thread context trace entries
+            if (auxThreadContexts != null || unmergedLimitExceededAuxThreadContexts != null) {
+                return;
+            }
+        }
+        // the transaction can still be reachable by other threads (e.g. a live trace request
+        // that found it in the active transaction list just before it was removed), so only
+        // recycle if no one is currently reading the trace entries, and after this, readers will
+        // see that the trace entries are gone instead of reading pooled trace entries
+        if (!traceEntryReaderCount.compareAndSet(0, TRACE_ENTRIES_RECYCLED)) {
+            // trace entries are left for garbage collection
+            return;
+        }
+        mainThreadContext.recycleTraceEntries();
+    }
+
+    private boolean acquireTraceEntryReader() {
+        while (true) {
+            int readerCount = traceEntryReaderCount.get();
+            if (readerCount == TRACE_ENTRIES_RECYCLED) {
+                return false;
+            }
+            if (traceEntryReaderCount.compareAndSet(readerCount, readerCount + 1)) {
+                return true;
+            }
+        }
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
@@ -22,67 +22,68 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+// transactions are added to one of several stripes (chosen by the id of the thread starting the
+// transaction) so that transaction starts and ends on different threads don't all serialize on a
+// single lock, iteration visits each stripe in turn and is weakly consistent
 class TransactionCollection implements Iterable<Transaction> {
 
-    private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
+    private static final int DEFAULT_STRIPES = ceilingPowerOfTwo(
+            Integer.getInteger("glowroot.transactionCollection.stripes",
+                    2 * Runtime.getRuntime().availableProcessors()));
 
-    private final TransactionEntry headEntry = new TransactionEntry(null, queue);
+    private final Stripe[] stripes;
+    private final int stripeMask;
 
-    // tail is non-volatile since only accessed under lock
-    private TransactionEntry tailEntry = headEntry;
+    TransactionCollection() {
+        this(DEFAULT_STRIPES);
+    }
 
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    @VisibleForTesting
+    TransactionCollection(int stripeCount) {
+        stripeCount = ceilingPowerOfTwo(stripeCount);
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = stripeCount - 1;
+    }
 
     TransactionEntry add(Transaction transaction) {
-        TransactionEntry newTailEntry = new TransactionEntry(transaction, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
-        }
-        return newTailEntry;
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        return stripe.add(transaction);
     }
 
     @Override
     public Iterator<Transaction> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
+        for (Stripe stripe : stripes) {
+            stripe.expungeStaleEntriesIfNeeded();
         }
         return new TransactionIterator();
     }
 
-    // requires lock
-    private void expungeStaleEntries() {
-        Reference<? extends Transaction> ref = queue.poll();
-        if (ref == null) {
-            return;
-        }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
-        }
-        TransactionEntry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getTransaction() == null) {
-                currEntry.remove();
-            }
-            currEntry = currEntry.nextEntry;
+    private static int ceilingPowerOfTwo(int n) {
+        if (n <= 1) {
+            return 1;
         }
+        return Integer.highestOneBit(n - 1) << 1;
     }
 
     private class TransactionIterator implements Iterator<Transaction> {
 
+        private int nextStripeIndex;
         private @Nullable TransactionEntry nextEntry;
         private @Nullable Transaction nextTransaction;
 
         @SuppressWarnings("method.invocation.invalid")
         private TransactionIterator() {
-            nextEntry = headEntry;
+            nextEntry = stripes[0].headEntry;
+            nextStripeIndex = 1;
             advance();
         }
 
@@ -108,30 +109,85 @@ class TransactionCollection implements Iterable<Transaction> {
 
         private void advance() {
             advanceOne();
-            while (nextTransaction == null && nextEntry != null) {
+            while (nextTransaction == null
+                    && (nextEntry != null || nextStripeIndex < stripes.length)) {
                 advanceOne();
             }
         }
 
         private void advanceOne() {
-            checkNotNull(nextEntry);
+            if (nextEntry == null) {
+                // move on to the next stripe
+                nextEntry = stripes[nextStripeIndex++].headEntry;
+            }
             nextEntry = nextEntry.nextEntry;
             nextTransaction = nextEntry == null ? null : nextEntry.getTransaction();
         }
     }
 
-    class TransactionEntry {
+    private static class Stripe {
+
+        private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
+
+        private final TransactionEntry headEntry = new TransactionEntry(this, null, queue);
+
+        // all structural changes are made under lock for simplicity
+        private final Object lock = new Object();
+
+        @GuardedBy("lock")
+        private TransactionEntry tailEntry = headEntry;
+
+        private TransactionEntry add(Transaction transaction) {
+            TransactionEntry newTailEntry = new TransactionEntry(this, transaction, queue);
+            synchronized (lock) {
+                expungeStaleEntries();
+                tailEntry.nextEntry = newTailEntry;
+                newTailEntry.prevEntry = tailEntry;
+                tailEntry = newTailEntry;
+            }
+            return newTailEntry;
+        }
+
+        private void expungeStaleEntriesIfNeeded() {
+            synchronized (lock) {
+                expungeStaleEntries();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void expungeStaleEntries() {
+            Reference<? extends Transaction> ref = queue.poll();
+            if (ref == null) {
+                return;
+            }
+            // drain the queue, since going to loop over and clean up everything anyways
+            while (queue.poll() != null) {
+            }
+            TransactionEntry currEntry = headEntry.nextEntry;
+            while (currEntry != null) {
+                if (currEntry.getTransaction() == null) {
+                    currEntry.removeUnderLock();
+                }
+                currEntry = currEntry.nextEntry;
+            }
+        }
+    }
+
+    static class TransactionEntry {
+
+        private final Stripe stripe;
 
         private final @Nullable WeakReference<Transaction> transactionRef; // only null for head
 
-        // prev is non-volatile since only accessed under lock
+        // prev is non-volatile since only accessed under stripe lock
         private @Nullable TransactionEntry prevEntry; // only null for head and removed
 
-        // next is volatile since accessed by iterator outside of lock
+        // next is volatile since accessed by iterator outside of stripe lock
         private volatile @Nullable TransactionEntry nextEntry;
 
-        private TransactionEntry(@Nullable Transaction transaction,
+        private TransactionEntry(Stripe stripe, @Nullable Transaction transaction,
                 ReferenceQueue<Transaction> queue) {
+            this.stripe = stripe;
             if (transaction == null) {
                 transactionRef = null;
             } else {
@@ -140,21 +196,26 @@ class TransactionCollection implements Iterable<Transaction> {
         }
 
         void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                TransactionEntry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
+            synchronized (stripe.lock) {
+                removeUnderLock();
+            }
+        }
+
+        // requires stripe lock
+        private void removeUnderLock() {
+            if (prevEntry == null) {
+                // already removed
+                return;
+            }
+            TransactionEntry localPrevEntry = checkNotNull(prevEntry);
+            localPrevEntry.nextEntry = nextEntry;
+            if (nextEntry != null) {
+                nextEntry.prevEntry = localPrevEntry;
+            }
+            if (this == stripe.tailEntry) {
+                stripe.tailEntry = localPrevEntry;
             }
+            prevEntry = null;
         }
 
         private @Nullable Transaction getTransaction() {
@@ -20,8 +20,10 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
@@ -38,19 +40,40 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class TransactionCollector {
+public class TransactionCollector implements TransactionCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
-    // back pressure on trace collection
-    private static final int PENDING_LIMIT = 100;
+    private static final int THREADS =
+            Math.max(1, Integer.getInteger("glowroot.traceCollector.threads", 2));
 
-    private final ExecutorService dedicatedExecutor;
+    // back pressure on trace collection, based on the estimated memory retained by transactions
+    // that are waiting for their traces to be collected
+    private static final long PENDING_LIMIT_BYTES =
+            Integer.getInteger("glowroot.traceCollector.pendingLimitMb", 64) * 1024L * 1024;
+
+    // rough estimates of the memory retained by a completed transaction, including the transient
+    // trace that is created from it
+    private static final int TRANSACTION_ESTIMATED_BYTES = 4096;
+    private static final int TRACE_ENTRY_ESTIMATED_BYTES = 512;
+
+    // trace collection for the same transaction (partial and completed) is serialized to make sure
+    // the completed trace is not overwritten by a partial trace that was created before it
+    private static final int TRACE_LOCK_STRIPES = 64;
+
+    private final ExecutorService workerExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    // not using copy on write set since it is O(n) to add and remove, which adds up quickly when
+    // there is a large backlog
+    private final Set<Transaction> pendingTransactions =
+            Sets.newSetFromMap(Maps.<Transaction, Boolean>newConcurrentMap());
+    private final Object[] traceLocks = new Object[TRACE_LOCK_STRIPES];
+
+    private final AtomicLong pendingEstimatedBytes = new AtomicLong();
+    private final AtomicLong droppedTraceCount = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -63,10 +86,13 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors.newSingleThreadExecutor(
+        for (int i = 0; i < TRACE_LOCK_STRIPES; i++) {
+            traceLocks[i] = new Object();
+        }
+        workerExecutor = Executors.newFixedThreadPool(THREADS,
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
-                        .setNameFormat("Glowroot-Trace-Collector")
+                        .setNameFormat("Glowroot-Trace-Collector-%d")
                         .build());
         configService.addConfigListener(new ConfigListener() {
             @Override
@@ -101,28 +127,54 @@ public class TransactionCollector {
         return pendingTransactions;
     }
 
+    @Override
+    public int getPendingTransactionCount() {
+        return pendingTransactions.size();
+    }
+
+    @Override
+    public long getPendingEstimatedBytes() {
+        return pendingEstimatedBytes.get();
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
-        dedicatedExecutor.shutdown();
-        if (!dedicatedExecutor.awaitTermination(10, SECONDS)) {
+        workerExecutor.shutdown();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
     void onCompletedTransaction(final Transaction transaction) {
+        final boolean slow = shouldStoreSlow(transaction);
+        boolean storeTrace = slow || shouldStoreError(transaction);
+        if (!storeTrace) {
+            // this needs to be called prior to handing the transaction to the aggregator, which
+            // recycles the trace entries once it is done with the transaction
+            transaction.setTraceEntriesRecyclable();
+        }
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        if (!storeTrace) {
             return;
         }
+        final long estimatedBytes = TRANSACTION_ESTIMATED_BYTES
+                + TRACE_ENTRY_ESTIMATED_BYTES * (long) transaction.getEntryCountEstimate();
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
+        if (transaction.isPartiallyStored()) {
+            pendingEstimatedBytes.addAndGet(estimatedBytes);
+        } else if (!tryAddPendingEstimatedBytes(estimatedBytes)) {
+            droppedTraceCount.getAndIncrement();
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+                    + " traces already waiting to be stored", pendingTransactions.size());
             return;
         }
         pendingTransactions.add(transaction);
@@ -132,16 +184,19 @@ public class TransactionCollector {
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
+        workerExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
                     Trace trace = TraceCreator.createCompletedTrace(transaction, slow);
-                    collector.collectTrace(trace);
+                    synchronized (getTraceLock(transaction)) {
+                        collector.collectTrace(trace);
+                    }
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 } finally {
                     pendingTransactions.remove(transaction);
+                    pendingEstimatedBytes.addAndGet(-estimatedBytes);
                 }
             }
         });
@@ -153,16 +208,37 @@ public class TransactionCollector {
         try {
             Trace trace = TraceCreator.createPartialTrace(transaction, clock.currentTimeMillis(),
                     ticker.read());
-            // one last check if transaction has completed
-            if (!transaction.isCompleted()) {
-                transaction.setPartiallyStored();
-                collector.collectTrace(trace);
+            synchronized (getTraceLock(transaction)) {
+                // one last check if transaction has completed
+                if (!transaction.isCompleted()) {
+                    transaction.setPartiallyStored();
+                    collector.collectTrace(trace);
+                }
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    // the limit check and the add need to be atomic, otherwise concurrently completing
+    // transactions can all pass the check and together exceed the limit
+    private boolean tryAddPendingEstimatedBytes(long estimatedBytes) {
+        while (true) {
+            long current = pendingEstimatedBytes.get();
+            if (current + estimatedBytes > PENDING_LIMIT_BYTES) {
+                return false;
+            }
+            if (pendingEstimatedBytes.compareAndSet(current, current + estimatedBytes)) {
+                return true;
+            }
+        }
+    }
+
+    private Object getTraceLock(Transaction transaction) {
+        return traceLocks[(System.identityHashCode(transaction) & Integer.MAX_VALUE)
+                % TRACE_LOCK_STRIPES];
+    }
+
     static boolean containsIgnoreCase(List<String> list, String test) {
         for (String item : list) {
             if (test.equalsIgnoreCase(item)) {
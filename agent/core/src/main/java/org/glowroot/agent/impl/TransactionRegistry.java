@@ -33,6 +33,10 @@ public class TransactionRegistry {
     private final FastThreadLocal</*@Nullable*/ ThreadContextImpl> currentThreadContext =
             new FastThreadLocal</*@Nullable*/ ThreadContextImpl>();
 
+    // free list of trace entries owned by the current thread (see TraceEntryPool)
+    private final FastThreadLocal</*@Nullable*/ TraceEntryPool> traceEntryPool =
+            new FastThreadLocal</*@Nullable*/ TraceEntryPool>();
+
     public TransactionRegistry() {
         TransactionRegistryHolder.transactionRegistry = castInitialized(this);
     }
@@ -51,6 +55,15 @@ public class TransactionRegistry {
         return currentThreadContext.getHolder();
     }
 
+    TraceEntryPool getTraceEntryPool() {
+        TraceEntryPool pool = traceEntryPool.get();
+        if (pool == null) {
+            pool = new TraceEntryPool();
+            traceEntryPool.set(pool);
+        }
+        return pool;
+    }
+
     TransactionEntry addTransaction(Transaction transaction) {
         return transactions.add(transaction);
     }
@@ -21,6 +21,7 @@ import com.google.common.base.Ticker;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.TransactionConfig;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.plugin.api.MessageSupplier;
@@ -31,6 +32,8 @@ import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 public class TransactionServiceImpl implements ConfigListener {
 
     private final TransactionRegistry transactionRegistry;
@@ -45,6 +48,8 @@ public class TransactionServiceImpl implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    private final TraceEntrySampler traceEntrySampler = new TraceEntrySampler();
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
@@ -90,6 +95,10 @@ public class TransactionServiceImpl implements ConfigListener {
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
+        long fullCaptureAfterNanos = traceEntrySampler.sample(transactionType, startTick);
+        if (fullCaptureAfterNanos != TraceEntrySampler.FULL_CAPTURE) {
+            transaction.deferEntryCapture(startTick + fullCaptureAfterNanos);
+        }
         TransactionEntry transactionEntry = transactionRegistry.addTransaction(transaction);
         transaction.setTransactionEntry(transactionEntry);
         threadContextHolder.set(transaction.getMainThreadContext());
@@ -112,7 +121,10 @@ public class TransactionServiceImpl implements ConfigListener {
     @Override
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
-        captureThreadStats = configService.getTransactionConfig().captureThreadStats();
+        TransactionConfig transactionConfig = configService.getTransactionConfig();
+        captureThreadStats = transactionConfig.captureThreadStats();
+        traceEntrySampler.updateConfig(transactionConfig.fullCaptureTransactionsPerSecond(),
+                MILLISECONDS.toNanos(transactionConfig.slowThresholdMillis()));
         maxAggregateQueriesPerType = advancedConfig.maxAggregateQueriesPerType();
         maxAggregateServiceCallsPerType = advancedConfig.maxAggregateServiceCallsPerType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
@@ -122,6 +134,8 @@ public class TransactionServiceImpl implements ConfigListener {
 
         @Override
         public void completed(Transaction transaction) {
+            traceEntrySampler.onCompletedTransaction(transaction.getTransactionType(),
+                    transaction.getDurationNanos());
             // send to trace collector before removing from trace registry so that trace
             // collector can cover the gap
             // (via TransactionCollectorImpl.getPendingCompleteTraces())
@@ -28,6 +28,7 @@ import java.util.jar.JarFile;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
@@ -60,12 +61,15 @@ import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.agent.weaving.ClassPreFilterMXBean;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -82,6 +86,8 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    private static final boolean WEAVING_CACHE = Boolean.getBoolean("glowroot.weaving.cache");
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -129,9 +135,14 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (WEAVING_CACHE) {
+            weavingCache = new WeavingCache(new File(agentDir, "weaving-cache.dat"),
+                    getWeavingCacheFingerprint(pluginCache));
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -198,7 +209,23 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, random, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector.getStats(),
+                "org.glowroot:type=StackTraceCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionCollector,
+                "org.glowroot:type=TransactionCollector");
+        if (weavingCache != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(weavingCache,
+                    "org.glowroot:type=WeavingCache");
+        }
+        lazyPlatformMBeanServer.lazyRegisterMBean(analyzedWorld,
+                "org.glowroot:type=AnalyzedWorld");
+        ClassPreFilterMXBean classPreFilter = weaver.getClassPreFilter();
+        if (classPreFilter != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(classPreFilter,
+                    "org.glowroot:type=ClassPreFilter");
+        }
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -225,6 +252,28 @@ public class AgentModule {
         }
     }
 
+    // woven bytes depend on the agent and plugin classes, so the weaving cache is discarded when
+    // any of these change
+    private static String getWeavingCacheFingerprint(PluginCache pluginCache) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Version.getVersion(Weaver.class));
+        sb.append(';');
+        sb.append(StandardSystemProperty.JAVA_VERSION.value());
+        for (PluginDescriptor pluginDescriptor : pluginCache.pluginDescriptors()) {
+            sb.append(';');
+            sb.append(pluginDescriptor.id());
+        }
+        for (File pluginJar : pluginCache.pluginJars()) {
+            sb.append(';');
+            sb.append(pluginJar.getName());
+            sb.append(':');
+            sb.append(pluginJar.length());
+            sb.append(':');
+            sb.append(pluginJar.lastModified());
+        }
+        return sb.toString();
+    }
+
     public ConfigService getConfigService() {
         return configService;
     }
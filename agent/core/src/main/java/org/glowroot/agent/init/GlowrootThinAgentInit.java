@@ -36,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralCollector;
+import org.glowroot.agent.central.CentralSpoolMXBean;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.AgentConfigUpdater;
 import org.glowroot.agent.config.ConfigService;
@@ -100,9 +101,14 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
                 Collector collector;
                 if (customCollector == null) {
                     centralCollector = new CentralCollector(properties,
-                            checkNotNull(collectorHost), agentModule.getLiveJvmService(),
-                            agentModule.getLiveWeavingService(),
+                            checkNotNull(collectorHost), agentDir,
+                            agentModule.getLiveJvmService(), agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater);
+                    CentralSpoolMXBean spoolStats = centralCollector.getSpoolStats();
+                    if (spoolStats != null) {
+                        agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(spoolStats,
+                                "org.glowroot:type=CentralSpool");
+                    }
                     collector = centralCollector;
                 } else {
                     collector = customCollector;
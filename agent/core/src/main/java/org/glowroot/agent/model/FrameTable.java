@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+// table of interned stack trace frames, shared across transactions, so that profiles can be stored
+// as arrays of frame ids instead of trees of StackTraceElement or name indexes
+//
+// applications that keep generating classes with unique names (e.g. proxies, cglib subclasses,
+// script classes) would grow a single table without bound, so once the current table reaches the
+// max size it is replaced by a new one (a new generation), profiles keep a reference to the table
+// they were created with, so the old table is released once those profiles are released
+public class FrameTable {
+
+    private static final int MAX_SIZE =
+            Integer.getInteger("glowroot.profile.frameTableMaxSize", 100000);
+
+    private static final Object currentLock = new Object();
+
+    private static volatile FrameTable current = new FrameTable();
+
+    private static final AtomicLong resetCount = new AtomicLong();
+
+    private final ConcurrentMap<StackTraceElement, Integer> frameIds = Maps.newConcurrentMap();
+
+    // names are interned too, since many frames share the same package name, class name, etc
+    @GuardedBy("lock")
+    private final Map<String, String> names = Maps.newHashMap();
+
+    private final Object lock = new Object();
+    // only written under lock, volatile so that size() does not need to acquire lock
+    private volatile int size;
+    // only written under lock, volatile so that the accessors do not need to acquire lock
+    private volatile Frame[] frames = new Frame[1024];
+
+    public int intern(StackTraceElement stackTraceElement) {
+        Integer frameId = frameIds.get(stackTraceElement);
+        if (frameId != null) {
+            return frameId;
+        }
+        synchronized (lock) {
+            frameId = frameIds.get(stackTraceElement);
+            if (frameId != null) {
+                return frameId;
+            }
+            Frame[] frames = this.frames;
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+            }
+            int newFrameId = size;
+            size = newFrameId + 1;
+            frames[newFrameId] = createFrame(stackTraceElement);
+            this.frames = frames;
+            // the frame is added to frames before its id is published, so any thread that obtains
+            // the id will also see the frame
+            frameIds.put(stackTraceElement, newFrameId);
+            return newFrameId;
+        }
+    }
+
+    public StackTraceElement getStackTraceElement(int frameId) {
+        return frames[frameId].stackTraceElement;
+    }
+
+    String getPackageName(int frameId) {
+        return frames[frameId].packageName;
+    }
+
+    String getClassName(int frameId) {
+        return frames[frameId].className;
+    }
+
+    String getMethodName(int frameId) {
+        return frames[frameId].methodName;
+    }
+
+    String getFileName(int frameId) {
+        return frames[frameId].fileName;
+    }
+
+    int getLineNumber(int frameId) {
+        return frames[frameId].stackTraceElement.getLineNumber();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public static FrameTable getCurrent() {
+        return getCurrent(MAX_SIZE);
+    }
+
+    @VisibleForTesting
+    static FrameTable getCurrent(int maxSize) {
+        FrameTable frameTable = current;
+        if (frameTable.size < maxSize) {
+            return frameTable;
+        }
+        synchronized (currentLock) {
+            frameTable = current;
+            if (frameTable.size >= maxSize) {
+                frameTable = new FrameTable();
+                current = frameTable;
+                resetCount.getAndIncrement();
+            }
+            return frameTable;
+        }
+    }
+
+    public static int getCurrentSize() {
+        return current.size;
+    }
+
+    public static long getResetCount() {
+        return resetCount.get();
+    }
+
+    @GuardedBy("lock")
+    private Frame createFrame(StackTraceElement stackTraceElement) {
+        // same name decomposition as org.glowroot.common.model.MutableProfile
+        String fullClassName = stackTraceElement.getClassName();
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
+        }
+        String methodName = MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
+                "<null method name>");
+        String fileName = Strings.nullToEmpty(stackTraceElement.getFileName());
+        return new Frame(stackTraceElement, internName(packageName), internName(className),
+                internName(methodName), internName(fileName));
+    }
+
+    @GuardedBy("lock")
+    private String internName(String name) {
+        String existing = names.get(name);
+        if (existing == null) {
+            names.put(name, name);
+            return name;
+        }
+        return existing;
+    }
+
+    private static class Frame {
+
+        private final StackTraceElement stackTraceElement;
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+
+        private Frame(StackTraceElement stackTraceElement, String packageName, String className,
+                String methodName, String fileName) {
+            this.stackTraceElement = stackTraceElement;
+            this.packageName = packageName;
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+        }
+    }
+}
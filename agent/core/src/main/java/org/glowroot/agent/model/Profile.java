@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,49 +18,96 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.Maps;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
 
+// the call tree is stored as parallel primitive arrays indexed by node, where each node is
+// identified by its frame id (from the shared frame table) and its leaf thread state (which is
+// only set for leaf nodes), this takes a small fraction of the memory of an object tree
 public class Profile {
 
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte NO_LEAF_THREAD_STATE = -1;
+
+    private static final Thread.State[] threadStates = Thread.State.values();
+
+    private final FrameTable frameTable;
+
     private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private int[] frameIds = new int[INITIAL_CAPACITY];
+    // Thread.State ordinal, or NO_LEAF_THREAD_STATE
+    @GuardedBy("lock")
+    private byte[] leafThreadStates = new byte[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] parentIndexes = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int[] firstChildIndexes = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private int[] nextSiblingIndexes = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int[] sampleCounts = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int nodeCount;
+    @GuardedBy("lock")
+    private int firstRootIndex = -1;
+
     @GuardedBy("lock")
     private long sampleCount;
 
     @VisibleForTesting
-    public Profile() {}
+    public Profile() {
+        this(FrameTable.getCurrent());
+    }
 
+    @VisibleForTesting
+    Profile(FrameTable frameTable) {
+        this.frameTable = frameTable;
+    }
+
+    // walks the node arrays in pre-order (same as ProtoBuilder), merging each node directly into
+    // the destination profile instead of going through an intermediate proto
     public void mergeInto(MutableProfile profile) {
+        MutableProfile.NodeMerger nodeMerger = profile.newNodeMerger();
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
+            int index = firstRootIndex;
+            int depth = 0;
+            while (index != -1) {
+                int frameId = frameIds[index];
+                nodeMerger.mergeNode(depth, frameTable.getPackageName(frameId),
+                        frameTable.getClassName(frameId), frameTable.getMethodName(frameId),
+                        frameTable.getFileName(frameId), frameTable.getLineNumber(frameId),
+                        getLeafThreadState(leafThreadStates[index]), sampleCounts[index]);
+                if (firstChildIndexes[index] != -1) {
+                    index = firstChildIndexes[index];
+                    depth++;
+                    continue;
+                }
+                while (index != -1 && nextSiblingIndexes[index] == -1) {
+                    index = parentIndexes[index];
+                    depth--;
+                }
+                if (index != -1) {
+                    index = nextSiblingIndexes[index];
+                }
             }
         }
     }
 
     public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return new ProtoBuilder().build();
         }
     }
 
@@ -78,30 +125,166 @@ public class Profile {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
             Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            byte leafThreadState =
+                    threadState == null ? NO_LEAF_THREAD_STATE : (byte) threadState.ordinal();
+            int parentIndex = -1;
+            boolean lookingForMatch = true;
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                int frameId = frameTable.intern(stackTrace[i]);
+                byte nodeLeafThreadState = i == 0 ? leafThreadState : NO_LEAF_THREAD_STATE;
+                int nodeIndex = -1;
+                if (lookingForMatch) {
+                    nodeIndex = findChild(parentIndex, frameId, nodeLeafThreadState);
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                if (nodeIndex == -1) {
+                    // once a new node is added, no need to look for matches under it
+                    lookingForMatch = false;
+                    nodeIndex = addChild(parentIndex, frameId, nodeLeafThreadState);
+                }
+                sampleCounts[nodeIndex]++;
+                parentIndex = nodeIndex;
             }
             sampleCount++;
         }
     }
 
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    @GuardedBy("lock")
+    private int findChild(int parentIndex, int frameId, byte leafThreadState) {
+        int index = parentIndex == -1 ? firstRootIndex : firstChildIndexes[parentIndex];
+        while (index != -1) {
+            if (frameIds[index] == frameId && leafThreadStates[index] == leafThreadState) {
+                return index;
+            }
+            index = nextSiblingIndexes[index];
+        }
+        return -1;
+    }
+
+    @GuardedBy("lock")
+    private int addChild(int parentIndex, int frameId, byte leafThreadState) {
+        if (nodeCount == frameIds.length) {
+            int capacity = frameIds.length * 2;
+            frameIds = Arrays.copyOf(frameIds, capacity);
+            leafThreadStates = Arrays.copyOf(leafThreadStates, capacity);
+            parentIndexes = Arrays.copyOf(parentIndexes, capacity);
+            firstChildIndexes = Arrays.copyOf(firstChildIndexes, capacity);
+            nextSiblingIndexes = Arrays.copyOf(nextSiblingIndexes, capacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+        }
+        int index = nodeCount++;
+        frameIds[index] = frameId;
+        leafThreadStates[index] = leafThreadState;
+        parentIndexes[index] = parentIndex;
+        firstChildIndexes[index] = -1;
+        nextSiblingIndexes[index] = -1;
+        sampleCounts[index] = 0;
+        // append to the end of the sibling list to preserve the order that nodes were first seen
+        int siblingIndex = parentIndex == -1 ? firstRootIndex : firstChildIndexes[parentIndex];
+        if (siblingIndex == -1) {
+            if (parentIndex == -1) {
+                firstRootIndex = index;
+            } else {
+                firstChildIndexes[parentIndex] = index;
+            }
+        } else {
+            while (nextSiblingIndexes[siblingIndex] != -1) {
+                siblingIndex = nextSiblingIndexes[siblingIndex];
+            }
+            nextSiblingIndexes[siblingIndex] = index;
+        }
+        return index;
+    }
+
+    private static LeafThreadState getLeafThreadState(byte leafThreadState) {
+        if (leafThreadState == NO_LEAF_THREAD_STATE) {
+            return LeafThreadState.NONE;
+        }
+        switch (threadStates[leafThreadState]) {
+            case NEW:
+                return LeafThreadState.NEW;
+            case RUNNABLE:
+                return LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return LeafThreadState.BLOCKED;
+            case WAITING:
+                return LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return LeafThreadState.TERMINATED;
+            default:
+                return LeafThreadState.NONE;
+        }
+    }
+
+    // walks the node arrays in pre-order (using parent indexes instead of a stack or recursion),
+    // building the name tables as it goes
+    private class ProtoBuilder {
+
+        private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+        private final List<String> packageNames = Lists.newArrayList();
+        private final List<String> classNames = Lists.newArrayList();
+        private final List<String> methodNames = Lists.newArrayList();
+        private final List<String> fileNames = Lists.newArrayList();
+
+        @GuardedBy("lock")
+        private org.glowroot.wire.api.model.ProfileOuterClass.Profile build() {
+            List<ProfileNode> nodes = Lists.newArrayListWithCapacity(nodeCount);
+            int index = firstRootIndex;
+            int depth = 0;
+            while (index != -1) {
+                int frameId = frameIds[index];
+                nodes.add(ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(getNameIndex(frameTable.getPackageName(frameId),
+                                packageNameIndexes, packageNames))
+                        .setClassNameIndex(getNameIndex(frameTable.getClassName(frameId),
+                                classNameIndexes, classNames))
+                        .setMethodNameIndex(getNameIndex(frameTable.getMethodName(frameId),
+                                methodNameIndexes, methodNames))
+                        .setFileNameIndex(getNameIndex(frameTable.getFileName(frameId),
+                                fileNameIndexes, fileNames))
+                        .setLineNumber(frameTable.getLineNumber(frameId))
+                        .setLeafThreadState(getLeafThreadState(leafThreadStates[index]))
+                        .setSampleCount(sampleCounts[index])
+                        .build());
+                if (firstChildIndexes[index] != -1) {
+                    index = firstChildIndexes[index];
+                    depth++;
+                    continue;
+                }
+                while (index != -1 && nextSiblingIndexes[index] == -1) {
+                    index = parentIndexes[index];
+                    depth--;
+                }
+                if (index != -1) {
+                    index = nextSiblingIndexes[index];
+                }
+            }
+            return org.glowroot.wire.api.model.ProfileOuterClass.Profile.newBuilder()
+                    .addAllPackageName(packageNames)
+                    .addAllClassName(classNames)
+                    .addAllMethodName(methodNames)
+                    .addAllFileName(fileNames)
+                    .addAllNode(nodes)
+                    .build();
+        }
+
+        private int getNameIndex(String name, Map<String, Integer> nameIndexes,
+                List<String> names) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndexes.put(name, index);
+            }
+            return index;
         }
     }
 }
@@ -25,6 +25,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 class Accessor {
 
+    // avoids allocating an empty varargs array on every method invocation
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
@@ -59,6 +62,16 @@ class Accessor {
         this.field = null;
     }
 
+    @Nullable
+    Method getMethod() {
+        return method;
+    }
+
+    @Nullable
+    Field getField() {
+        return field;
+    }
+
     Class<?> getValueType() {
         switch (accessorType) {
             case METHOD:
@@ -82,7 +95,7 @@ class Accessor {
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
-                return method.invoke(object);
+                return method.invoke(object, EMPTY_ARGS);
             case FIELD:
                 checkNotNull(field);
                 return field.get(object);
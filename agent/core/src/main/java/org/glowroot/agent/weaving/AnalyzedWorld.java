@@ -17,20 +17,24 @@ package org.glowroot.agent.weaving;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
@@ -49,10 +53,14 @@ import org.glowroot.agent.config.InstrumentationConfig;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.util.Styles;
 
-public class AnalyzedWorld {
+public class AnalyzedWorld implements AnalyzedWorldMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
+    // 0 means unbounded
+    private static final long MAX_SIZE_BYTES =
+            Integer.getInteger("glowroot.weaving.analyzedWorldMaxSizeMb", 64) * 1024L * 1024;
+
     private static final Method findLoadedClassMethod;
 
     static {
@@ -74,27 +82,46 @@ public class AnalyzedWorld {
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    //
+    // lookups do not lock, stale keys are expunged when new class loaders are added
+    private final ConcurrentMap<LoaderKey, LoaderWorld> world =
+            new ConcurrentHashMap<LoaderKey, LoaderWorld>();
+
+    private final ReferenceQueue<ClassLoader> staleLoaderKeys = new ReferenceQueue<ClassLoader>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
-    // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
-    // the weakness on the Optional instance which is not strongly referenced from anywhere and
-    // therefore the keys will most likely be cleared while their class loaders are still being used
+    // a weak reference to null cannot be distinguished from a cleared weak reference
+    private final LoaderWorld bootstrapLoaderWorld = new LoaderWorld();
+
+    // class names (including parameter, return and exception types) are shared across analyzed
+    // classes, this is cleared on eviction since it would otherwise retain evicted names
     //
     // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
-    private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
-            new ConcurrentHashMap<String, AnalyzedClass>();
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    // subset of estimatedBytes that is retained by classes that are not evictable
+    private final AtomicLong nonEvictableBytes = new AtomicLong();
+    private final AtomicLong evictedEntryCount = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
 
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
+    private final long maxSizeBytes;
 
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes) {
+        this(advisors, shimTypes, mixinTypes, MAX_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, long maxSizeBytes) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        this.maxSizeBytes = maxSizeBytes;
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -107,9 +134,9 @@ public class AnalyzedWorld {
     }
 
     public void removeClasses(List<Class<?>> classes) {
-        for (Map<String, AnalyzedClass> map : getWorldValues()) {
+        for (LoaderWorld loaderWorld : world.values()) {
             for (Class<?> clazz : classes) {
-                map.remove(clazz.getName());
+                loaderWorld.remove(clazz.getName());
             }
         }
         for (Class<?> clazz : classes) {
@@ -118,14 +145,76 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        List<ClassLoader> loaders = Lists.newArrayList();
+        for (LoaderKey loaderKey : world.keySet()) {
+            ClassLoader loader = loaderKey.get();
+            if (loader != null) {
+                loaders.add(loader);
+            }
+        }
+        return ImmutableList.copyOf(loaders);
+    }
+
+    @Override
+    public int getClassLoaderCount() {
+        return world.size();
+    }
+
+    @Override
+    public long getEntryCount() {
+        long entryCount = bootstrapLoaderWorld.analyzedClasses.size();
+        for (LoaderWorld loaderWorld : world.values()) {
+            entryCount += loaderWorld.analyzedClasses.size();
+        }
+        return entryCount;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    @Override
+    public long getEvictedEntryCount() {
+        return evictedEntryCount.get();
+    }
+
+    @Override
+    public Map<String, Long> getEntryCountPerClassLoader() {
+        Map<String, Long> entryCounts = Maps.newTreeMap();
+        entryCounts.put("bootstrap", (long) bootstrapLoaderWorld.analyzedClasses.size());
+        for (Entry<LoaderKey, LoaderWorld> entry : world.entrySet()) {
+            ClassLoader loader = entry.getKey().get();
+            if (loader != null) {
+                entryCounts.put(getDisplayName(loader),
+                        (long) entry.getValue().analyzedClasses.size());
+            }
+        }
+        return entryCounts;
+    }
+
+    @Override
+    public Map<String, Long> getEstimatedBytesPerClassLoader() {
+        Map<String, Long> estimatedBytesPerClassLoader = Maps.newTreeMap();
+        estimatedBytesPerClassLoader.put("bootstrap", bootstrapLoaderWorld.estimatedBytes.get());
+        for (Entry<LoaderKey, LoaderWorld> entry : world.entrySet()) {
+            ClassLoader loader = entry.getKey().get();
+            if (loader != null) {
+                estimatedBytesPerClassLoader.put(getDisplayName(loader),
+                        entry.getValue().estimatedBytes.get());
+            }
         }
+        return estimatedBytesPerClassLoader;
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
-        loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        getAnalyzedClasses(loader).put(analyzedClass);
+        evictIfNecessary();
+    }
+
+    String intern(String name) {
+        String existingName = names.putIfAbsent(name, name);
+        return existingName == null ? name : existingName;
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -211,15 +300,13 @@ public class AnalyzedWorld {
     private AnalyzedClass getOrCreateAnalyzedClass(String className, @Nullable ClassLoader loader)
             throws ClassNotFoundException, IOException {
         ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader);
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses =
-                getAnalyzedClasses(analyzedClassLoader);
+        LoaderWorld loaderAnalyzedClasses = getAnalyzedClasses(analyzedClassLoader);
         AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
         if (analyzedClass == null) {
             if (loader != analyzedClassLoader) {
                 // this class may have been looked up and stored previously in loader's map, and
                 // then subsequently loaded into it's true class loader (analyzedClassLoader)
-                ConcurrentMap<String, AnalyzedClass> currLoaderAnalyzedClasses =
-                        getAnalyzedClasses(loader);
+                LoaderWorld currLoaderAnalyzedClasses = getAnalyzedClasses(loader);
                 analyzedClass = currLoaderAnalyzedClasses.get(className);
                 if (analyzedClass != null) {
                     analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
@@ -235,23 +322,59 @@ public class AnalyzedWorld {
         return analyzedClass;
     }
 
-    private AnalyzedClass putAnalyzedClass(
-            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
+    private AnalyzedClass putAnalyzedClass(LoaderWorld loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
-        AnalyzedClass existingAnalyzedClass =
-                loaderAnalyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
+        AnalyzedClass existingAnalyzedClass = loaderAnalyzedClasses.putIfAbsent(analyzedClass);
         if (existingAnalyzedClass != null) {
             // (rare) concurrent AnalyzedClass creation, use the one that made it into the map
             return existingAnalyzedClass;
         }
+        evictIfNecessary();
         return analyzedClass;
     }
 
+    // evicted classes are re-analyzed on demand (see getOrCreateAnalyzedClass()), so only classes
+    // whose re-analysis is guaranteed to produce the same result are evicted, which excludes
+    // classes with matched advice, shims or mixins since those may not be re-creatable if their
+    // .class file is not available via ClassLoader.getResource() (see createAnalyzedClassPlanB())
+    private void evictIfNecessary() {
+        if (maxSizeBytes == 0 || estimatedBytes.get() <= maxSizeBytes
+                || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (nonEvictableBytes.get() >= maxSizeBytes) {
+                // no amount of eviction can get back under the max size, so don't keep re-scanning
+                // all of the (non-evictable) entries every time a class is analyzed
+                return;
+            }
+            names.clear();
+            // if the non-evictable classes alone exceed the normal target, then stop as soon as
+            // there is nothing left to evict
+            long targetBytes = Math.max(maxSizeBytes * 3 / 4, nonEvictableBytes.get());
+            List<LoaderWorld> loaderWorlds = Lists.newArrayList(world.values());
+            loaderWorlds.add(bootstrapLoaderWorld);
+            for (LoaderWorld loaderWorld : loaderWorlds) {
+                for (AnalyzedClass analyzedClass : loaderWorld.analyzedClasses.values()) {
+                    if (estimatedBytes.get() <= targetBytes) {
+                        return;
+                    }
+                    if (isEvictable(analyzedClass) && loaderWorld.remove(analyzedClass)) {
+                        evictedEntryCount.getAndIncrement();
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
-        for (Entry<String, AnalyzedClass> innerEntry : loaderAnalyzedClasses.entrySet()) {
+        LoaderWorld loaderAnalyzedClasses = getAnalyzedClasses(loader);
+        for (Entry<String, AnalyzedClass> innerEntry :
+                loaderAnalyzedClasses.analyzedClasses.entrySet()) {
             if (innerEntry.getValue().hasReweavableAdvice()) {
                 try {
                     classes.add(Class.forName(innerEntry.getKey(), false, loader));
@@ -395,26 +518,65 @@ public class AnalyzedWorld {
         return analyzedClass;
     }
 
-    private ConcurrentMap<String, AnalyzedClass> getAnalyzedClasses(@Nullable ClassLoader loader) {
+    private LoaderWorld getAnalyzedClasses(@Nullable ClassLoader loader) {
         if (loader == null) {
             return bootstrapLoaderWorld;
-        } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
-                return map;
+        }
+        LoaderWorld loaderWorld = world.get(new LoaderKey(loader, null));
+        if (loaderWorld != null) {
+            return loaderWorld;
+        }
+        expungeStaleLoaderKeys();
+        loaderWorld = new LoaderWorld();
+        LoaderWorld existingLoaderWorld =
+                world.putIfAbsent(new LoaderKey(loader, staleLoaderKeys), loaderWorld);
+        return existingLoaderWorld == null ? loaderWorld : existingLoaderWorld;
+    }
+
+    private void expungeStaleLoaderKeys() {
+        Reference<? extends ClassLoader> staleLoaderKey;
+        while ((staleLoaderKey = staleLoaderKeys.poll()) != null) {
+            LoaderWorld loaderWorld = world.remove(staleLoaderKey);
+            if (loaderWorld != null) {
+                estimatedBytes.addAndGet(-loaderWorld.estimatedBytes.get());
+                nonEvictableBytes.addAndGet(-loaderWorld.nonEvictableBytes.get());
             }
         }
     }
 
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+    private static boolean isEvictable(AnalyzedClass analyzedClass) {
+        return analyzedClass.analyzedMethods().isEmpty() && analyzedClass.shimTypes().isEmpty()
+                && analyzedClass.mixinTypes().isEmpty();
+    }
+
+    // this is only an estimate of the retained size, since names are shared (see intern())
+    private static long estimateBytes(AnalyzedClass analyzedClass) {
+        // map entry, analyzed class instance and its immutable lists
+        long bytes = 160 + estimateBytes(analyzedClass.name());
+        bytes += 8 * analyzedClass.interfaceNames().size();
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            bytes += 120 + 8 * analyzedMethod.parameterTypes().size()
+                    + 8 * analyzedMethod.exceptions().size() + 8 * analyzedMethod.advisors().size()
+                    + 8 * analyzedMethod.declaredOnlyAdvisors().size();
+            String signature = analyzedMethod.signature();
+            if (signature != null) {
+                bytes += estimateBytes(signature);
+            }
         }
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            bytes += 56 + 8 * publicFinalMethod.parameterTypes().size();
+        }
+        bytes += 8 * analyzedClass.shimTypes().size() + 8 * analyzedClass.mixinTypes().size();
+        return bytes;
+    }
+
+    private static long estimateBytes(String str) {
+        return 40 + 2 * str.length();
+    }
+
+    private static String getDisplayName(ClassLoader loader) {
+        return loader.getClass().getName() + "@"
+                + Integer.toHexString(System.identityHashCode(loader));
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
@@ -550,6 +712,98 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private class LoaderWorld {
+
+        // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
+        private final ConcurrentMap<String, AnalyzedClass> analyzedClasses =
+                new ConcurrentHashMap<String, AnalyzedClass>();
+
+        private final AtomicLong estimatedBytes = new AtomicLong();
+        private final AtomicLong nonEvictableBytes = new AtomicLong();
+
+        private @Nullable AnalyzedClass get(String className) {
+            return analyzedClasses.get(className);
+        }
+
+        private void put(AnalyzedClass analyzedClass) {
+            AnalyzedClass existingAnalyzedClass =
+                    analyzedClasses.put(analyzedClass.name(), analyzedClass);
+            if (existingAnalyzedClass != null) {
+                subtractEstimatedBytes(existingAnalyzedClass);
+            }
+            addEstimatedBytes(analyzedClass);
+        }
+
+        private @Nullable AnalyzedClass putIfAbsent(AnalyzedClass analyzedClass) {
+            AnalyzedClass existingAnalyzedClass =
+                    analyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
+            if (existingAnalyzedClass == null) {
+                addEstimatedBytes(analyzedClass);
+            }
+            return existingAnalyzedClass;
+        }
+
+        private void remove(String className) {
+            AnalyzedClass analyzedClass = analyzedClasses.remove(className);
+            if (analyzedClass != null) {
+                subtractEstimatedBytes(analyzedClass);
+            }
+        }
+
+        private boolean remove(AnalyzedClass analyzedClass) {
+            if (analyzedClasses.remove(analyzedClass.name(), analyzedClass)) {
+                subtractEstimatedBytes(analyzedClass);
+                return true;
+            }
+            return false;
+        }
+
+        private void addEstimatedBytes(AnalyzedClass analyzedClass) {
+            addEstimatedBytes(estimateBytes(analyzedClass), isEvictable(analyzedClass));
+        }
+
+        private void subtractEstimatedBytes(AnalyzedClass analyzedClass) {
+            addEstimatedBytes(-estimateBytes(analyzedClass), isEvictable(analyzedClass));
+        }
+
+        private void addEstimatedBytes(long delta, boolean evictable) {
+            estimatedBytes.addAndGet(delta);
+            AnalyzedWorld.this.estimatedBytes.addAndGet(delta);
+            if (!evictable) {
+                nonEvictableBytes.addAndGet(delta);
+                AnalyzedWorld.this.nonEvictableBytes.addAndGet(delta);
+            }
+        }
+    }
+
+    // identity-based weak key, lookups use a key without a reference queue
+    private static class LoaderKey extends WeakReference<ClassLoader> {
+
+        private final int hashCode;
+
+        private LoaderKey(ClassLoader loader, @Nullable ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hashCode = System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof LoaderKey)) {
+                return false;
+            }
+            ClassLoader loader = get();
+            return loader != null && loader == ((LoaderKey) obj).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
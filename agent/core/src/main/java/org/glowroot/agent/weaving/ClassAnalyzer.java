@@ -36,6 +36,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.PolyNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.immutables.value.Value;
 import org.objectweb.asm.ClassReader;
@@ -61,6 +62,8 @@ class ClassAnalyzer {
     private final ThinClass thinClass;
     private final String className;
 
+    private final AnalyzedWorld analyzedWorld;
+
     private final ImmutableAnalyzedClass.Builder analyzedClassBuilder;
     private final ImmutableList<AdviceMatcher> adviceMatchers;
     private final ImmutableList<AnalyzedClass> superAnalyzedClasses;
@@ -83,9 +86,10 @@ class ClassAnalyzer {
             List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
             @Nullable CodeSource codeSource, byte[] classBytes) {
         this.thinClass = thinClass;
-        ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
+        this.analyzedWorld = analyzedWorld;
+        ImmutableList<String> interfaceNames = internNames(thinClass.interfaces());
         className = ClassNames.fromInternalName(thinClass.name());
-        String superClassName = ClassNames.fromInternalName(thinClass.superName());
+        String superClassName = internName(thinClass.superName());
         analyzedClassBuilder = ImmutableAnalyzedClass.builder()
                 .modifiers(thinClass.access())
                 .name(className)
@@ -193,14 +197,18 @@ class ClassAnalyzer {
         return checkNotNull(methodsThatOnlyNowFulfillAdvice);
     }
 
+    ImmutableList<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     @RequiresNonNull("bridgeTargetAdvisors")
     private List<Advice> analyzeMethod(ThinMethod thinMethod) {
         List<Type> parameterTypes = Arrays.asList(Type.getArgumentTypes(thinMethod.desc()));
         if (Modifier.isFinal(thinMethod.access()) && Modifier.isPublic(thinMethod.access())) {
             ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
-                    .name(thinMethod.name());
+                    .name(analyzedWorld.intern(thinMethod.name()));
             for (Type parameterType : parameterTypes) {
-                builder.addParameterTypes(parameterType.getClassName());
+                builder.addParameterTypes(analyzedWorld.intern(parameterType.getClassName()));
             }
             analyzedClassBuilder.addPublicFinalMethods(builder.build());
         }
@@ -215,15 +223,15 @@ class ClassAnalyzer {
             return ImmutableList.of();
         }
         ImmutableAnalyzedMethod.Builder builder = ImmutableAnalyzedMethod.builder();
-        builder.name(thinMethod.name());
+        builder.name(analyzedWorld.intern(thinMethod.name()));
         for (Type parameterType : parameterTypes) {
-            builder.addParameterTypes(parameterType.getClassName());
+            builder.addParameterTypes(analyzedWorld.intern(parameterType.getClassName()));
         }
-        builder.returnType(returnType.getClassName())
+        builder.returnType(analyzedWorld.intern(returnType.getClassName()))
                 .modifiers(thinMethod.access())
                 .signature(thinMethod.signature());
         for (String exception : thinMethod.exceptions()) {
-            builder.addExceptions(ClassNames.fromInternalName(exception));
+            builder.addExceptions(internName(exception));
         }
         List<Advice> declaredOnlyMatchingAdvisors = Lists.newArrayList();
         for (Iterator<Advice> i = matchingAdvisors.iterator(); i.hasNext();) {
@@ -417,6 +425,21 @@ class ClassAnalyzer {
         }
     }
 
+    private @PolyNull String internName(@PolyNull String internalName) {
+        if (internalName == null) {
+            return null;
+        }
+        return analyzedWorld.intern(ClassNames.fromInternalName(internalName));
+    }
+
+    private ImmutableList<String> internNames(List<String> internalNames) {
+        List<String> names = Lists.newArrayList();
+        for (String internalName : internalNames) {
+            names.add(internName(internalName));
+        }
+        return ImmutableList.copyOf(names);
+    }
+
     private static void addToMatchingAdvisorsIfTargetClassNameMatch(Set<Advice> matchingAdvisors,
             List<Advice> advisors, Set<String> superClassNames) {
         for (Advice advice : advisors) {
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Bytes;
+import org.objectweb.asm.ClassReader;
+
+// rejects classes that no advice, shim or mixin can match, using only the class header and the raw
+// constant pool bytes, so that these classes can skip ASM parsing and ClassAnalyzer altogether
+//
+// a class is only rejected if nothing can match its own name or annotations, and all of its direct
+// super types were themselves rejected (which by induction means that nothing in its entire type
+// hierarchy can contribute advice, shims or mixins)
+//
+// rejections are keyed by the class loader that defined the rejected class, and a rejection in a
+// parent loader is only trusted when every loader delegated through on the way there is known to be
+// parent-first (the system class loader and its ancestors), since a child-first loader (e.g. webapp
+// or OSGi) can define its own class with the same name as one in its parent, in which case the
+// super type cannot be assumed to be rejected
+//
+// rejected classes are not added to the AnalyzedWorld, if they are needed later on (e.g. as the
+// super class of a class that is woven) they are analyzed lazily by the AnalyzedWorld, same as
+// classes that were loaded prior to the agent
+class ClassPreFilter implements ClassPreFilterMXBean {
+
+    private static final byte[] INSTRUMENTATION_MARKER =
+            "Lorg/glowroot/agent/api/Instrument".getBytes(Charsets.UTF_8);
+
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    private final ImmutableList<ClassLoader> parentFirstLoaders;
+
+    // compiled matcher is rebuilt (and rejected classes are forgotten) whenever advisors change
+    private volatile @Nullable CompiledMatcher compiledMatcher;
+
+    private final AtomicLong rejectedClassCount = new AtomicLong();
+    private final AtomicLong passedClassCount = new AtomicLong();
+
+    ClassPreFilter(List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        parentFirstLoaders = getParentFirstLoaders();
+    }
+
+    @Override
+    public long getRejectedClassCount() {
+        return rejectedClassCount.get();
+    }
+
+    @Override
+    public long getPassedClassCount() {
+        return passedClassCount.get();
+    }
+
+    boolean reject(byte[] classBytes, List<Advice> advisors, @Nullable ClassLoader loader) {
+        CompiledMatcher compiledMatcher = getCompiledMatcher(advisors);
+        if (compiledMatcher.matchesEverything) {
+            passedClassCount.getAndIncrement();
+            return false;
+        }
+        // ClassReader constructor only scans the constant pool offsets
+        ClassReader cr = new ClassReader(classBytes);
+        String internalName = cr.getClassName();
+        if (compiledMatcher.isPossibleMatch(internalName, classBytes)
+                || !compiledMatcher.isRejected(cr.getSuperName(), loader)) {
+            passedClassCount.getAndIncrement();
+            return false;
+        }
+        for (String interfaceName : cr.getInterfaces()) {
+            if (!compiledMatcher.isRejected(interfaceName, loader)) {
+                passedClassCount.getAndIncrement();
+                return false;
+            }
+        }
+        compiledMatcher.addRejected(internalName, loader);
+        rejectedClassCount.getAndIncrement();
+        return true;
+    }
+
+    private CompiledMatcher getCompiledMatcher(List<Advice> advisors) {
+        CompiledMatcher compiledMatcher = this.compiledMatcher;
+        if (compiledMatcher == null || compiledMatcher.advisors != advisors) {
+            // advisors only change on reweave
+            compiledMatcher = new CompiledMatcher(advisors, shimTypes, mixinTypes,
+                    parentFirstLoaders);
+            this.compiledMatcher = compiledMatcher;
+        }
+        return compiledMatcher;
+    }
+
+    private static ImmutableList<ClassLoader> getParentFirstLoaders() {
+        ImmutableList.Builder<ClassLoader> loaders = ImmutableList.builder();
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        while (loader != null) {
+            loaders.add(loader);
+            loader = loader.getParent();
+        }
+        return loaders.build();
+    }
+
+    // returns literal prefix of the class name pattern (before any wildcard), or empty string if
+    // the pattern is a full regex
+    private static List<String> getLiteralPrefixes(String maybePattern) {
+        if (maybePattern.startsWith("/") && maybePattern.endsWith("/")) {
+            return ImmutableList.of("");
+        }
+        ImmutableList.Builder<String> prefixes = ImmutableList.builder();
+        for (String part : maybePattern.split("\\|")) {
+            int index = part.indexOf('*');
+            prefixes.add(index == -1 ? part : part.substring(0, index));
+        }
+        return prefixes.build();
+    }
+
+    private static class CompiledMatcher {
+
+        private final List<Advice> advisors;
+
+        // class names (internal form) that can be matched exactly
+        private final Set<String> classNames = Sets.newHashSet();
+        // literal prefixes (internal form) of class name patterns, the patterns are only evaluated
+        // for class names that start with one of these prefixes
+        private final PrefixTrie classNamePatternPrefixes = new PrefixTrie();
+        private final List<Pattern> classNamePatterns = Lists.newArrayList();
+        // advice that is not restricted by class name can still be restricted by annotation, in
+        // which case the (prefix of the) annotation descriptor must be present in the constant
+        // pool
+        private final List<byte[]> annotationHints = Lists.newArrayList();
+        private final boolean matchesEverything;
+
+        private final List<ClassLoader> parentFirstLoaders;
+
+        private final Map<ClassLoader, Set<String>> rejectedClassNames = Collections
+                .synchronizedMap(new WeakHashMap<ClassLoader, Set<String>>());
+        private final Set<String> bootstrapRejectedClassNames =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private CompiledMatcher(List<Advice> advisors, List<ShimType> shimTypes,
+                List<MixinType> mixinTypes, List<ClassLoader> parentFirstLoaders) {
+            this.advisors = advisors;
+            this.parentFirstLoaders = parentFirstLoaders;
+            boolean matchesEverything = false;
+            for (Advice advice : advisors) {
+                Pattern pattern = advice.pointcutMethodDeclaringClassNamePattern();
+                String declaringClassName = advice.pointcutMethodDeclaringClassName();
+                if (pattern != null) {
+                    addPattern(pattern, getLiteralPrefixes(declaringClassName));
+                } else if (!declaringClassName.isEmpty()) {
+                    classNames.add(ClassNames.toInternalName(declaringClassName));
+                } else {
+                    String classAnnotation = advice.pointcut().classAnnotation();
+                    String methodAnnotation = advice.pointcut().methodAnnotation();
+                    if (!classAnnotation.isEmpty()) {
+                        addAnnotationHints(classAnnotation);
+                    } else if (!methodAnnotation.isEmpty()) {
+                        addAnnotationHints(methodAnnotation);
+                    } else {
+                        matchesEverything = true;
+                    }
+                }
+            }
+            for (ShimType shimType : shimTypes) {
+                Pattern targetPattern = shimType.targetPattern();
+                if (targetPattern == null) {
+                    classNames.add(ClassNames.toInternalName(shimType.target()));
+                } else {
+                    addPattern(targetPattern, ImmutableList.of(""));
+                }
+            }
+            for (MixinType mixinType : mixinTypes) {
+                for (String target : mixinType.targets()) {
+                    classNames.add(ClassNames.toInternalName(target));
+                }
+            }
+            annotationHints.add(INSTRUMENTATION_MARKER);
+            this.matchesEverything = matchesEverything;
+        }
+
+        private boolean isPossibleMatch(String internalName, byte[] classBytes) {
+            if (classNames.contains(internalName)) {
+                return true;
+            }
+            if (classNamePatternPrefixes.containsPrefixOf(internalName)) {
+                String className = ClassNames.fromInternalName(internalName);
+                for (Pattern classNamePattern : classNamePatterns) {
+                    if (classNamePattern.matcher(className).matches()) {
+                        return true;
+                    }
+                }
+            }
+            for (byte[] annotationHint : annotationHints) {
+                if (Bytes.indexOf(classBytes, annotationHint) != -1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isRejected(@Nullable String internalName, @Nullable ClassLoader loader) {
+            if (internalName == null || internalName.equals("java/lang/Object")) {
+                return true;
+            }
+            ClassLoader currLoader = loader;
+            while (currLoader != null) {
+                Set<String> classNames = rejectedClassNames.get(currLoader);
+                if (classNames != null && classNames.contains(internalName)) {
+                    return true;
+                }
+                if (!parentFirstLoaders.contains(currLoader)) {
+                    // a child-first loader may define its own class with this name, so a
+                    // rejection in a parent loader cannot be trusted, except for java.* classes
+                    // which can only be defined by the bootstrap loader
+                    return internalName.startsWith("java/")
+                            && bootstrapRejectedClassNames.contains(internalName);
+                }
+                currLoader = currLoader.getParent();
+            }
+            return bootstrapRejectedClassNames.contains(internalName);
+        }
+
+        private void addRejected(String internalName, @Nullable ClassLoader loader) {
+            if (loader == null) {
+                bootstrapRejectedClassNames.add(internalName);
+                return;
+            }
+            Set<String> classNames;
+            synchronized (rejectedClassNames) {
+                classNames = rejectedClassNames.get(loader);
+                if (classNames == null) {
+                    classNames = Collections
+                            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    rejectedClassNames.put(loader, classNames);
+                }
+            }
+            classNames.add(internalName);
+        }
+
+        private void addPattern(Pattern pattern, List<String> literalPrefixes) {
+            classNamePatterns.add(pattern);
+            for (String literalPrefix : literalPrefixes) {
+                classNamePatternPrefixes.add(ClassNames.toInternalName(literalPrefix));
+            }
+        }
+
+        private void addAnnotationHints(String annotation) {
+            for (String literalPrefix : getLiteralPrefixes(annotation)) {
+                annotationHints.add(("L" + ClassNames.toInternalName(literalPrefix))
+                        .getBytes(Charsets.UTF_8));
+            }
+        }
+    }
+
+    private static class PrefixTrie {
+
+        private final Map<Character, PrefixTrie> children = Maps.newHashMap();
+        private boolean terminal;
+
+        private void add(String prefix) {
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = prefix.charAt(i);
+                PrefixTrie child = node.children.get(c);
+                if (child == null) {
+                    child = new PrefixTrie();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        private boolean containsPrefixOf(String name) {
+            PrefixTrie node = this;
+            for (int i = 0; i < name.length(); i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                node = node.children.get(name.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.terminal;
+        }
+    }
+}
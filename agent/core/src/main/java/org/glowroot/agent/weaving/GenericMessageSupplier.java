@@ -30,6 +30,8 @@ import org.glowroot.common.util.UsedByGeneratedBytecode;
 @UsedByGeneratedBytecode
 public class GenericMessageSupplier extends MessageSupplier {
 
+    private static final String[] EMPTY_PARTS = new String[0];
+
     private final MessageTemplate template;
     private final String[] resolvedReceiverPathParts;
     private final String[] resolvedArgPathParts;
@@ -40,12 +42,12 @@ public class GenericMessageSupplier extends MessageSupplier {
     public static GenericMessageSupplier create(MessageTemplate template, Object receiver,
             String methodName, @Nullable Object... args) {
         // render paths to strings immediately in case the objects are mutable
-        String[] resolvedReceiverPathParts = new String[template.getThisPathParts().size()];
+        String[] resolvedReceiverPathParts = newParts(template.getThisPathParts().size());
         int i = 0;
         for (ValuePathPart part : template.getThisPathParts()) {
             resolvedReceiverPathParts[i++] = part.evaluatePart(receiver);
         }
-        String[] resolvedArgPathParts = new String[template.getArgPathParts().size()];
+        String[] resolvedArgPathParts = newParts(template.getArgPathParts().size());
         i = 0;
         for (ArgPathPart part : template.getArgPathParts()) {
             if (part.getArgNumber() >= args.length) {
@@ -69,7 +71,7 @@ public class GenericMessageSupplier extends MessageSupplier {
 
     public void setReturnValue(@Nullable Object returnValue) {
         // render the return value to strings immediately in case it is mutable
-        String[] parts = new String[template.getReturnPathParts().size()];
+        String[] parts = newParts(template.getReturnPathParts().size());
         int i = 0;
         for (ValuePathPart part : template.getReturnPathParts()) {
             parts[i++] = part.evaluatePart(returnValue);
@@ -84,7 +86,9 @@ public class GenericMessageSupplier extends MessageSupplier {
 
     @UsedByGeneratedBytecode
     public String getMessageText() {
-        StringBuilder sb = new StringBuilder();
+        // sizing the builder up front so that the only allocations are the builder and the final
+        // string
+        StringBuilder sb = new StringBuilder(getMessageTextLength());
         int receiverPathPartIndex = 0;
         int argPathPartIndex = 0;
         int returnValuePathPartIndex = 0;
@@ -115,6 +119,30 @@ public class GenericMessageSupplier extends MessageSupplier {
         return sb.toString();
     }
 
+    private int getMessageTextLength() {
+        int length = 0;
+        for (Part part : template.getAllParts()) {
+            if (part.getType() == PartType.CONSTANT) {
+                length += ((ConstantPart) part).getConstant().length();
+            } else if (part.getType() == PartType.METHOD_NAME) {
+                length += methodName.length();
+            }
+        }
+        for (String part : resolvedReceiverPathParts) {
+            length += part.length();
+        }
+        for (String part : resolvedArgPathParts) {
+            length += part.length();
+        }
+        String[] resolvedReturnValuePathParts = this.resolvedReturnValuePathParts;
+        if (resolvedReturnValuePathParts != null) {
+            for (String part : resolvedReturnValuePathParts) {
+                length += part.length();
+            }
+        }
+        return length;
+    }
+
     @UsedByGeneratedBytecode
     public static void updateWithReturnValue(TraceEntry traceEntry, @Nullable Object returnValue) {
         GenericMessageSupplier messageSupplier =
@@ -124,4 +152,8 @@ public class GenericMessageSupplier extends MessageSupplier {
             messageSupplier.setReturnValue(returnValue);
         }
     }
+
+    private static String[] newParts(int size) {
+        return size == 0 ? EMPTY_PARTS : new String[size];
+    }
 }
@@ -240,10 +240,15 @@ public class MessageTemplate {
     @VisibleForTesting
     static class PathEvaluator {
 
+        private static final boolean DISABLE_GENERATED_ACCESSORS =
+                Boolean.getBoolean("glowroot.weaving.disableGeneratedAccessors");
+
         private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
 
         private final Accessor[] accessors;
         private final String /*@Nullable*/[] remainingPath;
+        // null if accessors cannot be evaluated via generated bytecode (see PathAccessorGenerator)
+        private final @Nullable PathAccessor pathAccessor;
 
         PathEvaluator(Class<?> baseClass, String path) {
             List<String> parts = Lists.newArrayList(splitter.split(path));
@@ -260,6 +265,11 @@ public class MessageTemplate {
                 currClass = accessor.getValueType();
             }
             this.accessors = accessors.toArray(new Accessor[accessors.size()]);
+            if (DISABLE_GENERATED_ACCESSORS) {
+                pathAccessor = null;
+            } else {
+                pathAccessor = PathAccessorGenerator.generate(baseClass, accessors);
+            }
             if (parts.isEmpty()) {
                 remainingPath = null;
             } else {
@@ -269,9 +279,22 @@ public class MessageTemplate {
 
         @Nullable
         Object evaluateOnBase(Object base) throws Exception {
-            Object curr = base;
-            for (Accessor accessor : accessors) {
-                curr = accessor.evaluate(curr);
+            Object curr;
+            if (pathAccessor == null) {
+                curr = base;
+                for (Accessor accessor : accessors) {
+                    curr = accessor.evaluate(curr);
+                    if (curr == null) {
+                        return null;
+                    }
+                }
+            } else {
+                try {
+                    curr = pathAccessor.evaluate(base);
+                } catch (Throwable t) {
+                    // wrap same as reflection in order to retain the same error handling
+                    throw new InvocationTargetException(t);
+                }
                 if (curr == null) {
                     return null;
                 }
@@ -282,5 +305,10 @@ public class MessageTemplate {
             }
             return curr;
         }
+
+        @VisibleForTesting
+        boolean isGenerated() {
+            return pathAccessor != null;
+        }
     }
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import javax.annotation.Nullable;
+
+// implementations are generated by PathAccessorGenerator, this needs to be public since the
+// generated classes are defined in their own class loader
+public abstract class PathAccessor {
+
+    // exceptions thrown by the underlying methods are propagated directly (they are not wrapped in
+    // InvocationTargetException)
+    public abstract @Nullable Object evaluate(Object base);
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Sets;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates bytecode for evaluating a property path, which avoids the overhead of reflection
+// (argument array allocation, access checks and intermediate boxing) on every evaluation
+//
+// generation is only possible when every class along the path is public and every accessor is a
+// public instance method or field, otherwise the caller falls back to reflection
+class PathAccessorGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(PathAccessorGenerator.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // one defining class loader per base class loader, instead of one per generated class
+    //
+    // values are weak references since each generated class loader strongly references its parent
+    // (the key), which would otherwise prevent the key from ever being cleared, generated class
+    // loaders are still retained by the generated classes (and so by their path accessors)
+    private static final Map<ClassLoader, WeakReference<GeneratedClassLoader>>
+            generatedClassLoaders = Collections.synchronizedMap(
+                    new WeakHashMap<ClassLoader, WeakReference<GeneratedClassLoader>>());
+
+    private static final GeneratedClassLoader bootstrapGeneratedClassLoader =
+            new GeneratedClassLoader(null);
+
+    private PathAccessorGenerator() {}
+
+    static @Nullable PathAccessor generate(Class<?> baseClass, List<Accessor> accessors) {
+        if (accessors.isEmpty()) {
+            return null;
+        }
+        Set<Class<?>> referencedClasses = Sets.newHashSet();
+        Class<?> currClass = baseClass;
+        for (Accessor accessor : accessors) {
+            if (!isGeneratable(currClass, accessor)) {
+                return null;
+            }
+            referencedClasses.add(currClass);
+            Class<?> valueType = accessor.getValueType();
+            if (!valueType.isPrimitive()) {
+                referencedClasses.add(valueType);
+            }
+            currClass = valueType;
+        }
+        String internalName = "org/glowroot/agent/weaving/PathAccessor$Generated"
+                + counter.getAndIncrement();
+        byte[] bytes = generateBytes(internalName, baseClass, accessors);
+        try {
+            GeneratedClassLoader loader = getGeneratedClassLoader(baseClass.getClassLoader());
+            Class<?> generatedClass =
+                    loader.defineClass(internalName.replace('/', '.'), bytes);
+            // the generated class resolves the referenced classes through the base class's class
+            // loader, which is not guaranteed to resolve them to the same classes (e.g. the path
+            // may pass through a return type that was loaded by an unrelated class loader)
+            for (Class<?> referencedClass : referencedClasses) {
+                if (Class.forName(referencedClass.getName(), false, loader) != referencedClass) {
+                    return null;
+                }
+            }
+            return (PathAccessor) generatedClass.newInstance();
+        } catch (Throwable t) {
+            // log exception at debug level, reflection is used instead
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static GeneratedClassLoader getGeneratedClassLoader(@Nullable ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapGeneratedClassLoader;
+        }
+        synchronized (generatedClassLoaders) {
+            WeakReference<GeneratedClassLoader> generatedClassLoaderRef =
+                    generatedClassLoaders.get(loader);
+            GeneratedClassLoader generatedClassLoader =
+                    generatedClassLoaderRef == null ? null : generatedClassLoaderRef.get();
+            if (generatedClassLoader == null) {
+                generatedClassLoader = new GeneratedClassLoader(loader);
+                generatedClassLoaders.put(loader,
+                        new WeakReference<GeneratedClassLoader>(generatedClassLoader));
+            }
+            return generatedClassLoader;
+        }
+    }
+
+    private static boolean isGeneratable(Class<?> receiverClass, Accessor accessor) {
+        if (!Modifier.isPublic(receiverClass.getModifiers()) || receiverClass.isArray()) {
+            return false;
+        }
+        // reflection-based Accessor evaluates each item when the receiver is an array, which is
+        // possible at runtime whenever an array is assignable to the receiver's (static) type
+        if (receiverClass == Object.class || receiverClass == Cloneable.class
+                || receiverClass == Serializable.class) {
+            return false;
+        }
+        Method method = accessor.getMethod();
+        if (method != null) {
+            int modifiers = method.getModifiers();
+            return Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers);
+        }
+        Field field = accessor.getField();
+        if (field != null) {
+            int modifiers = field.getModifiers();
+            return Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers);
+        }
+        // array length
+        return false;
+    }
+
+    private static byte[] generateBytes(String internalName, Class<?> baseClass,
+            List<Accessor> accessors) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        String superName = Type.getInternalName(PathAccessor.class);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null, superName, null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(baseClass));
+        Class<?> currClass = baseClass;
+        for (int i = 0; i < accessors.size(); i++) {
+            Accessor accessor = accessors.get(i);
+            String owner = Type.getInternalName(currClass);
+            Method method = accessor.getMethod();
+            if (method != null) {
+                boolean itf = currClass.isInterface();
+                mv.visitMethodInsn(itf ? INVOKEINTERFACE : INVOKEVIRTUAL, owner, method.getName(),
+                        Type.getMethodDescriptor(method), itf);
+            } else {
+                Field field = checkNotNull(accessor.getField());
+                mv.visitFieldInsn(GETFIELD, owner, field.getName(),
+                        Type.getDescriptor(field.getType()));
+            }
+            Class<?> valueType = accessor.getValueType();
+            if (i == accessors.size() - 1) {
+                if (valueType == void.class) {
+                    mv.visitInsn(ACONST_NULL);
+                } else if (valueType.isPrimitive()) {
+                    box(mv, Type.getType(valueType));
+                }
+            } else {
+                // reflection-based evaluation stops at the first null value
+                Label label = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNONNULL, label);
+                mv.visitInsn(POP);
+                mv.visitInsn(ACONST_NULL);
+                mv.visitInsn(ARETURN);
+                mv.visitLabel(label);
+            }
+            currClass = valueType;
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void box(MethodVisitor mv, Type type) {
+        String boxedInternalName;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                boxedInternalName = "java/lang/Boolean";
+                break;
+            case Type.CHAR:
+                boxedInternalName = "java/lang/Character";
+                break;
+            case Type.BYTE:
+                boxedInternalName = "java/lang/Byte";
+                break;
+            case Type.SHORT:
+                boxedInternalName = "java/lang/Short";
+                break;
+            case Type.INT:
+                boxedInternalName = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                boxedInternalName = "java/lang/Float";
+                break;
+            case Type.LONG:
+                boxedInternalName = "java/lang/Long";
+                break;
+            case Type.DOUBLE:
+                boxedInternalName = "java/lang/Double";
+                break;
+            default:
+                throw new AssertionError("Unexpected primitive type: " + type);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, boxedInternalName, "valueOf",
+                "(" + type.getDescriptor() + ")L" + boxedInternalName + ";", false);
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+
+        private GeneratedClassLoader(@Nullable ClassLoader parent) {
+            super(parent);
+        }
+
+        // the base class's class loader may not be able to see glowroot classes (e.g. OSGi)
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(PathAccessor.class.getName())) {
+                return PathAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        private Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
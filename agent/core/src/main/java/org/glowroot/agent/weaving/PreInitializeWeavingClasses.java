@@ -295,7 +295,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$LoaderKey");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$LoaderWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldMXBean");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -307,6 +310,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ClassLoaders");
         types.add("org.glowroot.agent.weaving.ClassLoaders$LazyDefinedClass");
         types.add("org.glowroot.agent.weaving.ClassNames");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$CompiledMatcher");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$PrefixTrie");
+        types.add("org.glowroot.agent.weaving.ClassPreFilterMXBean");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackMethodVisitor");
         types.add("org.glowroot.agent.weaving.GeneratedBytecodeUtil");
@@ -353,6 +360,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorsIndex");
+        types.add("org.glowroot.agent.weaving.WeavingCache$CachedClass");
+        types.add("org.glowroot.agent.weaving.WeavingCacheMXBean");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -28,6 +28,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -49,6 +50,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.WeavingCache.CachedClass;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
@@ -60,19 +62,32 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    private static final boolean DISABLE_PRE_FILTER =
+            Boolean.getBoolean("glowroot.weaving.disablePreFilter");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable ClassPreFilter classPreFilter;
 
     private volatile boolean enabled;
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            ConfigService configService) {
+        this(advisors, shimTypes, mixinTypes, analyzedWorld, transactionRegistry, timerNameCache,
+                configService, null);
+    }
+
+    public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
+            TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -85,6 +100,12 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.weavingCache = weavingCache;
+        classPreFilter = DISABLE_PRE_FILTER ? null : new ClassPreFilter(shimTypes, mixinTypes);
+    }
+
+    public @Nullable ClassPreFilterMXBean getClassPreFilter() {
+        return classPreFilter;
     }
 
     byte /*@Nullable*/[] weave(byte[] classBytes, String className, @Nullable CodeSource codeSource,
@@ -121,8 +142,32 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> baseAdvisors = this.advisors.get();
+        if (classPreFilter != null
+                && !className.equals("org/apache/felix/framework/BundleWiringImpl")
+                && classPreFilter.reject(classBytes, baseAdvisors, loader)) {
+            return null;
+        }
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(baseAdvisors,
                 classBytes, loader, className);
+        WeavingCache weavingCache = this.weavingCache;
+        String cacheKey = null;
+        // advisors generated from @Instrumentation annotations are not cached
+        if (weavingCache != null && advisors == baseAdvisors
+                && !className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+            cacheKey = weavingCache.getKey(className, classBytes, advisors);
+            CachedClass cachedClass = weavingCache.get(cacheKey);
+            if (cachedClass != null) {
+                AnalyzedClass analyzedClass = getValidCachedAnalyzedClass(weavingCache,
+                        cachedClass, advisors, loader, codeSource, className);
+                if (analyzedClass != null) {
+                    weavingCache.recordHit();
+                    analyzedWorld.add(analyzedClass, loader);
+                    return cachedClass.wovenBytes();
+                }
+                weavingCache.recordStale();
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
@@ -139,6 +184,10 @@ public class Weaver {
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (weavingCache != null && cacheKey != null) {
+                putInCache(weavingCache, cacheKey, classAnalyzer, advisors, null,
+                        ImmutableList.<String>of());
+            }
             return maybeFelixBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -153,8 +202,9 @@ public class Weaver {
         // stackmap information to be consistent with the bytecode in order to pass
         // verification."
         //
+        List<String> commonSuperClasses = cacheKey == null ? null : Lists.<String>newArrayList();
         ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
-                loader, codeSource, className);
+                loader, codeSource, className, commonSuperClasses);
         WeavingClassVisitor cv =
                 new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
                         classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
@@ -178,9 +228,77 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (weavingCache != null && cacheKey != null && commonSuperClasses != null
+                && !cv.hasMetaHolders()) {
+            putInCache(weavingCache, cacheKey, classAnalyzer, advisors, transformedBytes,
+                    commonSuperClasses);
+        }
         return transformedBytes;
     }
 
+    private @Nullable AnalyzedClass getValidCachedAnalyzedClass(WeavingCache weavingCache,
+            CachedClass cachedClass, List<Advice> advisors, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, String className) {
+        AnalyzedClass analyzedClass = weavingCache.decode(cachedClass.analyzedClass(), advisors,
+                shimTypes, mixinTypes);
+        if (analyzedClass == null) {
+            return null;
+        }
+        String hierarchyFingerprint = weavingCache.getHierarchyFingerprint(
+                getSuperAnalyzedClasses(analyzedClass, loader, codeSource), advisors, shimTypes,
+                mixinTypes);
+        if (!cachedClass.hierarchyFingerprint().equals(hierarchyFingerprint)) {
+            return null;
+        }
+        List<String> commonSuperClasses = cachedClass.commonSuperClasses();
+        if (!commonSuperClasses.isEmpty()) {
+            ComputeFramesClassWriter cw = new ComputeFramesClassWriter(0, analyzedWorld, loader,
+                    codeSource, className);
+            for (int i = 0; i < commonSuperClasses.size(); i += 3) {
+                String commonSuperClass = cw.getCommonSuperClass(commonSuperClasses.get(i),
+                        commonSuperClasses.get(i + 1));
+                if (!commonSuperClass.equals(commonSuperClasses.get(i + 2))) {
+                    return null;
+                }
+            }
+        }
+        return analyzedClass;
+    }
+
+    // this needs to match ClassAnalyzer.getSuperAnalyzedClasses()
+    private List<AnalyzedClass> getSuperAnalyzedClasses(AnalyzedClass analyzedClass,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        if (analyzedClass.isInterface()) {
+            return ImmutableList.of();
+        }
+        ParseContext parseContext = ImmutableParseContext.of(analyzedClass.name(), codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses.addAll(
+                analyzedWorld.getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext));
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    private void putInCache(WeavingCache weavingCache, String cacheKey,
+            ClassAnalyzer classAnalyzer, List<Advice> advisors, byte /*@Nullable*/[] wovenBytes,
+            List<String> commonSuperClasses) {
+        byte[] encodedAnalyzedClass = weavingCache.encode(classAnalyzer.getAnalyzedClass(),
+                advisors, shimTypes, mixinTypes);
+        if (encodedAnalyzedClass == null) {
+            return;
+        }
+        String hierarchyFingerprint = weavingCache.getHierarchyFingerprint(
+                classAnalyzer.getSuperAnalyzedClasses(), advisors, shimTypes, mixinTypes);
+        if (hierarchyFingerprint == null) {
+            return;
+        }
+        weavingCache.put(cacheKey, new CachedClass(hierarchyFingerprint, encodedAnalyzedClass,
+                wovenBytes, ImmutableList.copyOf(commonSuperClasses)));
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -251,13 +369,22 @@ public class Weaver {
         private final AnalyzedWorld analyzedWorld;
         private final @Nullable ClassLoader loader;
         private final ParseContext parseContext;
+        // records getCommonSuperClass() answers for the weaving cache
+        private final @Nullable List<String> commonSuperClasses;
 
         public ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
+            this(flags, analyzedWorld, loader, codeSource, className, null);
+        }
+
+        private ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
+                @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className,
+                @Nullable List<String> commonSuperClasses) {
             super(flags);
             this.analyzedWorld = analyzedWorld;
             this.loader = loader;
             this.parseContext = ImmutableParseContext.of(className, codeSource);
+            this.commonSuperClasses = commonSuperClasses;
         }
 
         // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
@@ -266,12 +393,19 @@ public class Weaver {
             if (type1.equals("java/lang/Object") || type2.equals("java/lang/Object")) {
                 return "java/lang/Object";
             }
+            String commonSuperClass;
             try {
-                return getCommonSuperClassInternal(type1, type2);
+                commonSuperClass = getCommonSuperClassInternal(type1, type2);
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
-                return "java/lang/Object";
+                commonSuperClass = "java/lang/Object";
+            }
+            if (commonSuperClasses != null) {
+                commonSuperClasses.add(type1);
+                commonSuperClasses.add(type2);
+                commonSuperClasses.add(commonSuperClass);
             }
+            return commonSuperClass;
         }
 
         private String getCommonSuperClassInternal(String type1, String type2) throws IOException {
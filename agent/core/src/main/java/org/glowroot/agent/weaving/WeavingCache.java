@@ -0,0 +1,612 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// persistent cache of class analysis and weaving results, so that warm restarts can skip class
+// analysis and frame computation for classes that have not changed
+//
+// entries are keyed by class name, class bytes and the set of advisors, and the file as a whole is
+// tied to a fingerprint of the agent and plugin versions, and is discarded if that changes
+//
+// since analysis and frame computation also depend on other classes (super classes for analysis,
+// and arbitrary classes for frame computation via getCommonSuperClass), each entry also captures
+// a fingerprint of the analyzed super class hierarchy and the getCommonSuperClass() answers that
+// were used, and these are re-checked (against the in-memory AnalyzedWorld) before an entry is
+// used
+//
+// entries that turn out to be stale are replaced by appending a superseding record (the last
+// record for a key wins on load), and the file is compacted on load and whenever superseded
+// records make up more than half of it
+public class WeavingCache implements WeavingCacheMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int MAGIC = 0x676c7763; // "glwc"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long MAX_FILE_SIZE_BYTES =
+            Integer.getInteger("glowroot.weaving.cacheMaxSizeMb", 100) * 1024L * 1024;
+
+    private final File file;
+    private final String fingerprint;
+
+    private final ConcurrentMap<String, CachedClass> entries =
+            new ConcurrentHashMap<String, CachedClass>();
+
+    @GuardedBy("this")
+    private @Nullable DataOutputStream out;
+    // number of records in the file, including superseded records
+    @GuardedBy("this")
+    private int recordCount;
+    @GuardedBy("this")
+    private long fileSize;
+    // once the file cannot be kept under the max size, even after compaction
+    @GuardedBy("this")
+    private boolean full;
+
+    private volatile @Nullable AdvisorsIndex advisorsIndex;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    public WeavingCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        try {
+            synchronized (this) {
+                if (file.exists() && !load()) {
+                    // stale or corrupt, start over
+                    entries.clear();
+                    deleteFile();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("unable to load weaving cache, starting with empty cache: {}",
+                    e.getMessage(), e);
+            entries.clear();
+            deleteFile();
+        }
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    String getKey(String className, byte[] classBytes, List<Advice> advisors) {
+        return className + ':' + sha1Hex(classBytes) + ':' + getAdvisorsIndex(advisors).fingerprint;
+    }
+
+    @Nullable
+    CachedClass get(String key) {
+        CachedClass cachedClass = entries.get(key);
+        if (cachedClass == null) {
+            missCount.getAndIncrement();
+        }
+        return cachedClass;
+    }
+
+    void recordHit() {
+        hitCount.getAndIncrement();
+    }
+
+    void recordStale() {
+        staleCount.getAndIncrement();
+    }
+
+    // replaces any existing (e.g. stale) entry for the key
+    synchronized void put(String key, CachedClass cachedClass) {
+        entries.put(key, cachedClass);
+        if (full) {
+            return;
+        }
+        try {
+            append(key, cachedClass);
+            if (recordCount > 2 * entries.size() || fileSize > MAX_FILE_SIZE_BYTES) {
+                compact();
+                if (fileSize > MAX_FILE_SIZE_BYTES) {
+                    logger.debug("weaving cache exceeded max size, no longer writing to it");
+                    close();
+                    deleteFile();
+                    full = true;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("unable to write to weaving cache: {}", e.getMessage(), e);
+        }
+    }
+
+    // returns null if any advice, shim type or mixin type cannot be encoded
+    @Nullable
+    byte[] encode(AnalyzedClass analyzedClass, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            if (!encode(analyzedClass, getAdvisorsIndex(advisors), shimTypes, mixinTypes, dos)) {
+                return null;
+            }
+            dos.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            // not possible with ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // returns null if the cached data no longer lines up with the current advisors, shim types or
+    // mixin types
+    @Nullable
+    AnalyzedClass decode(byte[] encodedAnalyzedClass, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        List<Advice> indexedAdvisors = getAdvisorsIndex(advisors).advisors;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedAnalyzedClass));
+        try {
+            ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                    .modifiers(in.readInt())
+                    .name(in.readUTF())
+                    .superName(readNullableString(in));
+            int interfaceCount = in.readInt();
+            for (int i = 0; i < interfaceCount; i++) {
+                builder.addInterfaceNames(in.readUTF());
+            }
+            int analyzedMethodCount = in.readInt();
+            for (int i = 0; i < analyzedMethodCount; i++) {
+                ImmutableAnalyzedMethod.Builder methodBuilder = ImmutableAnalyzedMethod.builder()
+                        .name(in.readUTF());
+                int parameterTypeCount = in.readInt();
+                for (int j = 0; j < parameterTypeCount; j++) {
+                    methodBuilder.addParameterTypes(in.readUTF());
+                }
+                methodBuilder.returnType(in.readUTF())
+                        .modifiers(in.readInt())
+                        .signature(readNullableString(in));
+                int exceptionCount = in.readInt();
+                for (int j = 0; j < exceptionCount; j++) {
+                    methodBuilder.addExceptions(in.readUTF());
+                }
+                int advisorCount = in.readInt();
+                for (int j = 0; j < advisorCount; j++) {
+                    methodBuilder.addAdvisors(indexedAdvisors.get(in.readInt()));
+                }
+                int declaredOnlyAdvisorCount = in.readInt();
+                for (int j = 0; j < declaredOnlyAdvisorCount; j++) {
+                    methodBuilder.addDeclaredOnlyAdvisors(indexedAdvisors.get(in.readInt()));
+                }
+                builder.addAnalyzedMethods(methodBuilder.build());
+            }
+            int publicFinalMethodCount = in.readInt();
+            for (int i = 0; i < publicFinalMethodCount; i++) {
+                ImmutablePublicFinalMethod.Builder methodBuilder =
+                        ImmutablePublicFinalMethod.builder()
+                                .name(in.readUTF());
+                int parameterTypeCount = in.readInt();
+                for (int j = 0; j < parameterTypeCount; j++) {
+                    methodBuilder.addParameterTypes(in.readUTF());
+                }
+                builder.addPublicFinalMethods(methodBuilder.build());
+            }
+            int shimTypeCount = in.readInt();
+            for (int i = 0; i < shimTypeCount; i++) {
+                builder.addShimTypes(shimTypes.get(in.readInt()));
+            }
+            int mixinTypeCount = in.readInt();
+            for (int i = 0; i < mixinTypeCount; i++) {
+                builder.addMixinTypes(mixinTypes.get(in.readInt()));
+            }
+            return builder.build();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // returns null if any advice, shim type or mixin type in the hierarchy cannot be encoded
+    @Nullable
+    String getHierarchyFingerprint(List<AnalyzedClass> superAnalyzedClasses,
+            List<Advice> advisors, List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        AdvisorsIndex advisorsIndex = getAdvisorsIndex(advisors);
+        MessageDigest digest = newSha1Digest();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+                if (!encode(superAnalyzedClass, advisorsIndex, shimTypes, mixinTypes, dos)) {
+                    return null;
+                }
+                dos.flush();
+                digest.update(baos.toByteArray());
+                baos.reset();
+            }
+        } catch (IOException e) {
+            // not possible with ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private AdvisorsIndex getAdvisorsIndex(List<Advice> advisors) {
+        AdvisorsIndex advisorsIndex = this.advisorsIndex;
+        if (advisorsIndex == null || advisorsIndex.advisors != advisors) {
+            // advisors only change on reweave
+            advisorsIndex = new AdvisorsIndex(advisors);
+            this.advisorsIndex = advisorsIndex;
+        }
+        return advisorsIndex;
+    }
+
+    @GuardedBy("this")
+    private boolean load() throws IOException {
+        if (file.length() > MAX_FILE_SIZE_BYTES) {
+            logger.debug("weaving cache exceeded max size, starting with empty cache");
+            return false;
+        }
+        boolean partialRecord = false;
+        InputStream fileIn = new BufferedInputStream(new FileInputStream(file));
+        try {
+            DataInputStream in = new DataInputStream(fileIn);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !in.readUTF().equals(fingerprint)) {
+                return false;
+            }
+            while (true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    // end of file
+                    break;
+                }
+                CachedClass cachedClass;
+                try {
+                    cachedClass = readCachedClass(in);
+                } catch (EOFException e) {
+                    // partially written record at the end of the file
+                    partialRecord = true;
+                    break;
+                }
+                // later records supersede earlier records for the same key
+                entries.put(key, cachedClass);
+                recordCount++;
+            }
+        } finally {
+            fileIn.close();
+        }
+        fileSize = file.length();
+        if (partialRecord || recordCount > entries.size()) {
+            // partially written record needs to be removed before appending to the file
+            compact();
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void append(String key, CachedClass cachedClass) throws IOException {
+        DataOutputStream out = this.out;
+        if (out == null) {
+            boolean newFile = !file.exists();
+            out = new DataOutputStream(new FileOutputStream(file, true));
+            if (newFile) {
+                writeHeader(out);
+                fileSize = out.size();
+                recordCount = 0;
+            }
+            this.out = out;
+        }
+        // buffer the whole entry so that it goes out in a single write
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(key);
+        writeCachedClass(cachedClass, dos);
+        dos.flush();
+        baos.writeTo(out);
+        out.flush();
+        fileSize += baos.size();
+        recordCount++;
+    }
+
+    // rewrites the file with only the current entries
+    @GuardedBy("this")
+    private void compact() throws IOException {
+        close();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpOut =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        int count = 0;
+        try {
+            writeHeader(tmpOut);
+            for (Map.Entry<String, CachedClass> entry : entries.entrySet()) {
+                tmpOut.writeUTF(entry.getKey());
+                writeCachedClass(entry.getValue(), tmpOut);
+                count++;
+            }
+        } finally {
+            tmpOut.close();
+        }
+        deleteFile();
+        if (!tmpFile.renameTo(file)) {
+            if (!tmpFile.delete()) {
+                logger.warn("unable to delete weaving cache file: {}", tmpFile.getAbsolutePath());
+            }
+            throw new IOException("unable to rename weaving cache file: "
+                    + tmpFile.getAbsolutePath());
+        }
+        fileSize = tmpOut.size();
+        recordCount = count;
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(fingerprint);
+    }
+
+    private void deleteFile() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("unable to delete weaving cache file: {}", file.getAbsolutePath());
+        }
+    }
+
+    private static boolean encode(AnalyzedClass analyzedClass, AdvisorsIndex advisorsIndex,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, DataOutputStream out)
+            throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(analyzedClass.superName(), out);
+        writeStrings(analyzedClass.interfaceNames(), out);
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(analyzedMethod.parameterTypes(), out);
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(analyzedMethod.signature(), out);
+            writeStrings(analyzedMethod.exceptions(), out);
+            if (!writeAdvisorIndexes(analyzedMethod.advisors(), advisorsIndex, out)) {
+                return false;
+            }
+            if (!writeAdvisorIndexes(analyzedMethod.declaredOnlyAdvisors(), advisorsIndex, out)) {
+                return false;
+            }
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(publicFinalMethod.parameterTypes(), out);
+        }
+        out.writeInt(analyzedClass.shimTypes().size());
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            int index = shimTypes.indexOf(shimType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        out.writeInt(analyzedClass.mixinTypes().size());
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            int index = mixinTypes.indexOf(mixinType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private static boolean writeAdvisorIndexes(List<Advice> advisors, AdvisorsIndex advisorsIndex,
+            DataOutputStream out) throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            Integer index = advisorsIndex.indexes.get(advice);
+            if (index == null) {
+                // e.g. advice generated from @Instrumentation annotation
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private static void writeCachedClass(CachedClass cachedClass, DataOutputStream out)
+            throws IOException {
+        out.writeUTF(cachedClass.hierarchyFingerprint());
+        writeBytes(cachedClass.analyzedClass(), out);
+        byte[] wovenBytes = cachedClass.wovenBytes();
+        out.writeBoolean(wovenBytes != null);
+        if (wovenBytes != null) {
+            writeBytes(wovenBytes, out);
+        }
+        writeStrings(cachedClass.commonSuperClasses(), out);
+    }
+
+    private static CachedClass readCachedClass(DataInputStream in) throws IOException {
+        String hierarchyFingerprint = in.readUTF();
+        byte[] analyzedClass = readBytes(in);
+        byte[] wovenBytes = in.readBoolean() ? readBytes(in) : null;
+        int commonSuperClassCount = in.readInt();
+        ImmutableList.Builder<String> commonSuperClasses = ImmutableList.builder();
+        for (int i = 0; i < commonSuperClassCount; i++) {
+            commonSuperClasses.add(in.readUTF());
+        }
+        return new CachedClass(hierarchyFingerprint, analyzedClass, wovenBytes,
+                commonSuperClasses.build());
+    }
+
+    private static void writeStrings(List<String> strings, DataOutputStream out)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static void writeNullableString(@Nullable String string, DataOutputStream out)
+            throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String sha1Hex(byte[] bytes) {
+        return toHex(newSha1Digest().digest(bytes));
+    }
+
+    private static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required to be supported by every java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    static class CachedClass {
+
+        private final String hierarchyFingerprint;
+        private final byte[] analyzedClass;
+        private final byte /*@Nullable*/[] wovenBytes;
+        // getCommonSuperClass() answers that were used during frame computation, stored as
+        // consecutive triples of (type1, type2, common super class)
+        private final ImmutableList<String> commonSuperClasses;
+
+        CachedClass(String hierarchyFingerprint, byte[] analyzedClass,
+                byte /*@Nullable*/[] wovenBytes, ImmutableList<String> commonSuperClasses) {
+            this.hierarchyFingerprint = hierarchyFingerprint;
+            this.analyzedClass = analyzedClass;
+            this.wovenBytes = wovenBytes;
+            this.commonSuperClasses = commonSuperClasses;
+        }
+
+        String hierarchyFingerprint() {
+            return hierarchyFingerprint;
+        }
+
+        byte[] analyzedClass() {
+            return analyzedClass;
+        }
+
+        // null if weaving was not required
+        byte /*@Nullable*/[] wovenBytes() {
+            return wovenBytes;
+        }
+
+        ImmutableList<String> commonSuperClasses() {
+            return commonSuperClasses;
+        }
+    }
+
+    private static class AdvisorsIndex {
+
+        private final List<Advice> advisors;
+        private final Map<Advice, Integer> indexes = new IdentityHashMap<Advice, Integer>();
+        private final String fingerprint;
+
+        private AdvisorsIndex(List<Advice> advisors) {
+            this.advisors = advisors;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < advisors.size(); i++) {
+                Advice advice = advisors.get(i);
+                indexes.put(advice, i);
+                // the pointcut annotation toString() includes all of its attribute values
+                sb.append(advice.adviceType().getDescriptor());
+                sb.append(advice.pointcut());
+                sb.append(advice.reweavable());
+                sb.append('\n');
+            }
+            fingerprint = sha1Hex(sb.toString().getBytes(Charsets.UTF_8));
+        }
+    }
+}
@@ -182,6 +182,11 @@ class WeavingClassVisitor extends ClassVisitor {
         cw.visitEnd();
     }
 
+    // meta holders are generated (and defined) as a side effect of weaving
+    boolean hasMetaHolders() {
+        return metaHolderInternalName != null;
+    }
+
     @RequiresNonNull("type")
     private void handleMetaHolders() {
         if (metaHolderInternalName != null) {
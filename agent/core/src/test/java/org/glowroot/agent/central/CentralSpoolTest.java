@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.RecordSender;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CentralSpoolTest {
+
+    private File dir;
+    private Clock clock;
+
+    @Before
+    public void onBefore() {
+        dir = Files.createTempDir();
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(5000L);
+    }
+
+    @After
+    public void onAfter() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(CentralSpool.TRACE, 1000, messages("a"));
+        spool.append(CentralSpool.AGGREGATES, 2000, messages("b"));
+        // when
+        SpooledRecord record1 = spool.peek();
+        spool.markReplayed(record1);
+        SpooledRecord record2 = spool.peek();
+        spool.markReplayed(record2);
+        // then
+        assertThat(record1.getKind()).isEqualTo(CentralSpool.TRACE);
+        assertThat(record1.getCaptureTime()).isEqualTo(1000);
+        assertThat(readAgentIds(record1)).containsExactly("a");
+        assertThat(record2.getKind()).isEqualTo(CentralSpool.AGGREGATES);
+        assertThat(readAgentIds(record2)).containsExactly("b");
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getTotalSpooledRecordCount()).isEqualTo(2);
+        assertThat(spool.getTotalReplayedRecordCount()).isEqualTo(2);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReportReplayLag() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        // when
+        spool.append(CentralSpool.TRACE, 1000, messages("a"));
+        // then
+        assertThat(spool.getPendingRecordCount()).isEqualTo(1);
+        assertThat(spool.getReplayLagMillis()).isEqualTo(4000);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReportReplayLagWithoutSideEffects() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(CentralSpool.TRACE, 1000, messages("a"));
+        spool.append(CentralSpool.TRACE, 3000, messages("b"));
+        spool.markReplayed(spool.peek());
+        spool.markReplayed(spool.peek());
+        long sizeBytes = spool.getSizeBytes();
+        // when
+        long replayLagMillis = spool.getReplayLagMillis();
+        spool.getReplayLagMillis();
+        // then
+        assertThat(replayLagMillis).isEqualTo(0);
+        assertThat(dir.listFiles()).hasSize(1);
+        assertThat(spool.getSizeBytes()).isEqualTo(sizeBytes);
+        // and appending still works since the output stream was not closed by the getter
+        spool.append(CentralSpool.TRACE, 4000, messages("c"));
+        assertThat(spool.getReplayLagMillis()).isEqualTo(1000);
+        assertThat(dir.listFiles()).hasSize(1);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReportReplayLagOfNextRecordAfterReplay() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(CentralSpool.TRACE, 1000, messages("a"));
+        spool.append(CentralSpool.TRACE, 3000, messages("b"));
+        // when
+        spool.markReplayed(spool.peek());
+        // then
+        assertThat(spool.getReplayLagMillis()).isEqualTo(2000);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReplayBacklogInOneRound() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        for (int i = 0; i < 100; i++) {
+            spool.append(CentralSpool.TRACE, i, messages("a"));
+        }
+        // when
+        int count = spool.replay(Integer.MAX_VALUE, new RecordSender() {
+            @Override
+            public boolean send(SpooledRecord record) {
+                return true;
+            }
+        });
+        // then
+        assertThat(count).isEqualTo(100);
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void shouldKeepUpWithProducerFasterThanTenRecordsPerSecond() throws Exception {
+        // given
+        final CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        final int producedCount = 500;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // roughly 500 records per second
+                    for (int i = 0; i < producedCount; i++) {
+                        spool.append(CentralSpool.TRACE, i, messages("a"));
+                        Thread.sleep(2);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        RecordSender sender = new RecordSender() {
+            @Override
+            public boolean send(SpooledRecord record) throws InterruptedException {
+                // simulate round trip to the central collector
+                Thread.sleep(1);
+                return true;
+            }
+        };
+        // when
+        producer.start();
+        long deadline = System.currentTimeMillis() + 30000;
+        while ((producer.isAlive() || !spool.isEmpty())
+                && System.currentTimeMillis() < deadline) {
+            spool.replay(Integer.MAX_VALUE, sender);
+            Thread.sleep(10);
+        }
+        producer.join();
+        // then
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getTotalReplayedRecordCount()).isEqualTo(producedCount);
+        assertThat(spool.getTotalDroppedRecordCount()).isEqualTo(0);
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestWhenFull() throws Exception {
+        // given
+        String large = new String(new char[100000]).replace('\0', 'x');
+        // small enough that only one 1mb segment fits
+        CentralSpool spool = new CentralSpool(dir, 1536 * 1024, clock);
+        // when
+        for (int i = 0; i < 20; i++) {
+            spool.append(CentralSpool.TRACE, i, messages(large));
+        }
+        // then
+        assertThat(spool.getSizeBytes()).isLessThanOrEqualTo(1536 * 1024);
+        assertThat(spool.getTotalDroppedRecordCount()).isGreaterThan(0);
+        assertThat(spool.getTotalDroppedRecordCount() + spool.getPendingRecordCount())
+                .isEqualTo(20);
+        SpooledRecord record = spool.peek();
+        assertThat(record.getCaptureTime()).isEqualTo(spool.getTotalDroppedRecordCount());
+        spool.close();
+    }
+
+    @Test
+    public void shouldRecoverFromPartialRecordOnRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(CentralSpool.TRACE, 1000, messages("a"));
+        spool.append(CentralSpool.TRACE, 2000, messages("b"));
+        spool.close();
+        File segmentFile = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, clock);
+        // then
+        assertThat(spool.getPendingRecordCount()).isEqualTo(1);
+        SpooledRecord record = spool.peek();
+        assertThat(readAgentIds(record)).containsExactly("a");
+        spool.markReplayed(record);
+        spool.append(CentralSpool.TRACE, 3000, messages("c"));
+        record = spool.peek();
+        assertThat(readAgentIds(record)).containsExactly("c");
+        spool.close();
+    }
+
+    private static List<TraceStreamMessage> messages(String agentId) {
+        return ImmutableList.of(TraceStreamMessage.newBuilder()
+                .setHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentId))
+                .build());
+    }
+
+    private static List<String> readAgentIds(SpooledRecord record) throws IOException {
+        InputStream in = new ByteArrayInputStream(record.getPayload());
+        List<String> agentIds = Lists.newArrayList();
+        TraceStreamMessage message;
+        while ((message = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+            agentIds.add(message.getHeader().getAgentId());
+        }
+        return agentIds;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockCodecsTest {
+
+    private static final String TEXT = "jdbc query: select * from users where id = ? => 1 row";
+
+    @Test
+    public void shouldRoundTripLzf() throws IOException {
+        assertRoundTrip(BlockCodecs.LZF, TEXT);
+    }
+
+    @Test
+    public void shouldRoundTripDeflateDictionary() throws IOException {
+        assertRoundTrip(BlockCodecs.DEFLATE_DICTIONARY, TEXT);
+    }
+
+    @Test
+    public void shouldRoundTripEmpty() throws IOException {
+        assertRoundTrip(BlockCodecs.LZF, "");
+        assertRoundTrip(BlockCodecs.DEFLATE_DICTIONARY, "");
+    }
+
+    @Test
+    public void shouldNotWriteCodecIdForLzf() throws IOException {
+        // when
+        byte[] compressed = compress(BlockCodecs.LZF, TEXT);
+        // then
+        assertThat(compressed[0]).isEqualTo((byte) 'Z');
+    }
+
+    @Test
+    public void shouldWriteCodecIdForDeflateDictionary() throws IOException {
+        // when
+        byte[] compressed = compress(BlockCodecs.DEFLATE_DICTIONARY, TEXT);
+        // then
+        assertThat(compressed[0]).isEqualTo((byte) BlockCodecs.DEFLATE_DICTIONARY.id());
+    }
+
+    @Test
+    public void shouldGetCodecByName() {
+        assertThat(BlockCodecs.getCodec("lzf")).isSameAs(BlockCodecs.LZF);
+        assertThat(BlockCodecs.getCodec("deflate-dictionary"))
+                .isSameAs(BlockCodecs.DEFLATE_DICTIONARY);
+        assertThat(BlockCodecs.getCodec("unknown")).isSameAs(BlockCodecs.LZF);
+    }
+
+    private static void assertRoundTrip(BlockCodec codec, String text) throws IOException {
+        // when
+        byte[] compressed = compress(codec, text);
+        InputStream in = BlockCodecs.decompress(
+                new BufferedInputStream(new ByteArrayInputStream(compressed)));
+        String decompressed = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        in.close();
+        // then
+        assertThat(decompressed).isEqualTo(text);
+    }
+
+    private static byte[] compress(BlockCodec codec, String text) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = BlockCodecs.compress(codec, baos);
+        out.write(text.getBytes(Charsets.UTF_8));
+        out.close();
+        return baos.toByteArray();
+    }
+}
@@ -17,9 +17,7 @@ package org.glowroot.agent.embedded.util;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
-import java.io.Writer;
 
 import org.junit.After;
 import org.junit.Before;
@@ -52,78 +50,27 @@ public class CappedDatabaseOutputStreamTest {
     @Test
     public void shouldWrite() throws IOException {
         // given
-        Writer out = new OutputStreamWriter(cappedOut);
         String text = "0123456789";
 
         // when
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
-        cappedOut.sync();
+        long cappedId = write(text);
 
         // then
         assertWrite(text, cappedId);
     }
 
-    @Test
-    public void shouldWriteUsingByteArray() throws IOException {
-        // given
-        String text = "0123456789";
-
-        // when
-        cappedOut.startBlock();
-        cappedOut.write(text.getBytes());
-        cappedOut.flush();
-        long cappedId = cappedOut.endBlock();
-        cappedOut.sync();
-
-        // then
-        assertWrite(text, cappedId);
-    }
-
-    @Test
-    public void shouldWriteUsingSingleBytes() throws IOException {
-        // when
-        cappedOut.startBlock();
-        cappedOut.write('0');
-        cappedOut.write('1');
-        cappedOut.write('2');
-        cappedOut.write('3');
-        cappedOut.write('4');
-        cappedOut.write('5');
-        cappedOut.write('6');
-        cappedOut.write('7');
-        cappedOut.write('8');
-        cappedOut.write('9');
-        cappedOut.flush();
-        long cappedId = cappedOut.endBlock();
-        cappedOut.sync();
-
-        // then
-        assertWrite("0123456789", cappedId);
-    }
-
     @Test
     public void shouldWrap() throws IOException {
         // given
-        Writer out = new OutputStreamWriter(cappedOut);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 600; i++) {
             sb.append("0123456789");
         }
         String text = sb.toString();
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        cappedOut.endBlock();
+        write(text);
 
         // when
-        out = new OutputStreamWriter(cappedOut);
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = write(text);
 
         // then
         assertThat(cappedId).isEqualTo(6000 + BLOCK_HEADER_SIZE);
@@ -148,27 +95,16 @@ public class CappedDatabaseOutputStreamTest {
     @Test
     public void shouldWrapAndKeepGoing() throws IOException {
         // given
-        Writer out = new OutputStreamWriter(cappedOut);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 600; i++) {
             sb.append("0123456789");
         }
         String text = sb.toString();
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        cappedOut.endBlock();
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        cappedOut.endBlock();
+        write(text);
+        write(text);
 
         // when
-        out = new OutputStreamWriter(cappedOut);
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = write(text);
 
         // then
         assertThat(cappedId).isEqualTo(12000 + 2 * BLOCK_HEADER_SIZE);
@@ -191,20 +127,13 @@ public class CappedDatabaseOutputStreamTest {
     @Test
     public void shouldWrapAndResize() throws IOException {
         // given
-        Writer out = new OutputStreamWriter(cappedOut);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 600; i++) {
             sb.append("0123456789");
         }
         String text = sb.toString();
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        cappedOut.endBlock();
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
+        write(text);
+        long cappedId = write(text);
 
         // when
         // have to close in before resizing
@@ -234,22 +163,15 @@ public class CappedDatabaseOutputStreamTest {
     @Test
     public void shouldWrapAndResizeVerySmall() throws IOException {
         // given
-        Writer out = new OutputStreamWriter(cappedOut);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 60; i++) {
             sb.append("0123456789");
         }
         String text = sb.toString();
         for (int i = 0; i < 9; i++) {
-            cappedOut.startBlock();
-            out.write(text);
-            out.flush();
-            cappedOut.endBlock();
+            write(text);
         }
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = write(text);
 
         // when
         // have to close in before resizing
@@ -279,21 +201,12 @@ public class CappedDatabaseOutputStreamTest {
     public void shouldWrapWithoutEnoughSpaceAtEndForContiguousBlockHeader() throws IOException {
         // given
         String text = "0123456789";
-        cappedOut.startBlock();
-        int numBytesToWrite = 10240 - BLOCK_HEADER_SIZE - 1;
-        for (int i = 0; i < numBytesToWrite; i++) {
-            cappedOut.write(0);
-        }
-        cappedOut.flush();
-        cappedOut.endBlock();
+        byte[] filler = new byte[10240 - BLOCK_HEADER_SIZE - 1];
+        cappedOut.appendBlock(filler, filler.length);
+        cappedOut.writeBatch();
 
         // when
-        Writer out = new OutputStreamWriter(cappedOut);
-        out = new OutputStreamWriter(cappedOut);
-        cappedOut.startBlock();
-        out.write(text);
-        out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = write(text);
 
         // then
         assertThat(cappedId).isEqualTo(10240);
@@ -312,6 +225,69 @@ public class CappedDatabaseOutputStreamTest {
         assertThat(content).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteBatchThatWraps() throws IOException {
+        // given
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            sb.append("0123456789");
+        }
+        String text = sb.toString();
+        byte[] bytes = text.getBytes();
+
+        // when
+        long cappedId1 = cappedOut.appendBlock(bytes, bytes.length);
+        long cappedId2 = cappedOut.appendBlock(bytes, bytes.length);
+        long cappedId3 = cappedOut.appendBlock(bytes, bytes.length);
+        cappedOut.writeBatch();
+
+        // then
+        assertThat(cappedId1).isEqualTo(0);
+        assertThat(cappedId2).isEqualTo(4000 + BLOCK_HEADER_SIZE);
+        assertThat(cappedId3).isEqualTo(8000 + 2 * BLOCK_HEADER_SIZE);
+        long currIndex = in.readLong();
+        assertThat(currIndex).isEqualTo(12000 + 3 * BLOCK_HEADER_SIZE);
+        in.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + 4000 + BLOCK_HEADER_SIZE);
+        assertThat(in.readLong()).isEqualTo(4000);
+        in.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + 8000 + 2 * BLOCK_HEADER_SIZE);
+        assertThat(in.readLong()).isEqualTo(4000);
+        byte[] content = new byte[4000];
+        int remaining = 10240 - 8000 - 3 * BLOCK_HEADER_SIZE;
+        in.readFully(content, 0, remaining);
+        in.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES);
+        in.readFully(content, remaining, 4000 - remaining);
+        assertThat(new String(content)).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWriteBatchWithoutEnoughSpaceAtEndForContiguousBlockHeader()
+            throws IOException {
+        // given
+        byte[] filler = new byte[10240 - BLOCK_HEADER_SIZE - 1];
+        byte[] bytes = "0123456789".getBytes();
+
+        // when
+        cappedOut.appendBlock(filler, filler.length);
+        long cappedId = cappedOut.appendBlock(bytes, bytes.length);
+        cappedOut.writeBatch();
+
+        // then
+        assertThat(cappedId).isEqualTo(10240);
+        assertThat(in.readLong()).isEqualTo(10240 + BLOCK_HEADER_SIZE + bytes.length);
+        in.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES);
+        assertThat(in.readLong()).isEqualTo(bytes.length);
+        byte[] content = new byte[bytes.length];
+        in.readFully(content);
+        assertThat(new String(content)).isEqualTo("0123456789");
+    }
+
+    private long write(String text) throws IOException {
+        byte[] bytes = text.getBytes();
+        long cappedId = cappedOut.appendBlock(bytes, bytes.length);
+        cappedOut.writeBatch();
+        return cappedId;
+    }
+
     private void assertWrite(String text, long cappedId) throws IOException {
         assertThat(cappedId).isEqualTo(0);
         long currIndex = in.readLong();
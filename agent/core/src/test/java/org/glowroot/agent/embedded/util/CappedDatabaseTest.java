@@ -18,10 +18,14 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -63,6 +67,21 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldReadBlocksWrittenWithDifferentCodecs() throws Exception {
+        // given
+        String text = "0123456789";
+        long lzfCappedId =
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        // when
+        cappedDatabase.setCodec(BlockCodecs.DEFLATE_DICTIONARY);
+        long deflateCappedId =
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        // then
+        assertThat(cappedDatabase.read(lzfCappedId).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(deflateCappedId).read()).isEqualTo(text);
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
@@ -157,4 +176,93 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldWriteConcurrently() throws Exception {
+        // given
+        cappedDatabase.resize(1024);
+        final int numThreads = 8;
+        final int numWritesPerThread = 50;
+        final long[][] cappedIds = new long[numThreads][numWritesPerThread];
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadNum = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < numWritesPerThread; j++) {
+                        String text = threadNum + ":" + j;
+                        try {
+                            cappedIds[threadNum][j] = cappedDatabase.write(
+                                    ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // then
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < numWritesPerThread; j++) {
+                assertThat(cappedDatabase.read(cappedIds[i][j]).read()).isEqualTo(i + ":" + j);
+            }
+        }
+        assertThat(cappedDatabase.getStats("test").getWriteCount())
+                .isEqualTo(numThreads * numWritesPerThread);
+    }
+
+    @Test
+    public void shouldReadConsistentlyWhileWrapping() throws Exception {
+        // given
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        final String text = sb.toString();
+        final AtomicLong lastCappedId = new AtomicLong(
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test"));
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        lastCappedId.set(cappedDatabase
+                                .write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test"));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+
+        // when
+        writer.start();
+
+        // then
+        while (!done.get()) {
+            try {
+                assertThat(cappedDatabase.read(lastCappedId.get()).read()).isEqualTo(text);
+            } catch (IOException e) {
+                assertThat(e.getClass().getName()).isEqualTo(
+                        "org.glowroot.agent.embedded.util.CappedDatabase"
+                                + "$CappedBlockRolledOverMidReadException");
+            }
+        }
+        writer.join();
+    }
 }
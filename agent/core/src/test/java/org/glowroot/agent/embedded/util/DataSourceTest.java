@@ -15,11 +15,18 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
 import java.sql.SQLException;
 
+import com.google.common.collect.ImmutableList;
+
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -93,4 +100,32 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldReadAndWriteUsingReaderConnections() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        DataSource dataSource = new DataSource(dbFile, 2);
+        try {
+            dataSource.syncTable("test",
+                    ImmutableList.<Column>of(ImmutableColumn.of("value", ColumnType.BIGINT)));
+            // when
+            dataSource.update("insert into test (value) values (?)", 1L);
+            dataSource.update("insert into test (value) values (?)", 2L);
+            // then
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(3);
+            assertThat(dataSource.queryForExists("select 1 from test where value = ?", 2L))
+                    .isTrue();
+            // and after re-creating the connections
+            dataSource.deleteAll();
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+            dataSource.update("insert into test (value) values (?)", 3L);
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(3);
+        } finally {
+            dataSource.close();
+            new File(dbFile.getPath().replaceFirst(".h2.db$", "") + ".h2.db").delete();
+        }
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+    }
 }
@@ -50,6 +50,27 @@ public class AggregatorTest {
                 new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
 
         // when
+        shouldFlushWithTrace(aggregator, aggregateCollector);
+    }
+
+    @Test
+    public void shouldFlushWithTraceUsingMultipleProcessingThreads() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        // all transactions have the same transaction type, so the other processing threads are
+        // idle and the interval is only flushed once they have also passed it
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock(), 3);
+
+        // when
+        shouldFlushWithTrace(aggregator, aggregateCollector);
+    }
+
+    private static void shouldFlushWithTrace(Aggregator aggregator,
+            MockCollector aggregateCollector) throws InterruptedException {
         int count = 0;
         long firstCaptureTime = aggregator.add(buildTransaction());
         long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
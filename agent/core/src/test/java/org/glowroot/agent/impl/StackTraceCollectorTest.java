@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import org.glowroot.agent.config.AdvancedConfig;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.impl.StackTraceCollector.RoundRobinSelector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    @Test
+    public void shouldSelectAllThreadsOverSuccessiveCaptures() {
+        // given
+        RoundRobinSelector selector = new RoundRobinSelector();
+        List<String> threads = ImmutableList.of("a", "b", "c", "d", "e");
+        Set<String> selected = Sets.newHashSet();
+        // when
+        for (int i = 0; i < 3; i++) {
+            List<String> selection = selector.select(threads, 2);
+            assertThat(selection).hasSize(2);
+            selected.addAll(selection);
+        }
+        // then
+        assertThat(selected).containsOnly("a", "b", "c", "d", "e");
+    }
+
+    @Test
+    public void shouldContinueWhereLastSelectionLeftOff() {
+        // given
+        RoundRobinSelector selector = new RoundRobinSelector();
+        List<String> threads = ImmutableList.of("a", "b", "c", "d", "e");
+        // when
+        List<String> first = selector.select(threads, 2);
+        List<String> second = selector.select(threads, 2);
+        List<String> third = selector.select(threads, 2);
+        // then
+        assertThat(first).containsExactly("a", "b");
+        assertThat(second).containsExactly("c", "d");
+        assertThat(third).containsExactly("e", "a");
+    }
+
+    @Test
+    public void shouldWrapAroundWhenListShrinks() {
+        // given
+        RoundRobinSelector selector = new RoundRobinSelector();
+        selector.select(ImmutableList.of("a", "b", "c", "d", "e", "f", "g"), 5);
+        // when
+        List<String> selection = selector.select(ImmutableList.of("a", "b", "c"), 2);
+        // then
+        assertThat(selection).hasSize(2);
+        assertThat(selection).isSubsetOf("a", "b", "c");
+    }
+
+    @Test
+    public void shouldSelectAllWhenUnderMax() {
+        // given
+        RoundRobinSelector selector = new RoundRobinSelector();
+        List<String> threads = ImmutableList.of("a", "b");
+        // when
+        List<String> selection = selector.select(threads, 5);
+        // then
+        assertThat(selection).containsExactly("a", "b");
+    }
+
+    @Test
+    public void shouldPassMaxStackTraceDepth() {
+        // given
+        AdvancedConfig advancedConfig = ImmutableAdvancedConfig.builder()
+                .maxStackTraceDepth(50)
+                .build();
+        ThreadContextImpl threadContext = newThreadContext(123);
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        ThreadMXBean threadMXBean = mock(ThreadMXBean.class);
+        when(threadMXBean.getThreadInfo(new long[] {123}, 50))
+                .thenReturn(new ThreadInfo[] {threadInfo});
+        // when
+        StackTraceCollector.captureStackTraces(ImmutableList.of(threadContext),
+                newConfigService(advancedConfig), threadMXBean);
+        // then
+        verify(threadContext).captureStackTrace(threadInfo,
+                advancedConfig.maxStackTraceSamplesPerTransaction());
+    }
+
+    @Test
+    public void shouldNotLimitDepthWhenMaxStackTraceDepthIsZero() {
+        // given
+        AdvancedConfig advancedConfig = ImmutableAdvancedConfig.builder()
+                .maxStackTraceDepth(0)
+                .build();
+        ThreadContextImpl threadContext = newThreadContext(123);
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        ThreadMXBean threadMXBean = mock(ThreadMXBean.class);
+        when(threadMXBean.getThreadInfo(new long[] {123}, Integer.MAX_VALUE))
+                .thenReturn(new ThreadInfo[] {threadInfo});
+        // when
+        StackTraceCollector.captureStackTraces(ImmutableList.of(threadContext),
+                newConfigService(advancedConfig), threadMXBean);
+        // then
+        verify(threadContext).captureStackTrace(threadInfo,
+                advancedConfig.maxStackTraceSamplesPerTransaction());
+    }
+
+    private static ThreadContextImpl newThreadContext(long threadId) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(threadId);
+        return threadContext;
+    }
+
+    private static ConfigService newConfigService(AdvancedConfig advancedConfig) {
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig()).thenReturn(advancedConfig);
+        return configService;
+    }
+}
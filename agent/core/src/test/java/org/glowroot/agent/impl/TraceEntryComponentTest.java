@@ -78,4 +78,101 @@ public class TraceEntryComponentTest {
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testRecycleEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier3 = mock(MessageSupplier.class);
+        when(messageSupplier1.get()).thenReturn(Message.create("abc"));
+        when(messageSupplier2.get()).thenReturn(Message.create("xyz"));
+        when(messageSupplier3.get()).thenReturn(Message.create("mno"));
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TimerImpl timer3 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+        TraceEntryPool traceEntryPool = new TraceEntryPool();
+        traceEntryComponent.setTraceEntryPool(traceEntryPool);
+        TraceEntryImpl entry1 =
+                traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        traceEntryComponent.popEntry(entry1, 0);
+        TraceEntryImpl entry2 =
+                traceEntryComponent.pushEntry(0, messageSupplier3, timer3, null, null, 0);
+        traceEntryComponent.popEntry(entry2, 0);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        // when
+        traceEntryComponent.recycleEntries();
+        // then
+        assertThat(traceEntryComponent.isEmpty()).isTrue();
+        assertThat(entry1.getMessageSupplier()).isNull();
+        assertThat(entry1.getParentTraceEntry()).isNull();
+        assertThat(entry2.getMessageSupplier()).isNull();
+        assertThat(entry2.getParentTraceEntry()).isNull();
+        TraceEntryComponent nextTraceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+        nextTraceEntryComponent.setTraceEntryPool(traceEntryPool);
+        TraceEntryImpl nextEntry1 =
+                nextTraceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        TraceEntryImpl nextEntry2 =
+                nextTraceEntryComponent.pushEntry(0, messageSupplier3, timer3, null, null, 0);
+        assertThat(nextEntry1).isIn(entry1, entry2);
+        assertThat(nextEntry2).isIn(entry1, entry2);
+        assertThat(nextEntry2).isNotSameAs(nextEntry1);
+        assertThat(nextEntry1.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(nextEntry1.getParentTraceEntry())
+                .isSameAs(nextTraceEntryComponent.getRootEntry());
+        assertThat(nextEntry2.getMessageSupplier()).isSameAs(messageSupplier3);
+        assertThat(nextEntry2.getParentTraceEntry()).isSameAs(nextEntry1);
+        assertThat(nextEntry2.getNextTraceEntry()).isNull();
+        assertThat(traceEntryPool.poll()).isNull();
+    }
+
+    @Test
+    public void testStoredTraceDoesNotReachPooledEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create("abc"));
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryPool traceEntryPool = new TraceEntryPool();
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        traceEntryComponent.setTraceEntryPool(traceEntryPool);
+        for (int i = 0; i < 3; i++) {
+            TraceEntryImpl entry =
+                    traceEntryComponent.pushEntry(0, messageSupplier, timer, null, null, 0);
+            traceEntryComponent.popEntry(entry, 0);
+        }
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        traceEntryComponent.recycleEntries();
+        // when
+        // (next transaction on the same thread only uses one of the three pooled entries, and its
+        // trace is stored, so is never recycled)
+        TraceEntryComponent storedTraceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        storedTraceEntryComponent.setTraceEntryPool(traceEntryPool);
+        TraceEntryImpl storedEntry =
+                storedTraceEntryComponent.pushEntry(0, messageSupplier, timer, null, null, 0);
+        storedTraceEntryComponent.popEntry(storedEntry, 0);
+        storedTraceEntryComponent.popEntry(storedTraceEntryComponent.getRootEntry(), 0);
+        // then
+        // walking the stored trace's entries (as is done when creating the trace) only reaches its
+        // own entries
+        TraceEntryImpl rootEntry = storedTraceEntryComponent.getRootEntry();
+        assertThat(rootEntry.getNextTraceEntry()).isSameAs(storedEntry);
+        assertThat(storedEntry.getParentTraceEntry()).isSameAs(rootEntry);
+        assertThat(storedEntry.getNextTraceEntry()).isNull();
+        // and the two remaining pooled entries are still in the pool, exactly once each
+        TraceEntryImpl pooledEntry1 = traceEntryPool.poll();
+        TraceEntryImpl pooledEntry2 = traceEntryPool.poll();
+        assertThat(pooledEntry1).isNotNull();
+        assertThat(pooledEntry2).isNotNull();
+        assertThat(pooledEntry1).isNotSameAs(pooledEntry2);
+        assertThat(pooledEntry1).isNotSameAs(storedEntry);
+        assertThat(pooledEntry2).isNotSameAs(storedEntry);
+        assertThat(traceEntryPool.poll()).isNull();
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.Message;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TraceEntryImplTest {
+
+    @Test
+    public void shouldProduceSameOutputWhenEncoded() {
+        // given
+        TraceEntryImpl entry = createEntry("abc");
+        entry.setStackTrace(ImmutableList.of(new StackTraceElement("a.B", "c", "B.java", 1)));
+        Trace.Entry unencoded = entry.toProto(1, 0, 0, Maps.<String, Integer>newHashMap());
+        // when
+        entry.encode();
+        Trace.Entry encoded = entry.toProto(1, 0, 0, Maps.<String, Integer>newHashMap());
+        // then
+        assertThat(encoded).isEqualTo(unencoded);
+        assertThat(encoded.getMessage()).isEqualTo("abc");
+        assertThat(encoded.getDetailEntryList()).hasSize(1);
+        assertThat(encoded.getLocationStackTraceElementList()).hasSize(1);
+        assertThat(entry.getMessageSupplier()).isNull();
+        assertThat(entry.toString()).isEqualTo("abc");
+    }
+
+    @Test
+    public void shouldNotDuplicateStackTraceCapturedAfterEncoding() {
+        // given
+        TraceEntryImpl entry = createEntry("abc");
+        entry.encode();
+        // when
+        // (e.g. stack trace captured at the end of an extension)
+        entry.setStackTrace(ImmutableList.of(new StackTraceElement("a.B", "c", "B.java", 1)));
+        // then
+        Trace.Entry encoded = entry.toProto(1, 0, 0, Maps.<String, Integer>newHashMap());
+        assertThat(encoded.getMessage()).isEqualTo("abc");
+        assertThat(encoded.getLocationStackTraceElementList()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotLoseMessageWhenReadingWhileEncoding() throws Exception {
+        // given
+        final List<TraceEntryImpl> entries = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++) {
+            TraceEntryImpl entry = createEntry("abc");
+            entry.setStackTrace(
+                    ImmutableList.of(new StackTraceElement("a.B", "c", "B.java", 1)));
+            entries.add(entry);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger badReadCount = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (TraceEntryImpl entry : entries) {
+                        Trace.Entry protobuf =
+                                entry.toProto(1, 0, 0, Maps.<String, Integer>newHashMap());
+                        if (!protobuf.getMessage().equals("abc")
+                                || protobuf.getDetailEntryCount() != 1
+                                || protobuf.getLocationStackTraceElementCount() != 1) {
+                            badReadCount.getAndIncrement();
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        // when
+        for (TraceEntryImpl entry : entries) {
+            entry.encode();
+        }
+        done.set(true);
+        reader.join();
+        // then
+        assertThat(badReadCount.get()).isEqualTo(0);
+    }
+
+    private static TraceEntryImpl createEntry(final String message) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = new MessageSupplier() {
+            @Override
+            public Message get() {
+                Map<String, String> detail = ImmutableMap.of("key", "value");
+                return Message.create(message, detail);
+            }
+        };
+        return new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, 0,
+                mock(TimerImpl.class), null);
+    }
+}
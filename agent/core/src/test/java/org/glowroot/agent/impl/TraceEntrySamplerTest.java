@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceEntrySamplerTest {
+
+    @Test
+    public void shouldCaptureAllWhenDisabled() {
+        // given
+        TraceEntrySampler sampler = new TraceEntrySampler();
+        sampler.updateConfig(0, MILLISECONDS.toNanos(2000));
+        // when
+        for (int i = 0; i < 100; i++) {
+            // then
+            assertThat(sampler.sample("Web", 0)).isEqualTo(TraceEntrySampler.FULL_CAPTURE);
+        }
+    }
+
+    @Test
+    public void shouldLimitFullCapturePerSecond() {
+        // given
+        TraceEntrySampler sampler = new TraceEntrySampler();
+        sampler.updateConfig(10, MILLISECONDS.toNanos(2000));
+        // when
+        int fullCaptureCount = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sampler.sample("Web", SECONDS.toNanos(1)) == TraceEntrySampler.FULL_CAPTURE) {
+                fullCaptureCount++;
+            }
+        }
+        // then
+        assertThat(fullCaptureCount).isEqualTo(10);
+        assertThat(sampler.sample("Web", SECONDS.toNanos(1)))
+                .isEqualTo(MILLISECONDS.toNanos(2000));
+        assertThat(sampler.sample("Web", SECONDS.toNanos(2)))
+                .isEqualTo(TraceEntrySampler.FULL_CAPTURE);
+    }
+
+    @Test
+    public void shouldUpgradeAtRunningPercentile() {
+        // given
+        TraceEntrySampler sampler = new TraceEntrySampler();
+        sampler.updateConfig(1, MILLISECONDS.toNanos(2000));
+        Random random = new Random(0);
+        // when
+        for (int i = 0; i < 10000; i++) {
+            // uniformly distributed between 0 and 100 milliseconds
+            sampler.onCompletedTransaction("Web", random.nextInt(100000000));
+        }
+        sampler.sample("Web", 0);
+        long upgradeNanos = sampler.sample("Web", 0);
+        // then
+        assertThat(upgradeNanos).isBetween(MILLISECONDS.toNanos(70), MILLISECONDS.toNanos(105));
+    }
+
+    @Test
+    public void shouldCapUpgradeAtSlowThreshold() {
+        // given
+        TraceEntrySampler sampler = new TraceEntrySampler();
+        sampler.updateConfig(1, MILLISECONDS.toNanos(10));
+        // when
+        for (int i = 0; i < 1000; i++) {
+            sampler.onCompletedTransaction("Web", MILLISECONDS.toNanos(100));
+        }
+        sampler.sample("Web", 0);
+        // then
+        assertThat(sampler.sample("Web", 0)).isEqualTo(MILLISECONDS.toNanos(10));
+    }
+}
@@ -16,7 +16,12 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
@@ -39,4 +44,45 @@ public class TransactionCollectionTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void testMultipleStripes() throws Exception {
+        // given
+        final TransactionCollection collection = new TransactionCollection(4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TransactionEntry>> futures = Lists.newArrayList();
+        final List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            final Transaction transaction = mock(Transaction.class);
+            transactions.add(transaction);
+            futures.add(executor.submit(new Callable<TransactionEntry>() {
+                @Override
+                public TransactionEntry call() {
+                    return collection.add(transaction);
+                }
+            }));
+        }
+        List<TransactionEntry> entries = Lists.newArrayList();
+        for (Future<TransactionEntry> future : futures) {
+            entries.add(future.get());
+        }
+        executor.shutdown();
+        // when
+        List<Transaction> iterated = ImmutableList.copyOf(collection);
+        // then
+        assertThat(iterated).containsOnlyElementsOf(transactions);
+        assertThat(iterated).hasSize(100);
+        // when
+        for (int i = 0; i < 100; i += 2) {
+            entries.get(i).remove();
+        }
+        // then
+        assertThat(ImmutableList.copyOf(collection)).hasSize(50);
+        // when
+        for (int i = 1; i < 100; i += 2) {
+            entries.get(i).remove();
+        }
+        // then
+        assertThat(collection.iterator().hasNext()).isFalse();
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionCollectorTest {
+
+    private TransactionCollector transactionCollector;
+
+    @Before
+    public void beforeEachTest() {
+        transactionCollector = new TransactionCollector(mock(ConfigService.class),
+                mock(Collector.class), mock(Aggregator.class), Clock.systemClock(),
+                Ticker.systemTicker());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        transactionCollector.close();
+    }
+
+    @Test
+    public void shouldDropTraceWhenOverPendingLimit() {
+        // given
+        Transaction transaction = newSlowTransaction(Integer.MAX_VALUE);
+        // when
+        transactionCollector.onCompletedTransaction(transaction);
+        // then
+        verify(transaction, never()).onCompleteWillStoreTrace(0);
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(1);
+        assertThat(transactionCollector.getPendingTransactionCount()).isEqualTo(0);
+        assertThat(transactionCollector.getPendingEstimatedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotDropPartiallyStoredTraceWhenOverPendingLimit() throws Exception {
+        // given
+        Transaction transaction = newSlowTransaction(Integer.MAX_VALUE);
+        when(transaction.isPartiallyStored()).thenReturn(true);
+        // when
+        transactionCollector.onCompletedTransaction(transaction);
+        // then
+        verify(transaction).onCompleteWillStoreTrace(0);
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReleasePendingBytesAfterCollection() throws Exception {
+        // given
+        Transaction transaction = newSlowTransaction(10);
+        // when
+        transactionCollector.onCompletedTransaction(transaction);
+        transactionCollector.close();
+        // then
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(0);
+        assertThat(transactionCollector.getPendingTransactionCount()).isEqualTo(0);
+        assertThat(transactionCollector.getPendingEstimatedBytes()).isEqualTo(0);
+    }
+
+    private static Transaction newSlowTransaction(int entryCountEstimate) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getSlowThresholdMillisOverride()).thenReturn(0);
+        when(transaction.getEntryCountEstimate()).thenReturn(entryCountEstimate);
+        return transaction;
+    }
+}
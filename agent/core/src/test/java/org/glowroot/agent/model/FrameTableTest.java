@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrameTableTest {
+
+    @Test
+    public void shouldInternEqualFrames() {
+        // given
+        FrameTable frameTable = new FrameTable();
+        StackTraceElement frame = new StackTraceElement("a.B", "c", "B.java", 10);
+        // when
+        int frameId = frameTable.intern(frame);
+        int sameFrameId = frameTable.intern(new StackTraceElement("a.B", "c", "B.java", 10));
+        int otherFrameId = frameTable.intern(new StackTraceElement("a.B", "c", "B.java", 11));
+        // then
+        assertThat(sameFrameId).isEqualTo(frameId);
+        assertThat(otherFrameId).isNotEqualTo(frameId);
+        assertThat(frameTable.getStackTraceElement(frameId)).isSameAs(frame);
+        assertThat(frameTable.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldGrow() {
+        // given
+        FrameTable frameTable = new FrameTable();
+        int[] frameIds = new int[5000];
+        // when
+        for (int i = 0; i < frameIds.length; i++) {
+            frameIds[i] = frameTable.intern(new StackTraceElement("a.B", "c", "B.java", i));
+        }
+        // then
+        for (int i = 0; i < frameIds.length; i++) {
+            assertThat(frameTable.getLineNumber(frameIds[i])).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void shouldStartNewGenerationWhenFull() {
+        // given
+        FrameTable frameTable = FrameTable.getCurrent();
+        frameTable.intern(new StackTraceElement("a.B", "generated", "B.java", 1));
+        long resetCount = FrameTable.getResetCount();
+        // when
+        FrameTable nextFrameTable = FrameTable.getCurrent(frameTable.size());
+        // then
+        assertThat(nextFrameTable).isNotSameAs(frameTable);
+        assertThat(nextFrameTable.size()).isEqualTo(0);
+        assertThat(FrameTable.getResetCount()).isEqualTo(resetCount + 1);
+        assertThat(FrameTable.getCurrent(1)).isSameAs(nextFrameTable);
+    }
+}
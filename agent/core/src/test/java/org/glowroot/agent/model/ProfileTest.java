@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProfileTest {
+
+    private static final StackTraceElement[] STACK_TRACE_1 = new StackTraceElement[] {
+            new StackTraceElement("a.B", "leaf", "B.java", 30),
+            new StackTraceElement("a.B", "middle", "B.java", 20),
+            new StackTraceElement("C", "root", null, 10)};
+
+    private static final StackTraceElement[] STACK_TRACE_2 = new StackTraceElement[] {
+            new StackTraceElement("a.D", "other", "D.java", 40),
+            new StackTraceElement("a.B", "middle", "B.java", 20),
+            new StackTraceElement("C", "root", null, 10)};
+
+    private static final StackTraceElement[] STACK_TRACE_3 = new StackTraceElement[] {
+            new StackTraceElement("x.Y", "run", "Y.java", 50)};
+
+    @Test
+    public void shouldMatchMutableProfile() {
+        // given
+        Profile profile = new Profile(new FrameTable());
+        MutableProfile mutableProfile = new MutableProfile();
+        // when
+        add(profile, mutableProfile, STACK_TRACE_1, Thread.State.RUNNABLE);
+        add(profile, mutableProfile, STACK_TRACE_2, Thread.State.WAITING);
+        add(profile, mutableProfile, STACK_TRACE_1, Thread.State.RUNNABLE);
+        add(profile, mutableProfile, STACK_TRACE_1, Thread.State.BLOCKED);
+        add(profile, mutableProfile, STACK_TRACE_3, Thread.State.RUNNABLE);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(5);
+        assertThat(profile.toProto()).isEqualTo(mutableProfile.toProto());
+    }
+
+    @Test
+    public void shouldMergeIntoMutableProfile() {
+        // given
+        Profile profile = new Profile(new FrameTable());
+        profile.addStackTrace(threadInfo(STACK_TRACE_1, Thread.State.RUNNABLE), 100);
+        profile.addStackTrace(threadInfo(STACK_TRACE_2, Thread.State.RUNNABLE), 100);
+        profile.addStackTrace(threadInfo(STACK_TRACE_3, Thread.State.WAITING), 100);
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(Arrays.asList(STACK_TRACE_3), Thread.State.WAITING);
+        mutableProfile.merge(Arrays.asList(STACK_TRACE_1), Thread.State.RUNNABLE);
+        MutableProfile expectedProfile = new MutableProfile();
+        expectedProfile.merge(Arrays.asList(STACK_TRACE_3), Thread.State.WAITING);
+        expectedProfile.merge(Arrays.asList(STACK_TRACE_1), Thread.State.RUNNABLE);
+        expectedProfile.merge(profile.toProto());
+        // when
+        profile.mergeInto(mutableProfile);
+        // then
+        assertThat(mutableProfile.getSampleCount()).isEqualTo(5);
+        assertThat(mutableProfile.toProto()).isEqualTo(expectedProfile.toProto());
+    }
+
+    @Test
+    public void shouldRespectLimit() {
+        // given
+        Profile profile = new Profile(new FrameTable());
+        // when
+        for (int i = 0; i < 10; i++) {
+            profile.addStackTrace(threadInfo(STACK_TRACE_1, Thread.State.RUNNABLE), 3);
+        }
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+        assertThat(profile.toProto().getNode(0).getSampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldGrowNodeArrays() {
+        // given
+        Profile profile = new Profile(new FrameTable());
+        StackTraceElement[] stackTrace = new StackTraceElement[100];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement("a.B", "c", "B.java", i);
+        }
+        // when
+        profile.addStackTrace(threadInfo(stackTrace, Thread.State.RUNNABLE), 100);
+        // then
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(100);
+        assertThat(profile.toProto().getNode(99).getDepth()).isEqualTo(99);
+    }
+
+    private static void add(Profile profile, MutableProfile mutableProfile,
+            StackTraceElement[] stackTrace, Thread.State threadState) {
+        profile.addStackTrace(threadInfo(stackTrace, threadState), 100);
+        mutableProfile.merge(Arrays.asList(stackTrace), threadState);
+    }
+
+    private static ThreadInfo threadInfo(StackTraceElement[] stackTrace,
+            Thread.State threadState) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        return threadInfo;
+    }
+}
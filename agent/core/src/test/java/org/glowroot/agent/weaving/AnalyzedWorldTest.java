@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private static final ClassLoader loader = AnalyzedWorldTest.class.getClassLoader();
+
+    @Test
+    public void shouldTrackEntriesPerClassLoader() {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(0);
+        // when
+        analyzedWorld.add(newAnalyzedClass("a.b.C"), loader);
+        analyzedWorld.add(newAnalyzedClass("a.b.D"), loader);
+        analyzedWorld.add(newAnalyzedClass("a.b.E"), null);
+        // then
+        assertThat(analyzedWorld.getClassLoaderCount()).isEqualTo(1);
+        assertThat(analyzedWorld.getEntryCount()).isEqualTo(3);
+        assertThat(analyzedWorld.getEntryCountPerClassLoader()).hasSize(2);
+        assertThat(analyzedWorld.getEntryCountPerClassLoader()).containsEntry("bootstrap", 1L);
+        assertThat(analyzedWorld.getEstimatedBytes()).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldReleaseEstimatedBytesOnRemove() {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(0);
+        analyzedWorld.add(newAnalyzedClass(Misc.class.getName()), loader);
+        // when
+        analyzedWorld.removeClasses(ImmutableList.<Class<?>>of(Misc.class));
+        // then
+        assertThat(analyzedWorld.getEntryCount()).isEqualTo(0);
+        assertThat(analyzedWorld.getEstimatedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictWhenOverMaxSize() {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(2000);
+        // when
+        for (int i = 0; i < 100; i++) {
+            analyzedWorld.add(newAnalyzedClass("a.b.C" + i), loader);
+        }
+        // then
+        assertThat(analyzedWorld.getEvictedEntryCount()).isGreaterThan(0);
+        assertThat(analyzedWorld.getEstimatedBytes()).isLessThanOrEqualTo(2000);
+        assertThat(analyzedWorld.getEntryCount() + analyzedWorld.getEvictedEntryCount())
+                .isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNotEvictClassesWithAdvice() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(2000);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.b.Advised")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("m")
+                        .returnType("void")
+                        .modifiers(1)
+                        .addAdvisors(advice)
+                        .build())
+                .build();
+        analyzedWorld.add(analyzedClass, loader);
+        // when
+        for (int i = 0; i < 100; i++) {
+            analyzedWorld.add(newAnalyzedClass("a.b.C" + i), loader);
+        }
+        // then
+        assertThat(analyzedWorld.getEvictedEntryCount()).isGreaterThan(0);
+        assertThat(analyzedWorld.getAnalyzedClass("a.b.Advised", loader)).isSameAs(analyzedClass);
+    }
+
+    @Test
+    public void shouldNotScanWhenNonEvictableClassesExceedMaxSize() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(100);
+        Advice advice = new AdviceBuilder(BasicAdvice.class).build();
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.b.Advised")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("m")
+                        .returnType("void")
+                        .modifiers(1)
+                        .addAdvisors(advice)
+                        .build())
+                .build(), loader);
+        // when
+        for (int i = 0; i < 10; i++) {
+            analyzedWorld.add(newAnalyzedClass("a.b.C" + i), loader);
+        }
+        // then
+        assertThat(analyzedWorld.getEvictedEntryCount()).isEqualTo(0);
+        assertThat(analyzedWorld.getEntryCount()).isEqualTo(11);
+    }
+
+    @Test
+    public void shouldReanalyzeEvictedClass() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(2000);
+        AnalyzedClass analyzedClass = analyzedWorld.getAnalyzedClass(Misc.class.getName(), loader);
+        // when
+        for (int i = 0; i < 100; i++) {
+            analyzedWorld.add(newAnalyzedClass("a.b.C" + i), loader);
+        }
+        AnalyzedClass reanalyzedClass =
+                analyzedWorld.getAnalyzedClass(Misc.class.getName(), loader);
+        // then
+        assertThat(reanalyzedClass).isEqualTo(analyzedClass);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(long maxSizeBytes) {
+        return new AnalyzedWorld(Suppliers.<List<Advice>>ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), maxSizeBytes);
+    }
+
+    private static AnalyzedClass newAnalyzedClass(String name) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name(name)
+                .superName("java.lang.Object")
+                .build();
+    }
+}
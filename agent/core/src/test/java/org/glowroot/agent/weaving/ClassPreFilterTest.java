@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.targets.AbstractMisc;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassPreFilterTest {
+
+    private static final ClassLoader loader = ClassPreFilterTest.class.getClassLoader();
+
+    @Test
+    public void shouldRejectWhenNothingCanMatch() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors = ImmutableList.of();
+        // when
+        boolean miscRejected = classPreFilter.reject(getClassBytes(Misc.class), advisors, loader);
+        // then
+        assertThat(miscRejected).isTrue();
+        assertThat(classPreFilter.getRejectedClassCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRejectWhenSuperTypeWasNotRejected() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors = ImmutableList.of();
+        // when
+        boolean basicMiscRejected =
+                classPreFilter.reject(getClassBytes(BasicMisc.class), advisors, loader);
+        // then
+        assertThat(basicMiscRejected).isFalse();
+        assertThat(classPreFilter.getPassedClassCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRejectWhenSuperTypeWasRejectedInSameLoader() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors = ImmutableList.of();
+        classPreFilter.reject(getClassBytes(Misc.class), advisors, loader);
+        // when
+        boolean abstractMiscRejected =
+                classPreFilter.reject(getClassBytes(AbstractMisc.class), advisors, loader);
+        // then
+        assertThat(abstractMiscRejected).isTrue();
+    }
+
+    @Test
+    public void shouldNotRejectWhenSuperTypeWasOnlyRejectedAboveChildFirstLoader()
+            throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors = ImmutableList.of();
+        classPreFilter.reject(getClassBytes(Misc.class), advisors, loader);
+        // child loader is not known to be parent-first, so it could define its own Misc
+        URLClassLoader childLoader = new URLClassLoader(new URL[0], loader);
+        // when
+        boolean abstractMiscRejected =
+                classPreFilter.reject(getClassBytes(AbstractMisc.class), advisors, childLoader);
+        // then
+        assertThat(abstractMiscRejected).isFalse();
+    }
+
+    @Test
+    public void shouldNotRejectWhenClassNameCanMatch() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        // when
+        boolean miscRejected = classPreFilter.reject(getClassBytes(Misc.class), advisors, loader);
+        // then
+        assertThat(miscRejected).isFalse();
+    }
+
+    @Test
+    public void shouldNotRejectWhenAnnotationCanMatch() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        List<Advice> advisors =
+                ImmutableList.of(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build());
+        // when
+        boolean miscRejected = classPreFilter.reject(getClassBytes(Misc.class), advisors, loader);
+        boolean basicMiscRejected =
+                classPreFilter.reject(getClassBytes(BasicMisc.class), advisors, loader);
+        // then
+        assertThat(miscRejected).isTrue();
+        assertThat(basicMiscRejected).isFalse();
+    }
+
+    @Test
+    public void shouldForgetRejectedClassesWhenAdvisorsChange() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = newClassPreFilter();
+        classPreFilter.reject(getClassBytes(Misc.class), ImmutableList.<Advice>of(), loader);
+        // when
+        boolean miscRejected = classPreFilter.reject(getClassBytes(Misc.class),
+                ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build()), loader);
+        // then
+        assertThat(miscRejected).isFalse();
+    }
+
+    private static ClassPreFilter newClassPreFilter() {
+        return new ClassPreFilter(ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        String resourceName = "/" + clazz.getName().replace('.', '/') + ".class";
+        return Resources.toByteArray(ClassPreFilterTest.class.getResource(resourceName));
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.weaving;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
 import java.util.List;
 
@@ -121,6 +122,55 @@ public class PathEvaluatorTest {
         assertThat(value).isEqualTo("eeeeee");
     }
 
+    @Test
+    public void shouldGenerateAccessorForPublicPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "b.size");
+        // when
+        int value = (Integer) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(value).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldGenerateAccessorForPublicPathWithNull() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "nil.size");
+        // when
+        Object value = pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(value).isNull();
+    }
+
+    @Test
+    public void shouldWrapExceptionFromGeneratedAccessor() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "error");
+        // when
+        Throwable t = null;
+        try {
+            pathEvaluator.evaluateOnBase(new PublicA());
+        } catch (InvocationTargetException e) {
+            t = e.getCause();
+        }
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(t).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldNotGenerateAccessorForNonPublicPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(A.class, "b.str");
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(new A());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isFalse();
+        assertThat(value).isEqualTo("abc");
+    }
+
     @SuppressWarnings("unused")
     private static class SomeObject {
 
@@ -180,4 +230,21 @@ public class PathEvaluatorTest {
     private static class E extends B {
         private final String eee = "eeeeee";
     }
+
+    public static class PublicA {
+
+        public final PublicB b = new PublicB();
+        public final PublicB nil = null;
+
+        public String getError() {
+            throw new IllegalStateException();
+        }
+    }
+
+    public static class PublicB {
+
+        public int size() {
+            return 3;
+        }
+    }
 }
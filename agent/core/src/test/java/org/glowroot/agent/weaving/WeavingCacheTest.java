@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ThreadContextImpl;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.weaving.WeavingCache.CachedClass;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WeavingCacheTest {
+
+    private File tempFile;
+    private List<Advice> advisors;
+
+    @Before
+    public void onBefore() throws Exception {
+        tempFile = File.createTempFile("glowroot-test-", ".weaving-cache.dat");
+        tempFile.delete();
+        advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+    }
+
+    @After
+    public void onAfter() {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldUseCachedWeavingAfterRestart() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        String className = ClassNames.toInternalName(BasicMisc.class.getName());
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        byte[] wovenBytes = newWeaver(weavingCache).weave(classBytes, className, null,
+                WeavingCacheTest.class.getClassLoader());
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(tempFile, "test");
+        byte[] cachedWovenBytes = newWeaver(weavingCache).weave(classBytes, className, null,
+                WeavingCacheTest.class.getClassLoader());
+        weavingCache.close();
+        // then
+        assertThat(wovenBytes).isNotNull();
+        assertThat(cachedWovenBytes).isEqualTo(wovenBytes);
+        assertThat(weavingCache.getHitCount()).isEqualTo(1);
+        assertThat(weavingCache.getMissCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotUseCacheWithDifferentFingerprint() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        String className = ClassNames.toInternalName(BasicMisc.class.getName());
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        newWeaver(weavingCache).weave(classBytes, className, null,
+                WeavingCacheTest.class.getClassLoader());
+        weavingCache.close();
+        // when
+        weavingCache = new WeavingCache(tempFile, "test2");
+        // then
+        assertThat(weavingCache.getEntryCount()).isEqualTo(0);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldNotUseCacheWithDifferentAdvisors() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        String className = ClassNames.toInternalName(BasicMisc.class.getName());
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        newWeaver(weavingCache).weave(classBytes, className, null,
+                WeavingCacheTest.class.getClassLoader());
+        // when
+        advisors = ImmutableList.of();
+        byte[] wovenBytes = newWeaver(weavingCache).weave(classBytes, className, null,
+                WeavingCacheTest.class.getClassLoader());
+        weavingCache.close();
+        // then
+        assertThat(wovenBytes).isNull();
+        assertThat(weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(weavingCache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRoundTripAnalyzedClass() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.b.C")
+                .superName("a.b.D")
+                .addInterfaceNames("a.b.E")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("m")
+                        .addParameterTypes("int")
+                        .returnType("void")
+                        .modifiers(1)
+                        .addAdvisors(advisors.get(0))
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("n")
+                        .build())
+                .build();
+        // when
+        byte[] encoded = weavingCache.encode(analyzedClass, advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        AnalyzedClass decoded = weavingCache.decode(encoded, advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        // then
+        assertThat(decoded).isEqualTo(analyzedClass);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldReplaceStaleEntry() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        weavingCache.put("key", new CachedClass("stale", new byte[] {1}, null,
+                ImmutableList.<String>of()));
+        // when
+        weavingCache.put("key", new CachedClass("current", new byte[] {2}, null,
+                ImmutableList.<String>of()));
+        weavingCache.close();
+        long fileSizeBeforeCompaction = tempFile.length();
+        weavingCache = new WeavingCache(tempFile, "test");
+        // then
+        assertThat(weavingCache.getEntryCount()).isEqualTo(1);
+        assertThat(weavingCache.get("key").hierarchyFingerprint()).isEqualTo("current");
+        assertThat(weavingCache.get("key").analyzedClass()).containsExactly(2);
+        // superseded record is removed on load
+        assertThat(tempFile.length()).isLessThan(fileSizeBeforeCompaction);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldAppendAfterCompaction() throws Exception {
+        // given
+        WeavingCache weavingCache = new WeavingCache(tempFile, "test");
+        weavingCache.put("key", new CachedClass("stale", new byte[] {1}, null,
+                ImmutableList.<String>of()));
+        weavingCache.put("key", new CachedClass("current", new byte[] {2}, null,
+                ImmutableList.<String>of()));
+        weavingCache.close();
+        weavingCache = new WeavingCache(tempFile, "test");
+        // when
+        weavingCache.put("key2", new CachedClass("other", new byte[] {3}, null,
+                ImmutableList.<String>of()));
+        weavingCache.close();
+        weavingCache = new WeavingCache(tempFile, "test");
+        // then
+        assertThat(weavingCache.getEntryCount()).isEqualTo(2);
+        assertThat(weavingCache.get("key").hierarchyFingerprint()).isEqualTo("current");
+        assertThat(weavingCache.get("key2").hierarchyFingerprint()).isEqualTo("other");
+        weavingCache.close();
+    }
+
+    private Weaver newWeaver(WeavingCache weavingCache) {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
+        return new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                new TimerNameCache(), mock(ConfigService.class), weavingCache);
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        String resourceName = "/" + clazz.getName().replace('.', '/') + ".class";
+        return Resources.toByteArray(WeavingCacheTest.class.getResource(resourceName));
+    }
+}
@@ -58,6 +58,7 @@ import org.glowroot.central.repo.FullQueryTextDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.RoleDao;
+import org.glowroot.central.repo.RollupLeaseDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.SyntheticResultDao;
 import org.glowroot.central.repo.TraceAttributeNameDao;
@@ -67,6 +68,7 @@ import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
 import org.glowroot.central.util.MailService;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementLimiter;
 import org.glowroot.common.config.ImmutableWebConfig;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.config.WebConfig;
@@ -187,8 +189,9 @@ class CentralModule {
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
+            StatementLimiter statementLimiter = new StatementLimiter(session);
             AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+                    fullQueryTextDao, statementLimiter, configRepository, clock);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
@@ -213,7 +216,7 @@ class CentralModule {
 
             server = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     agentDao, configDao, aggregateDao, gaugeValueDao, environmentDao, heartbeatDao,
-                    traceDao, configRepository, alertingService, clock, version);
+                    traceDao, configRepository, statementLimiter, alertingService, version);
             DownstreamServiceImpl downstreamService = server.getDownstreamService();
             configRepository.addAgentConfigListener(new AgentConfigListener() {
                 @Override
@@ -222,9 +225,10 @@ class CentralModule {
                     checkNotNull(downstreamService).updateAgentConfigIfConnectedAndNeeded(agentId);
                 }
             });
+            RollupLeaseDao rollupLeaseDao = new RollupLeaseDao(session);
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
-                    syntheticResultDao, heartbeatDao, configRepository, alertingService,
-                    downstreamService, clock);
+                    syntheticResultDao, heartbeatDao, rollupLeaseDao, configRepository,
+                    alertingService, downstreamService, clock);
             pingAndSyntheticAlertService = new SyntheticMonitorService(agentDao, configRepository,
                     triggeredAlertDao, alertingService, syntheticResultDao, ticker, clock);
 
@@ -21,14 +21,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -43,7 +48,7 @@ import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.TraceDao;
-import org.glowroot.common.util.Clock;
+import org.glowroot.central.util.StatementLimiter;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
@@ -80,6 +85,11 @@ class GrpcServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // agents send their aggregates at a fixed (per agent) delay within this window after each
+    // minute boundary, so that they don't all send at the same time
+    static final int AGGREGATE_FLUSH_WINDOW_MILLIS = Math.max(100, Math.min(30000,
+            Integer.getInteger("glowroot.central.aggregateFlushWindowMillis", 30000)));
+
     private final AgentDao agentDao;
     private final ConfigDao configDao;
     private final EnvironmentDao environmentDao;
@@ -89,22 +99,22 @@ class GrpcServer {
     private final TraceDao traceDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
-    private final Clock clock;
     private final String version;
 
     private final DownstreamServiceImpl downstreamService;
 
     private final ServerImpl server;
 
+    private final StatementLimiter statementLimiter;
+
     private final ExecutorService alertCheckingExecutor;
 
-    private volatile long currentMinute;
-    private final AtomicInteger nextDelay = new AtomicInteger();
 
     GrpcServer(String bindAddress, int port, AgentDao agentDao, ConfigDao configDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, EnvironmentDao environmentDao,
             HeartbeatDao heartbeatDao, TraceDao traceDao, ConfigRepositoryImpl configRepository,
-            AlertingService alertingService, Clock clock, String version) throws IOException {
+            StatementLimiter statementLimiter, AlertingService alertingService, String version)
+            throws IOException {
         this.agentDao = agentDao;
         this.configDao = configDao;
         this.environmentDao = environmentDao;
@@ -113,8 +123,8 @@ class GrpcServer {
         this.heartbeatDao = heartbeatDao;
         this.traceDao = traceDao;
         this.configRepository = configRepository;
+        this.statementLimiter = statementLimiter;
         this.alertingService = alertingService;
-        this.clock = clock;
         this.version = version;
 
         downstreamService = new DownstreamServiceImpl(agentDao, configDao);
@@ -139,6 +149,7 @@ class GrpcServer {
         server.shutdown();
         // then shutdown alert checking executor
         alertCheckingExecutor.shutdown();
+        statementLimiter.close();
     }
 
     @VisibleForTesting
@@ -146,6 +157,13 @@ class GrpcServer {
         return agentRollupId.replaceAll(" */ *", "/").trim();
     }
 
+    // deterministic so that each agent keeps the same slot across minutes and central restarts,
+    // spread out in 100 millisecond steps across the flush window
+    @VisibleForTesting
+    static int getAggregateDelayMillis(String agentId) {
+        return Math.floorMod(agentId.hashCode(), AGGREGATE_FLUSH_WINDOW_MILLIS / 100) * 100;
+    }
+
     @FunctionalInterface
     interface AlertConfigConsumer {
         void accept(AlertConfig alertConfig) throws Exception;
@@ -178,7 +196,8 @@ class GrpcServer {
             logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                     request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
             InitResponse.Builder response = InitResponse.newBuilder()
-                    .setGlowrootCentralVersion(version);
+                    .setGlowrootCentralVersion(version)
+                    .setNextAggregateDelayMillis(getAggregateDelayMillis(agentId));
             if (!updatedAgentConfig.equals(request.getAgentConfig())) {
                 response.setAgentConfig(updatedAgentConfig);
             }
@@ -189,6 +208,13 @@ class GrpcServer {
         @Override
         public StreamObserver<AggregateStreamMessage> collectAggregateStream(
                 final StreamObserver<AggregateResponseMessage> responseObserver) {
+            // inbound messages are requested one at a time, and only while the statement limiter
+            // is not saturated, so that agents are pushed back on (via grpc flow control) instead
+            // of piling up more work than cassandra can absorb
+            ServerCallStreamObserver<AggregateResponseMessage> serverCallStreamObserver =
+                    (ServerCallStreamObserver<AggregateResponseMessage>) responseObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            statementLimiter.whenNotSaturated(() -> serverCallStreamObserver.request(1));
             return new StreamObserver<AggregateStreamMessage>() {
 
                 private @MonotonicNonNull AggregateStreamHeader header;
@@ -227,6 +253,7 @@ class GrpcServer {
                             throw new RuntimeException(
                                     "Unexpected message: " + value.getMessageCase());
                     }
+                    statementLimiter.whenNotSaturated(() -> serverCallStreamObserver.request(1));
                 }
 
                 @Override
@@ -284,42 +311,39 @@ class GrpcServer {
                 List<Aggregate.SharedQueryText> sharedQueryTexts,
                 List<OldAggregatesByType> aggregatesByTypeList,
                 StreamObserver<AggregateResponseMessage> responseObserver) {
-            if (!aggregatesByTypeList.isEmpty()) {
-                try {
-                    aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
-                            sharedQueryTexts);
-                } catch (Throwable t) {
-                    logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-                    responseObserver.onError(t);
-                    return;
-                }
-            }
             String agentDisplay;
+            ListenableFuture<?> future;
             try {
                 agentDisplay = agentDao.readAgentRollupDisplay(agentId);
-            } catch (Exception e) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
-                responseObserver.onError(e);
+                if (aggregatesByTypeList.isEmpty()) {
+                    future = Futures.immediateFuture(null);
+                } else {
+                    // respond to the agent once stored, without blocking a thread in the meantime
+                    future = aggregateDao.storeAsync(agentId, captureTime, aggregatesByTypeList,
+                            sharedQueryTexts);
+                }
+            } catch (Throwable t) {
+                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                responseObserver.onError(t);
                 return;
             }
-            checkAlerts(agentId, agentDisplay, AlertKind.TRANSACTION,
-                    alertConfig -> checkTransactionAlert(agentId, agentDisplay, alertConfig,
-                            captureTime));
-            responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                    .setNextDelayMillis(getNextDelayMillis())
-                    .build());
-            responseObserver.onCompleted();
-        }
-
-        private int getNextDelayMillis() {
-            long currentishTimeMillis = clock.currentTimeMillis() + 10000;
-            if (currentishTimeMillis > currentMinute) {
-                // race condition here is ok, at worst results in resetting nextDelay multiple times
-                nextDelay.set(0);
-                currentMinute = (long) Math.ceil(currentishTimeMillis / 60000.0) * 60000;
-            }
-            // spread out aggregate collections 100 milliseconds a part, rolling over at 10 seconds
-            return nextDelay.getAndAdd(100) % 10000;
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(@Nullable Object result) {
+                    checkAlerts(agentId, agentDisplay, AlertKind.TRANSACTION,
+                            alertConfig -> checkTransactionAlert(agentId, agentDisplay,
+                                    alertConfig, captureTime));
+                    responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                            .setNextDelayMillis(getAggregateDelayMillis(agentId))
+                            .build());
+                    responseObserver.onCompleted();
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.error("{} - {}", agentDisplay, t.getMessage(), t);
+                    responseObserver.onError(t);
+                }
+            }, statementLimiter.getExecutor());
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Gauges",
@@ -468,16 +492,8 @@ class GrpcServer {
 
         private void checkAlerts(String agentId, String agentDisplay, AlertKind alertKind,
                 AlertConfigConsumer check) {
-            List<AlertConfig> alertConfigs;
-            try {
-                alertConfigs = configRepository.getAlertConfigs(agentId, alertKind);
-            } catch (Exception e) {
-                logger.error("{} - {}", agentDisplay, e.getMessage(), e);
-                return;
-            }
-            if (alertConfigs.isEmpty()) {
-                return;
-            }
+            // alert configs are read on the alert checking thread since this may be called back
+            // from a cassandra driver thread, see collectAggregatesInternal()
             alertCheckingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
@@ -487,7 +503,9 @@ class GrpcServer {
                         logger.error("{} - {}", agentDisplay, t.getMessage(), t);
                     }
                 }
-                private void runInternal() throws InterruptedException {
+                private void runInternal() throws Exception {
+                    List<AlertConfig> alertConfigs =
+                            configRepository.getAlertConfigs(agentId, alertKind);
                     for (AlertConfig alertConfig : alertConfigs) {
                         try {
                             check.accept(alertConfig);
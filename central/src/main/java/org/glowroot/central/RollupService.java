@@ -15,14 +15,30 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,48 +49,97 @@ import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.RollupLeaseDao;
 import org.glowroot.central.repo.SyntheticResultDao;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class RollupService implements Runnable {
+// top level agent rollups (together with all of their descendants) are hashed into shards, and
+// each shard is rolled up by whichever central node acquires the shard's lease for the current
+// rollup loop, within a shard the agent rollups are rolled up in parallel on a bounded worker pool,
+// with each agent rollup only being rolled up after all of its children
+//
+// central nodes try to acquire the leases for shards containing agents whose data they received
+// (and so hold in-memory pre-rollups for) first, and only try to acquire the remaining leases after
+// a short delay, so that the rollups mostly avoid re-reading the data from cassandra
+class RollupService implements Runnable, RollupServiceMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final int WORKER_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.central.rollupThreads", 8));
+
+    private static final int SHARDS =
+            Math.max(1, Integer.getInteger("glowroot.central.rollupShards", 64));
+
+    private static final long LEASE_LOCALITY_DELAY_MILLIS = Math.max(0,
+            Long.getLong("glowroot.central.rollupLeaseLocalityDelayMillis", 5000));
+
+    // rollups wait for the aggregate flush window to close (plus some slack) so that aggregates
+    // from all agents for the prior minute have been received
+    private static final long ROLLUP_OFFSET_MILLIS =
+            GrpcServer.AGGREGATE_FLUSH_WINDOW_MILLIS + 10000;
+
+    private static final String MBEAN_OBJECT_NAME = "org.glowroot.central:type=RollupService";
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final HeartbeatDao heartbeatDao;
+    private final RollupLeaseDao rollupLeaseDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    // identifies this central node when acquiring rollup leases
+    private final String leaseOwner =
+            ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
+    private volatile long lastLoopDurationMillis;
+    private volatile int lastLoopAgentRollupCount;
+    private volatile int lastLoopLeasedShardCount;
+    private volatile long[] lastLoopRollupLagMillis = new long[0];
+
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
             SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
-            ConfigRepositoryImpl configRepository, AlertingService alertingService,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            RollupLeaseDao rollupLeaseDao, ConfigRepositoryImpl configRepository,
+            AlertingService alertingService, DownstreamServiceImpl downstreamService, Clock clock)
+            throws Exception {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.heartbeatDao = heartbeatDao;
+        this.rollupLeaseDao = rollupLeaseDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
         this.clock = clock;
+        workerExecutor = Executors.newFixedThreadPool(WORKER_THREADS,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Rollup-Worker-%d")
+                        .build());
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(MBEAN_OBJECT_NAME);
+        if (!mbeanServer.isRegistered(objectName)) {
+            mbeanServer.registerMBean(castInitialized(this), objectName);
+        }
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -83,7 +148,8 @@ class RollupService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
+                Thread.sleep(
+                        millisUntilNextRollup(clock.currentTimeMillis(), ROLLUP_OFFSET_MILLIS));
                 runInternal();
             } catch (InterruptedException e) {
                 continue;
@@ -93,13 +159,42 @@ class RollupService implements Runnable {
         }
     }
 
-    void close() throws InterruptedException {
+    @Override
+    public long getLastLoopDurationMillis() {
+        return lastLoopDurationMillis;
+    }
+
+    @Override
+    public int getLastLoopAgentRollupCount() {
+        return lastLoopAgentRollupCount;
+    }
+
+    @Override
+    public int getLastLoopLeasedShardCount() {
+        return lastLoopLeasedShardCount;
+    }
+
+    @Override
+    public long[] getLastLoopRollupLagMillis() {
+        return lastLoopRollupLagMillis.clone();
+    }
+
+    void close() throws Exception {
         closed = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(MBEAN_OBJECT_NAME);
+        if (mbeanServer.isRegistered(objectName)) {
+            mbeanServer.unregisterMBean(objectName);
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -107,38 +202,152 @@ class RollupService implements Runnable {
             timer = "outer rollup loop")
     private void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
-        for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
+        Stopwatch loopStopwatch = Stopwatch.createStarted();
+        long currentTime = clock.currentTimeMillis();
+        // central nodes run the rollup loop at the same time each minute, so this identifies the
+        // rollup loop across the cluster
+        long rollupTime = currentTime - currentTime % MINUTES.toMillis(1);
+        List<AgentRollup> agentRollups = agentDao.readAgentRollups();
+        ListMultimap<Integer, AgentRollup> shards = ArrayListMultimap.create();
+        for (AgentRollup agentRollup : agentRollups) {
+            shards.put(getShard(agentRollup.id(), SHARDS), agentRollup);
+        }
+        Set<String> preRollupAgentIds = Sets.newHashSet(aggregateDao.getPreRollupAgentIds());
+        preRollupAgentIds.addAll(gaugeValueDao.getPreRollupAgentIds());
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        Map<Integer, List<AgentRollup>> remainingShards = Maps.newHashMap();
+        for (Entry<Integer, List<AgentRollup>> entry : Multimaps.asMap(shards).entrySet()) {
+            int shard = entry.getKey();
+            List<AgentRollup> shardAgentRollups = entry.getValue();
+            if (hasPreRollups(shardAgentRollups, preRollupAgentIds)) {
+                futures.add(acquireLeaseAndRollupShard(shard, rollupTime, shardAgentRollups));
+            } else {
+                remainingShards.put(shard, shardAgentRollups);
+            }
+        }
+        if (!remainingShards.isEmpty() && LEASE_LOCALITY_DELAY_MILLIS > 0) {
+            // give the central nodes that hold the pre-rollups for these shards a chance to acquire
+            // the leases first
+            Thread.sleep(LEASE_LOCALITY_DELAY_MILLIS);
+        }
+        for (Entry<Integer, List<AgentRollup>> entry : remainingShards.entrySet()) {
+            futures.add(acquireLeaseAndRollupShard(entry.getKey(), rollupTime, entry.getValue()));
+        }
+        int leasedShardCount = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                if (future.get()) {
+                    leasedShardCount++;
+                }
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        // updating agent configs doesn't depend on rollups, just here for convenience, and this is
+        // done by every central node (regardless of leases) since each agent is only connected to
+        // a single central node
+        for (AgentRollup agentRollup : agentRollups) {
+            consumeAgentRollups(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
+        }
+        // pre-rollups are expired by every central node (regardless of leases), since each central
+        // node holds pre-rollups for the agents whose data it received
+        aggregateDao.expirePreRollups();
+        gaugeValueDao.expirePreRollups();
+        lastLoopDurationMillis = loopStopwatch.elapsed(MILLISECONDS);
+        lastLoopAgentRollupCount = agentRollups.size();
+        lastLoopLeasedShardCount = leasedShardCount;
+        lastLoopRollupLagMillis = getRollupLagMillis(
+                aggregateDao.getAndResetOldestPendingRollupCaptureTimes(), currentTime);
+    }
+
+    private CompletableFuture<Boolean> acquireLeaseAndRollupShard(int shard, long rollupTime,
+            List<AgentRollup> agentRollups) {
+        return CompletableFuture
+                .supplyAsync(() -> tryAcquireLease(shard, rollupTime), workerExecutor)
+                .thenCompose(acquired -> acquired ? rollupShard(agentRollups)
+                        : CompletableFuture.completedFuture(false));
+    }
+
+    private boolean tryAcquireLease(int shard, long rollupTime) {
+        try {
+            return rollupLeaseDao.tryAcquire(shard, rollupTime, leaseOwner);
+        } catch (Exception e) {
+            logger.error("shard {} - {}", shard, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    // completes with true once all agent rollups in the shard have been processed
+    private CompletableFuture<Boolean> rollupShard(List<AgentRollup> agentRollups) {
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            futures.add(rollupTree(agentRollup, null));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(ignored -> true);
+    }
+
+    // completes with true if the gauges of the agent rollup and all of its descendants were rolled
+    // up successfully
+    private CompletableFuture<Boolean> rollupTree(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            childFutures.add(rollupTree(childAgentRollup, agentRollup.id()));
+        }
+        return CompletableFuture
+                .allOf(childFutures.toArray(new CompletableFuture<?>[childFutures.size()]))
+                .thenApplyAsync(ignored -> {
+                    boolean childGaugesSuccess = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childGaugesSuccess = childFuture.join() && childGaugesSuccess;
+                    }
+                    return rollupAndCheckAlerts(agentRollup, parentAgentRollupId,
+                            childGaugesSuccess);
+                }, workerExecutor);
+    }
+
+    // called only after all children of the agent rollup have been rolled up
+    //
+    // returns true if the gauges of the agent rollup were rolled up successfully
+    private boolean rollupAndCheckAlerts(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, boolean childGaugesSuccess) {
+        try {
+            rollupAggregates(agentRollup, parentAgentRollupId);
+            // important to not roll up parent if exception occurs while rolling up a child, since
+            // gauge values initial roll up from children is done on the 1-min aggregates of the
+            // children
+            boolean gaugesSuccess =
+                    childGaugesSuccess && rollupGauges(agentRollup, parentAgentRollupId);
             rollupSyntheticMonitors(agentRollup);
             // checking for deleted alerts doesn't depend on rollup
-            consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
+            runAndLogException(agentRollup, this::checkForDeletedAlerts);
             // checking transaction and gauge alerts after rollup since their calculation can depend
             // on rollups depending on time period length
             //
             // these alerts are also checked right after receiving the respective data
             // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in
             // case no data has been received from agent recently
-            consumeAgentRollups(agentRollup, this::checkTransactionAlerts);
-            consumeAgentRollups(agentRollup, this::checkGaugeAlerts);
+            runAndLogException(agentRollup, this::checkTransactionAlerts);
+            runAndLogException(agentRollup, this::checkGaugeAlerts);
             // checking heartbeat alerts doesn't depend on rollups, just here for convenience
             if (stopwatch.elapsed(MINUTES) >= 4) {
                 // give agents plenty of time to re-connect after central start-up
                 // needs to be at least enough time for grpc max reconnect backoff
                 // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
                 // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
-                consumeAgentRollups(agentRollup, this::checkHeartbeatAlerts);
+                runAndLogException(agentRollup, this::checkHeartbeatAlerts);
             }
-            // updating agent configs doesn't depend on rollups, just here for convenience
-            consumeAgentRollups(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
+            return gaugesSuccess;
+        } catch (InterruptedException e) {
+            // shutdown requested
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
     private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
-        }
         try {
             aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -153,19 +362,6 @@ class RollupService implements Runnable {
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
-        }
         try {
             gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -179,10 +375,7 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupSyntheticMonitors(childAgentRollup);
-        }
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -193,6 +386,18 @@ class RollupService implements Runnable {
         }
     }
 
+    private void runAndLogException(AgentRollup agentRollup,
+            AgentRollupConsumer agentRollupConsumer) throws InterruptedException {
+        try {
+            agentRollupConsumer.accept(agentRollup);
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+        }
+    }
+
     private void consumeAgentRollups(AgentRollup agentRollup,
             AgentRollupConsumer agentRollupConsumer) throws Exception {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
@@ -292,8 +497,39 @@ class RollupService implements Runnable {
     }
 
     @VisibleForTesting
-    static long millisUntilNextRollup(long currentTimeMillis) {
-        return 60000 - (currentTimeMillis - 10000) % 60000;
+    static long millisUntilNextRollup(long currentTimeMillis, long rollupOffsetMillis) {
+        return 60000 - (currentTimeMillis - rollupOffsetMillis) % 60000;
+    }
+
+    @VisibleForTesting
+    static int getShard(String agentRollupId, int shards) {
+        return Math.floorMod(agentRollupId.hashCode(), shards);
+    }
+
+    @VisibleForTesting
+    static boolean hasPreRollups(List<AgentRollup> agentRollups, Set<String> preRollupAgentIds) {
+        for (AgentRollup agentRollup : agentRollups) {
+            if (preRollupAgentIds.contains(agentRollup.id())
+                    || hasPreRollups(agentRollup.children(), preRollupAgentIds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    static long[] getRollupLagMillis(Map<Integer, Long> oldestPendingRollupCaptureTimes,
+            long currentTime) {
+        int rollupLevels = 0;
+        for (Integer rollupLevel : oldestPendingRollupCaptureTimes.keySet()) {
+            rollupLevels = Math.max(rollupLevels, rollupLevel + 1);
+        }
+        long[] rollupLagMillis = new long[rollupLevels];
+        for (int i = 0; i < rollupLevels; i++) {
+            Long captureTime = oldestPendingRollupCaptureTimes.get(i);
+            rollupLagMillis[i] = captureTime == null ? -1 : Math.max(currentTime - captureTime, 0);
+        }
+        return rollupLagMillis;
     }
 
     @SuppressWarnings("return.type.incompatible")
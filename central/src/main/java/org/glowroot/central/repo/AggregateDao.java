@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -46,6 +47,8 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -54,9 +57,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.repo.AggregatePreRollup.PreRolledUpAggregate;
+import org.glowroot.central.repo.AggregatePreRollup.TransactionTypeRollup;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementLimiter;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -207,6 +213,7 @@ public class AggregateDao implements AggregateRepository {
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final StatementLimiter statementLimiter;
     private final ConfigRepository configRepository;
     private final Clock clock;
 
@@ -235,15 +242,24 @@ public class AggregateDao implements AggregateRepository {
 
     private final ImmutableList<Table> allTables;
 
+    private final AggregatePreRollup preRollup;
+
+    // oldest capture time (per rollup level) that was still waiting to be rolled up when rollup()
+    // was called, since the last call to getAndResetOldestPendingRollupCaptureTimes()
+    private final ConcurrentMap<Integer, Long> oldestPendingRollupCaptureTimes =
+            Maps.newConcurrentMap();
+
     public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+            FullQueryTextDao fullQueryTextDao, StatementLimiter statementLimiter,
+            ConfigRepository configRepository, Clock clock) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.statementLimiter = statementLimiter;
         this.configRepository = configRepository;
         this.clock = clock;
+        preRollup = new AggregatePreRollup(clock);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -399,9 +415,17 @@ public class AggregateDao implements AggregateRepository {
     public void store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(
+                storeAsync(agentId, captureTime, aggregatesByTypeList, initialSharedQueryTexts)));
+    }
+
+    // the returned future completes once all data (including "needs rollup" records) is stored,
+    // without blocking a thread while waiting on cassandra
+    public ListenableFuture<?> storeAsync(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (aggregatesByTypeList.isEmpty()) {
-            agentDao.updateLastCaptureTime(agentId, captureTime).get();
-            return;
+            return agentDao.updateLastCaptureTime(agentId, captureTime);
         }
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
         int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
@@ -428,60 +452,93 @@ public class AggregateDao implements AggregateRepository {
                 sharedQueryTexts.add(sharedQueryText);
             }
         }
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
 
         // wait for success before proceeding in order to ensure cannot end up with orphaned
         // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
-
-        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
-            String transactionType = aggregatesByType.getTransactionType();
-            Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
-            for (OldTransactionAggregate transactionAggregate : aggregatesByType
-                    .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
-                        transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+        //
+        // each phase runs on the statement limiter's executor, not on the cassandra driver I/O
+        // thread that completed the previous phase, since it can block (e.g.
+        // TransactionTypeDao.store() reads the storage config)
+        ListenableFuture<?> future = MoreFutures.allAsync(futures);
+        future = Futures.transformAsync(future, ignored -> {
+            List<ListenableFuture<?>> aggregateFutures = Lists.newArrayList();
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                String transactionType = aggregatesByType.getTransactionType();
+                Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+                for (BoundStatement boundStatement : bindOverallAggregate(agentId,
+                        transactionType, captureTime, overallAggregate, sharedQueryTexts,
+                        adjustedTTL)) {
+                    aggregateFutures.add(statementLimiter.executeAsync(agentId, boundStatement));
+                }
+                for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                        .getTransactionAggregateList()) {
+                    for (BoundStatement boundStatement : bindTransactionAggregate(agentId,
+                            transactionType, transactionAggregate.getTransactionName(),
+                            captureTime, transactionAggregate.getAggregate(), sharedQueryTexts,
+                            adjustedTTL)) {
+                        aggregateFutures
+                                .add(statementLimiter.executeAsync(agentId, boundStatement));
+                    }
+                }
+                aggregateFutures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
             }
-            futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
-        }
-        futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
+            aggregateFutures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
+            return MoreFutures.allAsync(aggregateFutures);
+        }, statementLimiter.getExecutor());
         // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return Futures.transformAsync(future, ignored -> {
+            // TODO report checker framework issue that occurs without this suppression
+            @SuppressWarnings("assignment.type.incompatible")
+            Set<String> transactionTypes = aggregatesByTypeList.stream()
+                    .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
 
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-        // TODO report checker framework issue that occurs without this suppression
-        @SuppressWarnings("assignment.type.incompatible")
-        Set<String> transactionTypes = aggregatesByTypeList.stream()
-                .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
-
-        int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
-        if (agentRollupIds.size() > 1) {
-            BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
+            List<ResultSetFuture> needsRollupFutures = Lists.newArrayList();
+            int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            if (agentRollupIds.size() > 1) {
+                BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupIds.get(1));
+                boundStatement.setTimestamp(i++, new Date(captureTime));
+                boundStatement.setUUID(i++, UUIDs.timeBased());
+                boundStatement.setString(i++, agentId);
+                boundStatement.setSet(i++, transactionTypes);
+                boundStatement.setInt(i++, needsRollupAdjustedTTL);
+                needsRollupFutures.add(session.executeAsync(boundStatement));
+            }
+            // insert into aggregate_needs_rollup_1
+            long intervalMillis = rollupConfigs.get(1).intervalMillis();
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
+            UUID uniqueness = UUIDs.timeBased();
+            // pre-rollup needs to happen before inserting the "needs rollup" record, see comments
+            // in AggregatePreRollup
+            preRollup(agentId, rollupCaptureTime, intervalMillis, uniqueness, captureTime,
+                    aggregatesByTypeList, sharedQueryTexts);
+            BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             int i = 0;
-            boundStatement.setString(i++, agentRollupIds.get(1));
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
             boundStatement.setString(i++, agentId);
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setUUID(i++, uniqueness);
             boundStatement.setSet(i++, transactionTypes);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            needsRollupFutures.add(session.executeAsync(boundStatement));
+            return MoreFutures.allAsync(needsRollupFutures);
+        }, statementLimiter.getExecutor());
+    }
+
+    // failure to pre-rollup only means that the rollup falls back to reading from cassandra
+    private void preRollup(String agentId, long rollupCaptureTime, long rollupIntervalMillis,
+            UUID uniqueness, long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        try {
+            RollupParams rollupParams = getRollupParams(agentId, 1, 0);
+            preRollup.add(agentId, rollupCaptureTime, rollupIntervalMillis, uniqueness,
+                    captureTime, aggregatesByTypeList, sharedQueryTexts,
+                    rollupParams.maxAggregateQueriesPerType(),
+                    rollupParams.maxAggregateServiceCallsPerType());
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
         }
-        // insert into aggregate_needs_rollup_1
-        long intervalMillis = rollupConfigs.get(1).intervalMillis();
-        long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
-        BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentId);
-        boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
-        boundStatement.setSet(i++, transactionTypes);
-        boundStatement.setInt(i++, needsRollupAdjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
     }
 
     // query.from() is non-inclusive
@@ -800,11 +857,22 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // capture times recorded concurrently with this call can be lost, so this is meant to be called
+    // in between rollup loops
+    public Map<Integer, Long> getAndResetOldestPendingRollupCaptureTimes() {
+        Map<Integer, Long> captureTimes = ImmutableMap.copyOf(oldestPendingRollupCaptureTimes);
+        oldestPendingRollupCaptureTimes.clear();
+        return captureTimes;
+    }
+
     private void rollupFromChildren(String agentRollupId, @Nullable String parentAgentRollupId,
             int ttl) throws Exception {
         final int rollupLevel = 0;
         List<NeedsRollupFromChildren> needsRollupFromChildrenList =
                 getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
+        for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
+            recordPendingRollup(rollupLevel, needsRollupFromChildren.getCaptureTime());
+        }
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
         for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
@@ -853,6 +921,9 @@ public class AggregateDao implements AggregateRepository {
         if (rollupLevel + 1 < rollupConfigs.size()) {
             nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
         }
+        for (NeedsRollup needsRollup : needsRollupList) {
+            recordPendingRollup(rollupLevel, needsRollup.getCaptureTime());
+        }
         for (NeedsRollup needsRollup : needsRollupList) {
             long captureTime = needsRollup.getCaptureTime();
             int adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
@@ -860,9 +931,19 @@ public class AggregateDao implements AggregateRepository {
             RollupParams rollupParams = getRollupParams(agentRollupId, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            Map<String, TransactionTypeRollup> preRolledUpAggregates = null;
+            if (rollupLevel == 1) {
+                preRolledUpAggregates = preRollup.close(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion(), transactionTypes);
+            }
             List<ResultSetFuture> futures = Lists.newArrayList();
             for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                if (preRolledUpAggregates == null) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                } else {
+                    futures.addAll(rollupOneFromPreRollup(rollupParams, transactionType, from,
+                            captureTime, checkNotNull(preRolledUpAggregates.get(transactionType))));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -886,6 +967,22 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // this is called once per rollup loop, regardless of which agent rollups were rolled up by this
+    // central node
+    public void expirePreRollups() {
+        preRollup.expire(configRepository.getRollupConfigs().get(1).intervalMillis());
+    }
+
+    // agents whose aggregates have been received by this central node for rollup intervals that
+    // have not yet expired
+    public Set<String> getPreRollupAgentIds() {
+        return preRollup.getAgentIds();
+    }
+
+    private void recordPendingRollup(int rollupLevel, long captureTime) {
+        oldestPendingRollupCaptureTimes.merge(rollupLevel, captureTime, Math::min);
+    }
+
     private List<ResultSetFuture> rollupOneFromChildren(RollupParams rollup, String transactionType,
             Collection<String> childAgentRollups, long captureTime) throws Exception {
 
@@ -944,6 +1041,55 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
+    // writes the same rows as rollupOne(), but from the in-memory partial rollup instead of from
+    // the level-0 rows
+    private List<ResultSetFuture> rollupOneFromPreRollup(RollupParams rollup,
+            String transactionType, long from, long to, TransactionTypeRollup preRolledUp)
+            throws Exception {
+
+        ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollup.rollupLevel() - 1)
+                .build();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+
+        PreRolledUpAggregate overallAggregate = preRolledUp.getOverallAggregate();
+        MutableAggregate aggregate = overallAggregate.getAggregate();
+        futures.add(insertOverallSummary(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount()));
+        if (aggregate.getErrorCount() > 0) {
+            futures.add(insertErrorSummary(rollup, query, aggregate.getErrorCount(),
+                    overallAggregate.getErrorSummaryTransactionCount()));
+        }
+        for (Entry<String, PreRolledUpAggregate> entry : preRolledUp.getTransactionAggregates()
+                .entrySet()) {
+            String transactionName = entry.getKey();
+            PreRolledUpAggregate transactionAggregate = entry.getValue();
+            MutableAggregate aggregateForTransaction = transactionAggregate.getAggregate();
+            futures.add(insertTransactionSummary(rollup, query, transactionName,
+                    aggregateForTransaction.getTotalDurationNanos(),
+                    aggregateForTransaction.getTransactionCount()));
+            if (aggregateForTransaction.getErrorCount() > 0) {
+                futures.add(insertTransactionErrorSummary(rollup, query, transactionName,
+                        aggregateForTransaction.getErrorCount(),
+                        transactionAggregate.getErrorSummaryTransactionCount()));
+            }
+        }
+
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        futures.addAll(rollupOtherPartsFromPreRollup(rollup, query, aggregate, scratchBuffer));
+
+        for (Entry<String, PreRolledUpAggregate> entry : preRolledUp.getTransactionAggregates()
+                .entrySet()) {
+            futures.addAll(rollupOtherPartsFromPreRollup(rollup,
+                    query.withTransactionName(entry.getKey()), entry.getValue().getAggregate(),
+                    scratchBuffer));
+        }
+        return futures;
+    }
+
     private List<ResultSetFuture> rollupOtherParts(RollupParams rollup, TransactionQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
         List<ResultSetFuture> futures = Lists.newArrayList();
@@ -975,6 +1121,39 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
+    private List<ResultSetFuture> rollupOtherPartsFromPreRollup(RollupParams rollup,
+            TransactionQuery query, MutableAggregate aggregate, ScratchBuffer scratchBuffer)
+            throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        futures.add(insertOverview(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.isAsyncTransactions(),
+                aggregate.getMainThreadRootTimersProto(), aggregate.getAuxThreadRootTimersProto(),
+                aggregate.getAsyncTimersProto(), aggregate.getMainThreadStats(),
+                aggregate.getAuxThreadStats()));
+        futures.add(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.getDurationNanosHistogram(),
+                scratchBuffer));
+        futures.add(insertThroughput(rollup, query, aggregate.getTransactionCount()));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            futures.addAll(insertQueries(queries.getSortedQueries(), rollup.rollupLevel(),
+                    rollup.agentRollupId(), query.transactionType(), query.transactionName(),
+                    query.to(), rollup.adjustedTTL(), false));
+        }
+        futures.addAll(insertServiceCalls(rollup, query, aggregate.getServiceCallsProto()));
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.add(insertThreadProfile(rollup, query, mainThreadProfile,
+                    mainThreadProfileTable));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.add(
+                    insertThreadProfile(rollup, query, auxThreadProfile, auxThreadProfileTable));
+        }
+        return futures;
+    }
+
     private List<ResultSetFuture> rollupOverallSummary(RollupParams rollup,
             TransactionQuery query) {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, summaryTable);
@@ -1007,6 +1186,12 @@ public class AggregateDao implements AggregateRepository {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return ImmutableList
+                .of(insertOverallSummary(rollup, query, totalDurationNanos, transactionCount));
+    }
+
+    private ResultSetFuture insertOverallSummary(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount) {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1016,7 +1201,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     private List<ResultSetFuture> rollupErrorSummary(RollupParams rollup, TransactionQuery query) {
@@ -1044,6 +1229,11 @@ public class AggregateDao implements AggregateRepository {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return ImmutableList.of(insertErrorSummary(rollup, query, errorCount, transactionCount));
+    }
+
+    private ResultSetFuture insertErrorSummary(RollupParams rollup, TransactionQuery query,
+            long errorCount, long transactionCount) {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1053,7 +1243,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, errorCount);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     // transactionNames is passed in empty, and populated by method
@@ -1090,7 +1280,6 @@ public class AggregateDao implements AggregateRepository {
     // transactionNames is passed in empty, and populated by method
     private List<ResultSetFuture> rollupTransactionSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, List<String> transactionNames) {
-        BoundStatement boundStatement;
         Map<String, MutableSummary> summaries = Maps.newHashMap();
         for (Row row : rows) {
             int i = 0;
@@ -1104,25 +1293,30 @@ public class AggregateDao implements AggregateRepository {
             summary.transactionCount += row.getLong(i++);
         }
         List<ResultSetFuture> futures = Lists.newArrayList();
-        PreparedStatement preparedStatement =
-                getInsertTransactionPS(summaryTable, rollup.rollupLevel());
         for (Entry<String, MutableSummary> entry : summaries.entrySet()) {
             MutableSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
-            int i = 0;
-            boundStatement.setString(i++, rollup.agentRollupId());
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            boundStatement.setString(i++, entry.getKey());
-            boundStatement.setDouble(i++, summary.totalDurationNanos);
-            boundStatement.setLong(i++, summary.transactionCount);
-            boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(insertTransactionSummary(rollup, query, entry.getKey(),
+                    summary.totalDurationNanos, summary.transactionCount));
         }
         transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
+    private ResultSetFuture insertTransactionSummary(RollupParams rollup, TransactionQuery query,
+            String transactionName, double totalDurationNanos, long transactionCount) {
+        BoundStatement boundStatement =
+                getInsertTransactionPS(summaryTable, rollup.rollupLevel()).bind();
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollupId());
+        boundStatement.setString(i++, query.transactionType());
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+        boundStatement.setString(i++, transactionName);
+        boundStatement.setDouble(i++, totalDurationNanos);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
     private List<ResultSetFuture> rollupTransactionErrorSummary(RollupParams rollup,
             TransactionQuery query) {
         BoundStatement boundStatement =
@@ -1149,7 +1343,6 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows) {
-        BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = Maps.newHashMap();
         for (Row row : rows) {
             int i = 0;
@@ -1162,25 +1355,31 @@ public class AggregateDao implements AggregateRepository {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
-        PreparedStatement preparedStatement =
-                getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<ResultSetFuture> futures = Lists.newArrayList();
         for (Entry<String, MutableErrorSummary> entry : summaries.entrySet()) {
             MutableErrorSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
-            int i = 0;
-            boundStatement.setString(i++, rollup.agentRollupId());
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            boundStatement.setString(i++, entry.getKey());
-            boundStatement.setLong(i++, summary.errorCount);
-            boundStatement.setLong(i++, summary.transactionCount);
-            boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(insertTransactionErrorSummary(rollup, query, entry.getKey(),
+                    summary.errorCount, summary.transactionCount));
         }
         return futures;
     }
 
+    private ResultSetFuture insertTransactionErrorSummary(RollupParams rollup,
+            TransactionQuery query, String transactionName, long errorCount,
+            long transactionCount) {
+        BoundStatement boundStatement =
+                getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel()).bind();
+        int i = 0;
+        boundStatement.setString(i++, rollup.agentRollupId());
+        boundStatement.setString(i++, query.transactionType());
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+        boundStatement.setString(i++, transactionName);
+        boundStatement.setLong(i++, errorCount);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, rollup.adjustedTTL());
+        return session.executeAsync(boundStatement);
+    }
+
     private List<ResultSetFuture> rollupOverview(RollupParams rollup, TransactionQuery query)
             throws IOException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, overviewTable);
@@ -1240,6 +1439,17 @@ public class AggregateDao implements AggregateRepository {
             auxThreadStats.addTotalWaitedNanos(row.get(i++, Double.class));
             auxThreadStats.addTotalAllocatedBytes(row.get(i++, Double.class));
         }
+        return ImmutableList.of(insertOverview(rollup, query, totalDurationNanos,
+                transactionCount, asyncTransactions, MutableAggregate.toProto(mainThreadRootTimers),
+                MutableAggregate.toProto(auxThreadRootTimers), MutableAggregate.toProto(asyncTimers),
+                mainThreadStats, auxThreadStats));
+    }
+
+    private ResultSetFuture insertOverview(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, boolean asyncTransactions,
+            List<Aggregate.Timer> mainThreadRootTimers, List<Aggregate.Timer> auxThreadRootTimers,
+            List<Aggregate.Timer> asyncTimers, MutableThreadStats mainThreadStats,
+            MutableThreadStats auxThreadStats) throws IOException {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1256,12 +1466,9 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBool(i++, asyncTransactions);
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
-        boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+        boundStatement.setBytes(i++, Messages.toByteBuffer(mainThreadRootTimers));
+        boundStatement.setBytes(i++, Messages.toByteBuffer(auxThreadRootTimers));
+        boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalWaitedNanos());
@@ -1271,7 +1478,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
         boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     private List<ResultSetFuture> rollupHistogram(RollupParams rollup, TransactionQuery query,
@@ -1313,6 +1520,13 @@ public class AggregateDao implements AggregateRepository {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes)));
         }
+        return ImmutableList.of(insertHistogram(rollup, query, totalDurationNanos,
+                transactionCount, durationNanosHistogram, scratchBuffer));
+    }
+
+    private ResultSetFuture insertHistogram(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, LazyHistogram durationNanosHistogram,
+            ScratchBuffer scratchBuffer) {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1330,7 +1544,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     private List<ResultSetFuture> rollupThroughput(RollupParams rollup, TransactionQuery query) {
@@ -1362,6 +1576,11 @@ public class AggregateDao implements AggregateRepository {
         for (Row row : rows) {
             transactionCount += row.getLong(0);
         }
+        return ImmutableList.of(insertThroughput(rollup, query, transactionCount));
+    }
+
+    private ResultSetFuture insertThroughput(RollupParams rollup, TransactionQuery query,
+            long transactionCount) {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1377,7 +1596,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     private List<ResultSetFuture> rollupQueries(RollupParams rollup, TransactionQuery query)
@@ -1450,8 +1669,18 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        return insertServiceCalls(rollup, query, collector.toProto());
+    }
+
+    private List<ResultSetFuture> insertServiceCalls(RollupParams rollup, TransactionQuery query,
+            List<Aggregate.ServiceCallsByType> serviceCallsByTypeList) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : bindServiceCalls(serviceCallsByTypeList,
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL())) {
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1481,6 +1710,11 @@ public class AggregateDao implements AggregateRepository {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(ByteString.copyFrom(bytes)));
         }
+        return ImmutableList.of(insertThreadProfile(rollup, query, profile, table));
+    }
+
+    private ResultSetFuture insertThreadProfile(RollupParams rollup, TransactionQuery query,
+            MutableProfile profile, Table table) {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1496,7 +1730,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return session.executeAsync(boundStatement);
     }
 
     private List<Row> getRowsForSummaryRollupFromChildren(TransactionQuery query,
@@ -1522,13 +1756,13 @@ public class AggregateDao implements AggregateRepository {
         return rows;
     }
 
-    private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
+    private List<BoundStatement> bindOverallAggregate(String agentRollupId,
             String transactionType, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1537,7 +1771,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1548,7 +1782,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1557,7 +1791,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1568,7 +1802,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1577,7 +1811,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1588,7 +1822,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1599,22 +1833,22 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
+        boundStatements.addAll(bindQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
+        boundStatements.addAll(bindServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
                 agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
+    private List<BoundStatement> bindTransactionAggregate(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1624,7 +1858,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1636,7 +1870,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1646,7 +1880,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1658,7 +1892,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1668,7 +1902,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1680,7 +1914,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1692,21 +1926,21 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(
-                insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
+        boundStatements.addAll(
+                bindQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
                         agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
+        boundStatements.addAll(bindServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
                 agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private List<BoundStatement> bindQueries(List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1742,10 +1976,10 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1790,11 +2024,11 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
+    private List<BoundStatement> bindServiceCalls(
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1815,10 +2049,10 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
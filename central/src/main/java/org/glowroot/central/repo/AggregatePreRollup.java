@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
+
+import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+// in-memory partial rollup of the level-0 aggregates of each agent into the level-1 rollup
+// intervals, fed on ingest (see AggregateDao.storeAsync()), so that the level-1 rollup doesn't need
+// to re-read the level-0 aggregates from cassandra
+//
+// a partial rollup is only used if it accounts for exactly the "needs rollup" records of the
+// interval (which are written by every store, regardless of which central node receives it),
+// otherwise the rollup falls back to reading from cassandra, e.g. after a restart, when an agent's
+// data is received by more than one central node, or when data arrives late
+//
+// the data is merged the same way that the level-0 rows are merged when read back from cassandra,
+// so that the level-1 rows are the same regardless of which path performs the rollup
+class AggregatePreRollup {
+
+    // bounds the memory used by partial rollups, new intervals are not pre-rolled up beyond this
+    private static final int MAX_INTERVALS =
+            Integer.getInteger("glowroot.central.aggregatePreRollupMaxIntervals", 10000);
+
+    private final Clock clock;
+
+    // data is only accepted for intervals that started after this central node started, since
+    // otherwise it could have missed data for the interval
+    private final long startTime;
+
+    private final ConcurrentMap<IntervalKey, Interval> intervals = Maps.newConcurrentMap();
+
+    AggregatePreRollup(Clock clock) {
+        this.clock = clock;
+        startTime = clock.currentTimeMillis();
+    }
+
+    // must be called prior to inserting the corresponding "needs rollup" record
+    //
+    // sharedQueryTexts must be the shared query texts as stored in the level-0 rows (see
+    // AggregateDao.storeAsync())
+    void add(String agentId, long rollupCaptureTime, long rollupIntervalMillis, UUID uniqueness,
+            long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxAggregateQueriesPerType,
+            int maxAggregateServiceCallsPerType) throws Exception {
+        IntervalKey key = ImmutableIntervalKey.of(agentId, rollupCaptureTime);
+        long currentTime = clock.currentTimeMillis();
+        boolean onTime = rollupCaptureTime - rollupIntervalMillis >= startTime
+                && currentTime < rollupCaptureTime + rollupIntervalMillis;
+        Interval interval = intervals.get(key);
+        if (interval == null) {
+            if (!onTime || intervals.size() >= MAX_INTERVALS) {
+                return;
+            }
+            interval = new Interval(maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+            Interval existing = intervals.putIfAbsent(key, interval);
+            if (existing != null) {
+                interval = existing;
+            }
+        }
+        interval.add(uniqueness, captureTime, aggregatesByTypeList, sharedQueryTexts, onTime);
+    }
+
+    // returns the partial rollup per transaction type, or null if the partial rollup cannot be used
+    // for the interval, in either case the interval is closed to any further data
+    @Nullable
+    Map<String, TransactionTypeRollup> close(String agentId, long rollupCaptureTime,
+            Set<UUID> uniquenessKeys, Set<String> transactionTypes) {
+        Interval interval = intervals.get(ImmutableIntervalKey.of(agentId, rollupCaptureTime));
+        if (interval == null) {
+            return null;
+        }
+        return interval.close(uniquenessKeys, transactionTypes);
+    }
+
+    // closed intervals are retained until then so that late data is not accepted for them
+    void expire(long rollupIntervalMillis) {
+        long expireBefore = clock.currentTimeMillis() - 2 * rollupIntervalMillis;
+        intervals.keySet().removeIf(key -> key.rollupCaptureTime() < expireBefore);
+    }
+
+    Set<String> getAgentIds() {
+        Set<String> agentIds = Sets.newHashSet();
+        for (IntervalKey key : intervals.keySet()) {
+            agentIds.add(key.agentId());
+        }
+        return agentIds;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface IntervalKey {
+        String agentId();
+        long rollupCaptureTime();
+    }
+
+    static class TransactionTypeRollup {
+
+        private final PreRolledUpAggregate overallAggregate;
+        private final Map<String, PreRolledUpAggregate> transactionAggregates =
+                Maps.newHashMap();
+
+        private final int maxAggregateQueriesPerType;
+        private final int maxAggregateServiceCallsPerType;
+
+        private TransactionTypeRollup(int maxAggregateQueriesPerType,
+                int maxAggregateServiceCallsPerType) {
+            this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+            this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+            overallAggregate = new PreRolledUpAggregate(maxAggregateQueriesPerType,
+                    maxAggregateServiceCallsPerType);
+        }
+
+        PreRolledUpAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, PreRolledUpAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        private void merge(OldAggregatesByType aggregatesByType,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+            overallAggregate.merge(aggregatesByType.getOverallAggregate(), sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                PreRolledUpAggregate aggregate = transactionAggregates.get(transactionName);
+                if (aggregate == null) {
+                    aggregate = new PreRolledUpAggregate(maxAggregateQueriesPerType,
+                            maxAggregateServiceCallsPerType);
+                    transactionAggregates.put(transactionName, aggregate);
+                }
+                aggregate.merge(transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+    }
+
+    static class PreRolledUpAggregate {
+
+        private final MutableAggregate aggregate;
+
+        // the error summary rows only include the transaction count of the aggregates that have
+        // errors
+        private long errorSummaryTransactionCount;
+
+        private PreRolledUpAggregate(int maxAggregateQueriesPerType,
+                int maxAggregateServiceCallsPerType) {
+            aggregate = new MutableAggregate(maxAggregateQueriesPerType,
+                    maxAggregateServiceCallsPerType);
+        }
+
+        MutableAggregate getAggregate() {
+            return aggregate;
+        }
+
+        long getErrorSummaryTransactionCount() {
+            return errorSummaryTransactionCount;
+        }
+
+        private void merge(Aggregate toBeMergedAggregate,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+            aggregate.addTotalDurationNanos(toBeMergedAggregate.getTotalDurationNanos());
+            aggregate.addTransactionCount(toBeMergedAggregate.getTransactionCount());
+            if (toBeMergedAggregate.getErrorCount() > 0) {
+                aggregate.addErrorCount(toBeMergedAggregate.getErrorCount());
+                errorSummaryTransactionCount += toBeMergedAggregate.getTransactionCount();
+            }
+            aggregate.addAsyncTransactions(toBeMergedAggregate.getAsyncTransactions());
+            aggregate.mergeMainThreadRootTimers(toBeMergedAggregate.getMainThreadRootTimerList());
+            aggregate.mergeAuxThreadRootTimers(toBeMergedAggregate.getAuxThreadRootTimerList());
+            aggregate.mergeAsyncTimers(toBeMergedAggregate.getAsyncTimerList());
+            Aggregate.ThreadStats mainThreadStats = toBeMergedAggregate.getMainThreadStats();
+            aggregate.addMainThreadTotalCpuNanos(getTotalCpuNanos(mainThreadStats));
+            aggregate.addMainThreadTotalBlockedNanos(getTotalBlockedNanos(mainThreadStats));
+            aggregate.addMainThreadTotalWaitedNanos(getTotalWaitedNanos(mainThreadStats));
+            aggregate.addMainThreadTotalAllocatedBytes(getTotalAllocatedBytes(mainThreadStats));
+            // the level-0 rows store the main thread stats in the aux thread stats columns (see
+            // AggregateDao.bindAggregate()), and the level-1 rows need to match what is rolled up
+            // from those rows
+            aggregate.addAuxThreadTotalCpuNanos(getTotalCpuNanos(mainThreadStats));
+            aggregate.addAuxThreadTotalBlockedNanos(getTotalBlockedNanos(mainThreadStats));
+            aggregate.addAuxThreadTotalWaitedNanos(getTotalWaitedNanos(mainThreadStats));
+            aggregate.addAuxThreadTotalAllocatedBytes(getTotalAllocatedBytes(mainThreadStats));
+            aggregate.mergeDurationNanosHistogram(
+                    toBeMergedAggregate.getDurationNanosHistogram());
+            for (Aggregate.QueriesByType queriesByType : toBeMergedAggregate
+                    .getQueriesByTypeList()) {
+                for (Aggregate.Query query : queriesByType.getQueryList()) {
+                    Aggregate.SharedQueryText sharedQueryText =
+                            sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                    String fullTextSha1 = Strings.emptyToNull(sharedQueryText.getFullTextSha1());
+                    String truncatedText = fullTextSha1 == null ? sharedQueryText.getFullText()
+                            : sharedQueryText.getTruncatedText();
+                    aggregate.mergeQuery(queriesByType.getType(), truncatedText, fullTextSha1,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                }
+            }
+            aggregate.mergeServiceCalls(toBeMergedAggregate.getServiceCallsByTypeList());
+            if (toBeMergedAggregate.hasMainThreadProfile()) {
+                aggregate.mergeMainThreadProfile(toBeMergedAggregate.getMainThreadProfile());
+            }
+            if (toBeMergedAggregate.hasAuxThreadProfile()) {
+                aggregate.mergeAuxThreadProfile(toBeMergedAggregate.getAuxThreadProfile());
+            }
+        }
+
+        private static @Nullable Double getTotalCpuNanos(Aggregate.ThreadStats threadStats) {
+            return threadStats.hasTotalCpuNanos() ? threadStats.getTotalCpuNanos().getValue()
+                    : null;
+        }
+
+        private static @Nullable Double getTotalBlockedNanos(Aggregate.ThreadStats threadStats) {
+            return threadStats.hasTotalBlockedNanos()
+                    ? threadStats.getTotalBlockedNanos().getValue() : null;
+        }
+
+        private static @Nullable Double getTotalWaitedNanos(Aggregate.ThreadStats threadStats) {
+            return threadStats.hasTotalWaitedNanos()
+                    ? threadStats.getTotalWaitedNanos().getValue() : null;
+        }
+
+        private static @Nullable Double getTotalAllocatedBytes(
+                Aggregate.ThreadStats threadStats) {
+            return threadStats.hasTotalAllocatedBytes()
+                    ? threadStats.getTotalAllocatedBytes().getValue() : null;
+        }
+    }
+
+    private static class Interval {
+
+        private final int maxAggregateQueriesPerType;
+        private final int maxAggregateServiceCallsPerType;
+
+        @GuardedBy("this")
+        private final Set<UUID> uniquenessKeys = Sets.newHashSet();
+        // used to detect the same aggregates being stored more than once (e.g. agent retry after
+        // the original store succeeded), which does not affect the rollup when read from cassandra
+        @GuardedBy("this")
+        private final Set<Long> captureTimes = Sets.newHashSet();
+        @GuardedBy("this")
+        private final Map<String, TransactionTypeRollup> transactionTypeRollups =
+                Maps.newHashMap();
+        // closed once rolled up, or once data is received that cannot be accounted for
+        @GuardedBy("this")
+        private boolean closed;
+
+        private Interval(int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType) {
+            this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+            this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        }
+
+        private synchronized void add(UUID uniqueness, long captureTime,
+                List<OldAggregatesByType> aggregatesByTypeList,
+                List<Aggregate.SharedQueryText> sharedQueryTexts, boolean onTime)
+                throws Exception {
+            if (closed) {
+                return;
+            }
+            if (!onTime || !captureTimes.add(captureTime)) {
+                closed = true;
+                return;
+            }
+            // stays closed if merging fails part way through
+            closed = true;
+            uniquenessKeys.add(uniqueness);
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                String transactionType = aggregatesByType.getTransactionType();
+                TransactionTypeRollup transactionTypeRollup =
+                        transactionTypeRollups.get(transactionType);
+                if (transactionTypeRollup == null) {
+                    transactionTypeRollup = new TransactionTypeRollup(maxAggregateQueriesPerType,
+                            maxAggregateServiceCallsPerType);
+                    transactionTypeRollups.put(transactionType, transactionTypeRollup);
+                }
+                transactionTypeRollup.merge(aggregatesByType, sharedQueryTexts);
+            }
+            closed = false;
+        }
+
+        private synchronized @Nullable Map<String, TransactionTypeRollup> close(
+                Set<UUID> uniquenessKeys, Set<String> transactionTypes) {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            if (!this.uniquenessKeys.equals(uniquenessKeys)
+                    || !transactionTypeRollups.keySet().equals(transactionTypes)) {
+                return null;
+            }
+            return ImmutableMap.copyOf(transactionTypeRollups);
+        }
+    }
+}
@@ -18,8 +18,10 @@ package org.glowroot.central.repo;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.annotation.Nullable;
 
@@ -30,11 +32,12 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
@@ -45,6 +48,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AggregateDao.NeedsRollup;
 import org.glowroot.central.repo.AggregateDao.NeedsRollupFromChildren;
+import org.glowroot.central.repo.GaugeValuePreRollup.WeightedValue;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -74,6 +78,8 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private final GaugeNameDao gaugeNameDao;
 
+    private final GaugeValuePreRollup preRollup;
+
     // index is rollupLevel
     private final ImmutableList<PreparedStatement> insertValuePS;
     private final ImmutableList<PreparedStatement> readValuePS;
@@ -96,6 +102,7 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
 
         gaugeNameDao = new GaugeNameDao(session, configRepository);
+        preRollup = new GaugeValuePreRollup(clock);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours = getRollupExpirationHours(configRepository);
@@ -202,18 +209,30 @@ public class GaugeValueDao implements GaugeValueRepository {
         futures.clear();
 
         // insert into gauge_needs_rollup_1
-        SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
-        for (Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
+        long rollupIntervalMillis = configRepository.getRollupConfigs().get(0).intervalMillis();
+        ListMultimap<Long, GaugeValue> rollupCaptureTimes =
+                getRollupCaptureTimes(gaugeValues, rollupIntervalMillis);
+        for (Entry<Long, List<GaugeValue>> entry : Multimaps.asMap(rollupCaptureTimes)
+                .entrySet()) {
             BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             Long captureTime = entry.getKey();
+            UUID uniqueness = UUIDs.timeBased();
+            Set<String> gaugeNames = Sets.newHashSet();
+            for (GaugeValue gaugeValue : entry.getValue()) {
+                gaugeNames.add(gaugeValue.getGaugeName());
+            }
+            // pre-rollup needs to happen before inserting the "needs rollup" record, see comments
+            // in GaugeValuePreRollup
+            preRollup.add(agentId, captureTime, rollupIntervalMillis, uniqueness,
+                    entry.getValue());
             int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
             int needsRollupAdjustedTTL = AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL,
                     configRepository.getRollupConfigs());
             int i = 0;
             boundStatement.setString(i++, agentId);
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setSet(i++, entry.getValue());
+            boundStatement.setUUID(i++, uniqueness);
+            boundStatement.setSet(i++, gaugeNames);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
@@ -275,15 +294,25 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private SetMultimap<Long, String> getRollupCaptureTimes(List<GaugeValue> gaugeValues) {
-        SetMultimap<Long, String> rollupCaptureTimes = HashMultimap.create();
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+    // this is called once per rollup loop, regardless of which agent rollups were rolled up by this
+    // central node
+    public void expirePreRollups() {
+        preRollup.expire(configRepository.getRollupConfigs().get(0).intervalMillis());
+    }
+
+    // agents whose gauge values have been received by this central node for rollup intervals that
+    // have not yet expired
+    public Set<String> getPreRollupAgentIds() {
+        return preRollup.getAgentIds();
+    }
+
+    private static ListMultimap<Long, GaugeValue> getRollupCaptureTimes(
+            List<GaugeValue> gaugeValues, long intervalMillis) {
+        ListMultimap<Long, GaugeValue> rollupCaptureTimes = ArrayListMultimap.create();
         for (GaugeValue gaugeValue : gaugeValues) {
-            String gaugeName = gaugeValue.getGaugeName();
             long captureTime = gaugeValue.getCaptureTime();
-            long intervalMillis = rollupConfigs.get(0).intervalMillis();
             long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
-            rollupCaptureTimes.put(rollupCaptureTime, gaugeName);
+            rollupCaptureTimes.put(rollupCaptureTime, gaugeValue);
         }
         return rollupCaptureTimes;
     }
@@ -348,10 +377,22 @@ public class GaugeValueDao implements GaugeValueRepository {
             long from = captureTime - rollupIntervalMillis;
             int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
             Set<String> gaugeNames = needsRollup.getKeys();
+            Map<String, WeightedValue> preRolledUpValues = null;
+            if (rollupLevel == 1) {
+                preRolledUpValues = preRollup.close(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion(), gaugeNames);
+            }
             List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
             for (String gaugeName : gaugeNames) {
-                futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+                if (preRolledUpValues == null) {
+                    futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from,
+                            captureTime, adjustedTTL));
+                } else {
+                    WeightedValue weightedValue = checkNotNull(preRolledUpValues.get(gaugeName));
+                    futures.add(insertRollupValue(rollupLevel, agentRollupId, gaugeName,
+                            captureTime, weightedValue.getValue(), weightedValue.getWeight(),
+                            adjustedTTL));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -474,16 +515,22 @@ public class GaugeValueDao implements GaugeValueRepository {
             totalWeightedValue += value * weight;
             totalWeight += weight;
         }
+        // individual gauge value weights cannot be zero, and rows is non-empty
+        // (see callers of this method), so totalWeight is guaranteed non-zero
+        checkState(totalWeight != 0);
+        return insertRollupValue(rollupLevel, agentRollupId, gaugeName, to,
+                totalWeightedValue / totalWeight, totalWeight, adjustedTTL);
+    }
+
+    private ListenableFuture<ResultSet> insertRollupValue(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, double value, long weight, int adjustedTTL) {
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
-        // (see callers of this method), so totalWeight is guaranteed non-zero
-        checkState(totalWeight != 0);
-        boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
-        boundStatement.setLong(i++, totalWeight);
+        boundStatement.setDouble(i++, value);
+        boundStatement.setLong(i++, weight);
         boundStatement.setInt(i++, adjustedTTL);
         return session.executeAsync(boundStatement);
     }
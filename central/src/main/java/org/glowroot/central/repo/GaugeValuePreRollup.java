@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+// in-memory partial rollup of the level-0 gauge values of each agent into the level-1 rollup
+// intervals, fed on ingest (see GaugeValueDao.store()), so that the level-1 rollup doesn't need to
+// re-read the level-0 gauge values from cassandra
+//
+// a partial rollup is only used if it accounts for exactly the "needs rollup" records of the
+// interval (which are written by every store, regardless of which central node receives it),
+// otherwise the rollup falls back to reading from cassandra, e.g. after a restart, when an agent's
+// data is received by more than one central node, or when data arrives late
+class GaugeValuePreRollup {
+
+    // bounds the memory used by partial rollups, new intervals are not pre-rolled up beyond this
+    private static final int MAX_INTERVALS =
+            Integer.getInteger("glowroot.central.gaugePreRollupMaxIntervals", 100000);
+
+    private final Clock clock;
+
+    // data is only accepted for intervals that started after this central node started, since
+    // otherwise it could have missed data for the interval
+    private final long startTime;
+
+    private final ConcurrentMap<IntervalKey, Interval> intervals = Maps.newConcurrentMap();
+
+    GaugeValuePreRollup(Clock clock) {
+        this.clock = clock;
+        startTime = clock.currentTimeMillis();
+    }
+
+    // must be called prior to inserting the corresponding "needs rollup" record
+    void add(String agentId, long rollupCaptureTime, long rollupIntervalMillis, UUID uniqueness,
+            Collection<GaugeValue> gaugeValues) {
+        IntervalKey key = ImmutableIntervalKey.of(agentId, rollupCaptureTime);
+        long currentTime = clock.currentTimeMillis();
+        boolean onTime = rollupCaptureTime - rollupIntervalMillis >= startTime
+                && currentTime < rollupCaptureTime + rollupIntervalMillis;
+        Interval interval = intervals.get(key);
+        if (interval == null) {
+            if (!onTime || intervals.size() >= MAX_INTERVALS) {
+                return;
+            }
+            interval = new Interval();
+            Interval existing = intervals.putIfAbsent(key, interval);
+            if (existing != null) {
+                interval = existing;
+            }
+        }
+        interval.add(uniqueness, gaugeValues, onTime);
+    }
+
+    // returns the weighted value and weight per gauge name, or null if the partial rollup cannot be
+    // used for the interval, in either case the interval is closed to any further data
+    @Nullable
+    Map<String, WeightedValue> close(String agentId, long rollupCaptureTime,
+            Set<UUID> uniquenessKeys, Set<String> gaugeNames) {
+        Interval interval = intervals.get(ImmutableIntervalKey.of(agentId, rollupCaptureTime));
+        if (interval == null) {
+            return null;
+        }
+        return interval.close(uniquenessKeys, gaugeNames);
+    }
+
+    // closed intervals are retained until then so that late data is not accepted for them
+    void expire(long rollupIntervalMillis) {
+        long expireBefore = clock.currentTimeMillis() - 2 * rollupIntervalMillis;
+        intervals.keySet().removeIf(key -> key.rollupCaptureTime() < expireBefore);
+    }
+
+    Set<String> getAgentIds() {
+        Set<String> agentIds = Sets.newHashSet();
+        for (IntervalKey key : intervals.keySet()) {
+            agentIds.add(key.agentId());
+        }
+        return agentIds;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface IntervalKey {
+        String agentId();
+        long rollupCaptureTime();
+    }
+
+    static class WeightedValue {
+
+        // used to detect the same gauge value being stored more than once (e.g. agent retry after
+        // the original store succeeded), which does not affect the rollup when read from cassandra
+        private final Set<Long> captureTimes = Sets.newHashSet();
+
+        private double totalWeightedValue;
+        private long totalWeight;
+
+        double getValue() {
+            return totalWeightedValue / totalWeight;
+        }
+
+        long getWeight() {
+            return totalWeight;
+        }
+
+        private boolean add(long captureTime, double value, long weight) {
+            if (!captureTimes.add(captureTime)) {
+                return false;
+            }
+            totalWeightedValue += value * weight;
+            totalWeight += weight;
+            return true;
+        }
+    }
+
+    private static class Interval {
+
+        @GuardedBy("this")
+        private final Set<UUID> uniquenessKeys = Sets.newHashSet();
+        @GuardedBy("this")
+        private final Map<String, WeightedValue> weightedValues = Maps.newHashMap();
+        // closed once rolled up, or once data is received that cannot be accounted for
+        @GuardedBy("this")
+        private boolean closed;
+
+        private synchronized void add(UUID uniqueness, Collection<GaugeValue> gaugeValues,
+                boolean onTime) {
+            if (closed) {
+                return;
+            }
+            if (!onTime) {
+                closed = true;
+                return;
+            }
+            uniquenessKeys.add(uniqueness);
+            for (GaugeValue gaugeValue : gaugeValues) {
+                String gaugeName = gaugeValue.getGaugeName();
+                WeightedValue weightedValue = weightedValues.get(gaugeName);
+                if (weightedValue == null) {
+                    weightedValue = new WeightedValue();
+                    weightedValues.put(gaugeName, weightedValue);
+                }
+                if (!weightedValue.add(gaugeValue.getCaptureTime(), gaugeValue.getValue(),
+                        gaugeValue.getWeight())) {
+                    closed = true;
+                    return;
+                }
+            }
+        }
+
+        private synchronized @Nullable Map<String, WeightedValue> close(Set<UUID> uniquenessKeys,
+                Set<String> gaugeNames) {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            if (!this.uniquenessKeys.equals(uniquenessKeys)
+                    || !weightedValues.keySet().equals(gaugeNames)) {
+                return null;
+            }
+            return ImmutableMap.copyOf(weightedValues);
+        }
+    }
+}
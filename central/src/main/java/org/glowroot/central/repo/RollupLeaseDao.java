@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// leases are used to split rollup work across the central nodes in a cluster, each lease is for
+// a single shard of agent rollups and a single rollup loop, and is acquired using a cassandra
+// lightweight transaction so that only one central node performs the rollup
+public class RollupLeaseDao {
+
+    private static final String WITH_LCS =
+            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    // leases only need to outlive a single rollup loop
+    private static final int TTL = (int) MINUTES.toSeconds(10);
+
+    private final Session session;
+    private final int ttl;
+
+    private final PreparedStatement insertIfNotExistsPS;
+
+    public RollupLeaseDao(Session session) {
+        this(session, TTL);
+    }
+
+    @VisibleForTesting
+    RollupLeaseDao(Session session, int ttl) {
+        this.session = session;
+        this.ttl = ttl;
+
+        session.execute("create table if not exists rollup_lease (shard int, rollup_time"
+                + " timestamp, owner varchar, primary key (shard, rollup_time)) " + WITH_LCS);
+
+        insertIfNotExistsPS = session.prepare("insert into rollup_lease (shard, rollup_time,"
+                + " owner) values (?, ?, ?) if not exists using ttl ?");
+    }
+
+    // returns true if the lease is held by the given owner
+    public boolean tryAcquire(int shard, long rollupTime, String owner) throws Exception {
+        BoundStatement boundStatement = insertIfNotExistsPS.bind();
+        int i = 0;
+        boundStatement.setInt(i++, shard);
+        boundStatement.setTimestamp(i++, new Date(rollupTime));
+        boundStatement.setString(i++, owner);
+        boundStatement.setInt(i++, ttl);
+        ResultSet results = session.execute(boundStatement);
+        Row row = checkNotNull(results.one());
+        if (row.getBool("[applied]")) {
+            return true;
+        }
+        // the lease already exists, check if this owner acquired it previously
+        return owner.equals(row.getString("owner"));
+    }
+}
@@ -34,6 +34,7 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
@@ -72,9 +73,24 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class TraceDao implements TraceRepository {
 
+    private static final String WITH_LCS =
+            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    private static final int MAX_DURATION_BUCKET = getDurationBucket(Long.MAX_VALUE);
+
+    // number of duration buckets that are read in parallel when reading top N slowest points
+    private static final int PARALLEL_DURATION_BUCKET_READS = 8;
+
+    // per-minute counts are only stored for minutes at least this old, since traces for more
+    // recent minutes are still likely to be arriving
+    private static final long COUNT_BY_MINUTE_SETTLE_MILLIS = MINUTES.toMillis(5);
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -128,6 +144,26 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
+    private final PreparedStatement insertOverallPointByDuration;
+    private final PreparedStatement insertTransactionPointByDuration;
+    private final PreparedStatement readOverallSlowPointByDuration;
+    private final PreparedStatement readTransactionSlowPointByDuration;
+    private final PreparedStatement readOverallErrorPointByDuration;
+    private final PreparedStatement readTransactionErrorPointByDuration;
+    private final PreparedStatement deletePartialOverallPointByDuration;
+    private final PreparedStatement deletePartialTransactionPointByDuration;
+
+    private final PreparedStatement insertOverallCountByMinute;
+    private final PreparedStatement insertTransactionCountByMinute;
+    private final PreparedStatement readOverallCountByMinute;
+    private final PreparedStatement readTransactionCountByMinute;
+    private final PreparedStatement deleteOverallCountByMinute;
+    private final PreparedStatement deleteTransactionCountByMinute;
+
+    // trace points captured prior to this time (e.g. prior to upgrade) are not in the
+    // trace_*_point_by_duration tables
+    private final long pointByDurationStartTime;
+
     public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
             ConfigRepository configRepository, Clock clock) throws Exception {
@@ -238,6 +274,44 @@ public class TraceDao implements TraceRepository {
                 + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
                 + " trace_id))", expirationHours);
 
+        // duration_bucket is first in the clustering key so that the slowest trace points in a time
+        // range can be read without reading all of the trace points in the time range
+        //
+        // error_point distinguishes slow points (false) from error points (true)
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_point_by_duration (agent_rollup varchar, transaction_type varchar,"
+                + " error_point boolean, duration_bucket int, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
+                + " error boolean, error_message varchar, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type, error_point),"
+                + " duration_bucket, capture_time, agent_id, trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_point_by_duration (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, error_point boolean, duration_bucket int,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, partial boolean, error boolean, error_message varchar,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, error_point), duration_bucket,"
+                + " capture_time, agent_id, trace_id))", expirationHours);
+
+        // pre-aggregated counts per minute (capture_minute is the end of the minute, inclusive),
+        // computed on read from the trace_*_count tables and invalidated on write, see
+        // readCount() and store() (not using counters, see comment above trace_tt_slow_count)
+        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_count_by_minute"
+                + " (agent_rollup varchar, transaction_type varchar, error_point boolean,"
+                + " capture_minute timestamp, count bigint, primary key ((agent_rollup,"
+                + " transaction_type, error_point), capture_minute))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_count_by_minute"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " error_point boolean, capture_minute timestamp, count bigint, primary key"
+                + " ((agent_rollup, transaction_type, transaction_name, error_point),"
+                + " capture_minute))", expirationHours);
+
+        session.execute("create table if not exists trace_point_by_duration_start (one int,"
+                + " start_time timestamp, primary key (one)) " + WITH_LCS);
+
         insertCheck = session.prepare("insert into trace_check (agent_rollup, agent_id, trace_id)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -367,6 +441,83 @@ public class TraceDao implements TraceRepository {
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        insertOverallPointByDuration = session.prepare("insert into trace_tt_point_by_duration"
+                + " (agent_rollup, transaction_type, error_point, duration_bucket, capture_time,"
+                + " agent_id, trace_id, duration_nanos, partial, error, error_message, headline,"
+                + " user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " using ttl ?");
+
+        insertTransactionPointByDuration = session.prepare("insert into trace_tn_point_by_duration"
+                + " (agent_rollup, transaction_type, transaction_name, error_point,"
+                + " duration_bucket, capture_time, agent_id, trace_id, duration_nanos, partial,"
+                + " error, error_message, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        readOverallSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tt_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and error_point = false and duration_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readTransactionSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tn_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and error_point = false"
+                + " and duration_bucket = ? and capture_time > ? and capture_time <= ?");
+
+        readOverallErrorPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error_message, headline, user,"
+                + " attributes from trace_tt_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and error_point = true and duration_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error_message, headline, user,"
+                + " attributes from trace_tn_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and error_point = true"
+                + " and duration_bucket = ? and capture_time > ? and capture_time <= ?");
+
+        deletePartialOverallPointByDuration = session.prepare("delete from"
+                + " trace_tt_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and error_point = false and duration_bucket = ? and capture_time = ?"
+                + " and agent_id = ? and trace_id = ?");
+
+        deletePartialTransactionPointByDuration = session.prepare("delete from"
+                + " trace_tn_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and error_point = false and duration_bucket = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        insertOverallCountByMinute = session.prepare("insert into trace_tt_count_by_minute"
+                + " (agent_rollup, transaction_type, error_point, capture_minute, count) values"
+                + " (?, ?, ?, ?, ?) using ttl ? and timestamp ?");
+
+        insertTransactionCountByMinute = session.prepare("insert into trace_tn_count_by_minute"
+                + " (agent_rollup, transaction_type, transaction_name, error_point,"
+                + " capture_minute, count) values (?, ?, ?, ?, ?, ?) using ttl ? and timestamp ?");
+
+        readOverallCountByMinute = session.prepare("select capture_minute, count from"
+                + " trace_tt_count_by_minute where agent_rollup = ? and transaction_type = ?"
+                + " and error_point = ? and capture_minute > ? and capture_minute <= ?");
+
+        readTransactionCountByMinute = session.prepare("select capture_minute, count from"
+                + " trace_tn_count_by_minute where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and error_point = ? and capture_minute > ?"
+                + " and capture_minute <= ?");
+
+        deleteOverallCountByMinute = session.prepare("delete from trace_tt_count_by_minute"
+                + " where agent_rollup = ? and transaction_type = ? and error_point = ?"
+                + " and capture_minute = ?");
+
+        deleteTransactionCountByMinute = session.prepare("delete from trace_tn_count_by_minute"
+                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                + " and error_point = ? and capture_minute = ?");
+
+        session.execute("insert into trace_point_by_duration_start (one, start_time) values (1, ?)"
+                + " if not exists", new Date(clock.currentTimeMillis()));
+        Row row = checkNotNull(session.execute(
+                "select start_time from trace_point_by_duration_start where one = 1").one());
+        pointByDurationStartTime = checkNotNull(row.getTimestamp(0)).getTime();
     }
 
     public void store(String agentId, Trace trace) throws Exception {
@@ -451,6 +602,16 @@ public class TraceDao implements TraceRepository {
                         false);
                 futures.add(session.executeAsync(boundStatement));
 
+                boundStatement = insertOverallPointByDuration.bind();
+                bindPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true, false);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionPointByDuration.bind();
+                bindPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false, false);
+                futures.add(session.executeAsync(boundStatement));
+
                 if (priorHeader != null) {
                     boundStatement = deletePartialOverallSlowPoint.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
@@ -467,6 +628,16 @@ public class TraceDao implements TraceRepository {
                     boundStatement = deletePartialTransactionSlowCount.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
                     futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialOverallPointByDuration.bind();
+                    bindDeletePointByDuration(boundStatement, agentRollupId, agentId, traceId,
+                            priorHeader, true);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialTransactionPointByDuration.bind();
+                    bindDeletePointByDuration(boundStatement, agentRollupId, agentId, traceId,
+                            priorHeader, false);
+                    futures.add(session.executeAsync(boundStatement));
                 }
             }
             // seems unnecessary to insert error info for partial traces
@@ -501,6 +672,16 @@ public class TraceDao implements TraceRepository {
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
                 futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertOverallPointByDuration.bind();
+                bindPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true, true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionPointByDuration.bind();
+                bindPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false, true);
+                futures.add(session.executeAsync(boundStatement));
             }
             for (Trace.Attribute attributeName : header.getAttributeList()) {
                 traceAttributeNameDao.store(agentRollupId,
@@ -598,80 +779,57 @@ public class TraceDao implements TraceRepository {
         }
         futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
         MoreFutures.waitForAll(futures);
+        futures.clear();
+
+        // per-minute counts are invalidated only after the count rows above are written, so that
+        // the delete has a later write timestamp than any per-minute count that was computed
+        // without seeing these rows (see readCountByMinute())
+        Set<Long> captureMinutes = Sets.newHashSet();
+        if (header.getSlow() || (header.hasError() && !header.getPartial())) {
+            captureMinutes.add(Utils.getRollupCaptureTime(header.getCaptureTime(), 60000));
+        }
+        if (priorHeader != null && header.getSlow()) {
+            captureMinutes.add(Utils.getRollupCaptureTime(priorHeader.getCaptureTime(), 60000));
+        }
+        long settledMinute = getSettledMinute();
+        for (long captureMinute : captureMinutes) {
+            // per-minute counts are only stored for settled minutes, see readCount(), leaving an
+            // extra minute of margin for clock skew between central nodes
+            if (captureMinute > settledMinute + 60000) {
+                continue;
+            }
+            for (String agentRollupId : agentRollupIds) {
+                if (header.getSlow()) {
+                    deleteCountByMinute(agentRollupId, header, captureMinute, false, futures);
+                }
+                if (header.hasError() && !header.getPartial()) {
+                    deleteCountByMinute(agentRollupId, header, captureMinute, true, futures);
+                }
+            }
+        }
+        MoreFutures.waitForAll(futures);
     }
 
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, false);
+            TracePointFilter filter, int limit) throws Exception {
+        return readPoints(agentRollupId, query, filter, limit, false);
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, true);
+            TracePointFilter filter, int limit) throws Exception {
+        return readPoints(agentRollupId, query, filter, limit, true);
     }
 
     @Override
-    public long readSlowCount(String agentRollupId, TraceQuery query) {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollupId, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollupId, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
-        }
+    public long readSlowCount(String agentRollupId, TraceQuery query) throws Exception {
+        return readCount(agentRollupId, query, false);
     }
 
     @Override
-    public long readErrorCount(String agentRollupId, TraceQuery query) {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollupId, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollupId, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
-        }
+    public long readErrorCount(String agentRollupId, TraceQuery query) throws Exception {
+        return readCount(agentRollupId, query, true);
     }
 
     @Override
@@ -919,6 +1077,213 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    private Result<TracePoint> readPoints(String agentRollupId, TraceQuery query,
+            TracePointFilter filter, int limit, boolean errorPoints) throws Exception {
+        boolean byDurationAvailable = query.from() >= pointByDurationStartTime;
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = errorPoints ? readOverallErrorPoint.bind()
+                    : readOverallSlowPoint.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, true);
+        } else {
+            boundStatement = errorPoints ? readTransactionErrorPoint.bind()
+                    : readTransactionSlowPoint.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, false);
+        }
+        if (byDurationAvailable) {
+            // only fetch enough of the range to tell whether it has more points than limit, in
+            // which case the top N slowest are read by duration bucket instead (this avoids
+            // counting the range first)
+            boundStatement.setFetchSize(limit + 1);
+        }
+        ResultSet results = session.execute(boundStatement);
+        if (byDurationAvailable && !results.isFullyFetched()) {
+            return readPointsByDuration(agentRollupId, query, filter, limit, errorPoints);
+        }
+        List<TracePoint> tracePoints = Lists.newArrayList();
+        addTracePoints(results, filter, errorPoints, tracePoints);
+        return limitTracePoints(tracePoints, limit);
+    }
+
+    // reads duration buckets from slowest to fastest, stopping once more than limit trace points
+    // have been found, since all remaining trace points are faster than the ones already found
+    private Result<TracePoint> readPointsByDuration(String agentRollupId, TraceQuery query,
+            TracePointFilter filter, int limit, boolean errorPoints) throws Exception {
+        boolean overall = query.transactionName() == null;
+        List<TracePoint> tracePoints = Lists.newArrayList();
+        int durationBucket = MAX_DURATION_BUCKET;
+        while (durationBucket >= 0) {
+            List<ResultSetFuture> futures = Lists.newArrayList();
+            for (int j = 0; j < PARALLEL_DURATION_BUCKET_READS && durationBucket >= 0; j++) {
+                BoundStatement boundStatement;
+                if (overall) {
+                    boundStatement = errorPoints ? readOverallErrorPointByDuration.bind()
+                            : readOverallSlowPointByDuration.bind();
+                } else {
+                    boundStatement = errorPoints ? readTransactionErrorPointByDuration.bind()
+                            : readTransactionSlowPointByDuration.bind();
+                }
+                bindPointByDurationQuery(boundStatement, agentRollupId, query, durationBucket--,
+                        overall);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            for (ResultSetFuture future : futures) {
+                addTracePoints(future.getUninterruptibly(), filter, errorPoints, tracePoints);
+            }
+            long uniqueCount = tracePoints.stream()
+                    .map(tracePoint -> ImmutableTraceKey.of(tracePoint.agentId(),
+                            tracePoint.traceId()))
+                    .distinct()
+                    .count();
+            if (uniqueCount > limit) {
+                break;
+            }
+        }
+        return limitTracePoints(tracePoints, limit);
+    }
+
+    private long readCount(String agentRollupId, TraceQuery query, boolean errorPoints)
+            throws Exception {
+        long from = query.from();
+        long to = query.to();
+        // per-minute counts cover the whole minutes in (fromMinute, toMinute]
+        long fromMinute = Utils.getRollupCaptureTime(from, 60000);
+        long toMinute = Math.min(floorMinute(to), getSettledMinute());
+        if (toMinute <= fromMinute) {
+            return readCountFromRows(agentRollupId, query, errorPoints, from, to);
+        }
+        return readCountFromRows(agentRollupId, query, errorPoints, from, fromMinute)
+                + readCountByMinute(agentRollupId, query, errorPoints, fromMinute, toMinute)
+                + readCountFromRows(agentRollupId, query, errorPoints, toMinute, to);
+    }
+
+    private long readCountFromRows(String agentRollupId, TraceQuery query, boolean errorPoints,
+            long from, long to) {
+        if (from >= to) {
+            return 0;
+        }
+        String transactionName = query.transactionName();
+        String countType = errorPoints ? "error" : "slow";
+        if (transactionName == null) {
+            ResultSet results = session.execute(
+                    "select count(*) from trace_tt_" + countType + "_count where agent_rollup = ?"
+                            + " and transaction_type = ? and capture_time > ?"
+                            + " and capture_time <= ?",
+                    agentRollupId, query.transactionType(), new Date(from), new Date(to));
+            return results.one().getLong(0);
+        } else {
+            ResultSet results = session.execute(
+                    "select count(*) from trace_tn_" + countType + "_count where agent_rollup = ?"
+                            + " and transaction_type = ? and transaction_name = ?"
+                            + " and capture_time > ? and capture_time <= ?",
+                    agentRollupId, query.transactionType(), transactionName, new Date(from),
+                    new Date(to));
+            return results.one().getLong(0);
+        }
+    }
+
+    private long readCountByMinute(String agentRollupId, TraceQuery query, boolean errorPoints,
+            long fromMinute, long toMinute) throws Exception {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null
+                ? readOverallCountByMinute.bind() : readTransactionCountByMinute.bind();
+        int i = bindCountByMinute(boundStatement, agentRollupId, query, errorPoints);
+        boundStatement.setTimestamp(i++, new Date(fromMinute));
+        boundStatement.setTimestamp(i++, new Date(toMinute));
+        long count = 0;
+        Set<Long> captureMinutes = Sets.newHashSet();
+        for (Row row : session.execute(boundStatement)) {
+            captureMinutes.add(checkNotNull(row.getTimestamp(0)).getTime());
+            count += row.getLong(1);
+        }
+        List<Long> missingMinutes = Lists.newArrayList();
+        for (long captureMinute = fromMinute + 60000; captureMinute <= toMinute;
+                captureMinute += 60000) {
+            if (!captureMinutes.contains(captureMinute)) {
+                missingMinutes.add(captureMinute);
+            }
+        }
+        if (missingMinutes.isEmpty()) {
+            return count;
+        }
+        // write timestamp is captured before reading the rows, so that a concurrent store() that
+        // invalidates one of these minutes after its rows are written always wins, even if this
+        // read did not see its rows
+        long writeTimestampMicros = MILLISECONDS.toMicros(clock.currentTimeMillis());
+        Map<Long, MutableLong> missingCounts = Maps.newHashMap();
+        for (long captureTime : readCaptureTimes(agentRollupId, query, errorPoints,
+                missingMinutes.get(0) - 60000, missingMinutes.get(missingMinutes.size() - 1))) {
+            missingCounts.computeIfAbsent(Utils.getRollupCaptureTime(captureTime, 60000),
+                    k -> new MutableLong()).increment();
+        }
+        int ttl = getTTL();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (long captureMinute : missingMinutes) {
+            MutableLong missingCount = missingCounts.get(captureMinute);
+            long minuteCount = missingCount == null ? 0 : missingCount.value;
+            count += minuteCount;
+            boundStatement = transactionName == null ? insertOverallCountByMinute.bind()
+                    : insertTransactionCountByMinute.bind();
+            i = bindCountByMinute(boundStatement, agentRollupId, query, errorPoints);
+            boundStatement.setTimestamp(i++, new Date(captureMinute));
+            boundStatement.setLong(i++, minuteCount);
+            boundStatement.setInt(i++,
+                    AggregateDao.getAdjustedTTL(ttl, captureMinute, clock));
+            boundStatement.setLong(i++, writeTimestampMicros);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+        return count;
+    }
+
+    private List<Long> readCaptureTimes(String agentRollupId, TraceQuery query,
+            boolean errorPoints, long from, long to) {
+        String transactionName = query.transactionName();
+        String countType = errorPoints ? "error" : "slow";
+        ResultSet results;
+        if (transactionName == null) {
+            results = session.execute("select capture_time from trace_tt_" + countType + "_count"
+                    + " where agent_rollup = ? and transaction_type = ? and capture_time > ?"
+                    + " and capture_time <= ?", agentRollupId, query.transactionType(),
+                    new Date(from), new Date(to));
+        } else {
+            results = session.execute("select capture_time from trace_tn_" + countType + "_count"
+                    + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ?", agentRollupId,
+                    query.transactionType(), transactionName, new Date(from), new Date(to));
+        }
+        List<Long> captureTimes = Lists.newArrayList();
+        for (Row row : results) {
+            captureTimes.add(checkNotNull(row.getTimestamp(0)).getTime());
+        }
+        return captureTimes;
+    }
+
+    private void deleteCountByMinute(String agentRollupId, Trace.Header header,
+            long captureMinute, boolean errorPoints, List<ResultSetFuture> futures) {
+        BoundStatement boundStatement = deleteOverallCountByMinute.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        boundStatement.setBool(i++, errorPoints);
+        boundStatement.setTimestamp(i++, new Date(captureMinute));
+        futures.add(session.executeAsync(boundStatement));
+
+        boundStatement = deleteTransactionCountByMinute.bind();
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        boundStatement.setString(i++, header.getTransactionName());
+        boundStatement.setBool(i++, errorPoints);
+        boundStatement.setTimestamp(i++, new Date(captureMinute));
+        futures.add(session.executeAsync(boundStatement));
+    }
+
+    // minutes up to and including this one are not expected to receive any more traces
+    private long getSettledMinute() {
+        return floorMinute(clock.currentTimeMillis() - COUNT_BY_MINUTE_SETTLE_MILLIS);
+    }
+
     private int getTTL() throws Exception {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
@@ -987,6 +1352,80 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private static void bindPointByDuration(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall,
+            boolean errorPoint) throws IOException {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setBool(i++, errorPoint);
+        boundStatement.setInt(i++, getDurationBucket(header.getDurationNanos()));
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setLong(i++, header.getDurationNanos());
+        boundStatement.setBool(i++, header.getPartial());
+        boundStatement.setBool(i++, header.hasError());
+        if (header.hasError()) {
+            boundStatement.setString(i++, header.getError().getMessage());
+        } else {
+            boundStatement.setToNull(i++);
+        }
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (attributes.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static void bindDeletePointByDuration(BoundStatement boundStatement,
+            String agentRollupId, String agentId, String traceId, Trace.Header header,
+            boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setInt(i++, getDurationBucket(header.getDurationNanos()));
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+    }
+
+    private static void bindPointByDurationQuery(BoundStatement boundStatement,
+            String agentRollupId, TraceQuery query, int durationBucket, boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        if (!overall) {
+            boundStatement.setString(i++, query.transactionName());
+        }
+        boundStatement.setInt(i++, durationBucket);
+        boundStatement.setTimestamp(i++, new Date(query.from()));
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+    }
+
+    private static int bindCountByMinute(BoundStatement boundStatement, String agentRollupId,
+            TraceQuery query, boolean errorPoints) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        String transactionName = query.transactionName();
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setBool(i++, errorPoints);
+        return i;
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -1009,9 +1448,19 @@ public class TraceDao implements TraceRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = Lists.newArrayList();
+    // duration buckets are powers of two in milliseconds, so that the slowest trace points can be
+    // read bucket by bucket, see readPointsByDuration()
+    @VisibleForTesting
+    static int getDurationBucket(long durationNanos) {
+        return 64 - Long.numberOfLeadingZeros(NANOSECONDS.toMillis(durationNanos));
+    }
+
+    private static long floorMinute(long captureTime) {
+        return (captureTime / 60000) * 60000;
+    }
+
+    private static void addTracePoints(Iterable<Row> results, TracePointFilter filter,
+            boolean errorPoints, List<TracePoint> tracePoints) throws IOException {
         for (Row row : results) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -1044,6 +1493,11 @@ public class TraceDao implements TraceRepository {
                         .build());
             }
         }
+    }
+
+    private static Result<TracePoint> limitTracePoints(List<TracePoint> tracePoints, int limit) {
+        // trace points read by duration bucket are not in capture time order
+        tracePoints.sort(Comparator.comparingLong(TracePoint::captureTime));
         // remove duplicates (partially stored traces) since there is (small) window between updated
         // insert (with new capture time) and the delete of prior insert (with prior capture time)
         Set<TraceKey> traceKeys = Sets.newHashSet();
@@ -18,7 +18,14 @@ package org.glowroot.central.util;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,4 +54,30 @@ public class MoreFutures {
             throw exception;
         }
     }
+
+    // asynchronous equivalent of waitForAll(), completes with the first failure if any
+    public static ListenableFuture<Void> allAsync(List<? extends ListenableFuture<?>> futures) {
+        SettableFuture<Void> overallFuture = SettableFuture.create();
+        if (futures.isEmpty()) {
+            overallFuture.set(null);
+            return overallFuture;
+        }
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (ListenableFuture<?> future : futures) {
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(@Nullable Object result) {
+                    if (remaining.decrementAndGet() == 0) {
+                        overallFuture.set(null);
+                    }
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.debug(t.getMessage(), t);
+                    overallFuture.setException(t);
+                }
+            });
+        }
+        return overallFuture;
+    }
 }
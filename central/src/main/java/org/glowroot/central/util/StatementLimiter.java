@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// limits the number of in-flight statements across all agents, so that agents flushing at the same
+// time queue here (fairly, round robin across agents) instead of overwhelming the cassandra driver
+//
+// statement completions are handled on this class's executor (see getExecutor()), never on
+// cassandra driver I/O threads, since work chained off of them can block (e.g. reading config on a
+// cache miss)
+public class StatementLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatementLimiter.class);
+
+    private static final int MAX_IN_FLIGHT =
+            Math.max(1, Integer.getInteger("glowroot.central.maxInFlightStatements", 512));
+
+    // once this many statements are queued, callers of whenNotSaturated() are held back
+    private static final int MAX_QUEUED =
+            Math.max(1, Integer.getInteger("glowroot.central.maxQueuedStatements", 10000));
+
+    private static final int ASYNC_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.central.asyncStoreThreads", 8));
+
+    private final Session session;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ExecutorService executor;
+
+    private final Object lock = new Object();
+
+    // keyed by agent id
+    @GuardedBy("lock")
+    private final Map<String, Queue<PendingStatement>> queues = Maps.newHashMap();
+    // keys that have queued statements, in round robin order
+    @GuardedBy("lock")
+    private final Queue<String> readyKeys = new ArrayDeque<>();
+    @GuardedBy("lock")
+    private final List<Runnable> notSaturatedListeners = Lists.newArrayList();
+    @GuardedBy("lock")
+    private int inFlightCount;
+    @GuardedBy("lock")
+    private int queuedCount;
+
+    public StatementLimiter(Session session) {
+        this(session, MAX_IN_FLIGHT, MAX_QUEUED, Executors.newFixedThreadPool(ASYNC_THREADS,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Async-Store-%d")
+                        .build()));
+    }
+
+    @VisibleForTesting
+    StatementLimiter(Session session, int maxInFlight, int maxQueued, ExecutorService executor) {
+        this.session = session;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+    }
+
+    // executor for work chained off of statement completion (see class comment)
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public ListenableFuture<ResultSet> executeAsync(String key, Statement statement) {
+        SettableFuture<ResultSet> future = SettableFuture.create();
+        synchronized (lock) {
+            Queue<PendingStatement> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                readyKeys.add(key);
+            }
+            queue.add(new PendingStatement(statement, future));
+            queuedCount++;
+        }
+        drain();
+        return future;
+    }
+
+    // runs the runnable immediately if not saturated, otherwise once no longer saturated
+    public void whenNotSaturated(Runnable runnable) {
+        synchronized (lock) {
+            if (queuedCount >= maxQueued) {
+                notSaturatedListeners.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    public int getInFlightCount() {
+        synchronized (lock) {
+            return inFlightCount;
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return queuedCount;
+        }
+    }
+
+    private void drain() {
+        List<PendingStatement> pendingStatements = Lists.newArrayList();
+        List<Runnable> listeners = ImmutableList.of();
+        synchronized (lock) {
+            while (inFlightCount < maxInFlight && !readyKeys.isEmpty()) {
+                String key = readyKeys.remove();
+                Queue<PendingStatement> queue = queues.get(key);
+                pendingStatements.add(queue.remove());
+                if (queue.isEmpty()) {
+                    queues.remove(key);
+                } else {
+                    readyKeys.add(key);
+                }
+                inFlightCount++;
+                queuedCount--;
+            }
+            if (queuedCount < maxQueued && !notSaturatedListeners.isEmpty()) {
+                listeners = ImmutableList.copyOf(notSaturatedListeners);
+                notSaturatedListeners.clear();
+            }
+        }
+        for (PendingStatement pendingStatement : pendingStatements) {
+            execute(pendingStatement);
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private void execute(PendingStatement pendingStatement) {
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(pendingStatement.statement);
+        } catch (Throwable t) {
+            release();
+            pendingStatement.future.setException(t);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(@Nullable ResultSet result) {
+                // release first so that work chained off of the future sees the capacity
+                release();
+                pendingStatement.future.set(result);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                release();
+                pendingStatement.future.setException(t);
+            }
+        }, executor);
+    }
+
+    private void release() {
+        synchronized (lock) {
+            inFlightCount--;
+        }
+        drain();
+    }
+
+    private static class PendingStatement {
+
+        private final Statement statement;
+        private final SettableFuture<ResultSet> future;
+
+        private PendingStatement(Statement statement, SettableFuture<ResultSet> future) {
+            this.statement = statement;
+            this.future = future;
+        }
+    }
+}
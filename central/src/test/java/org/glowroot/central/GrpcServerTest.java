@@ -31,4 +31,16 @@ public class GrpcServerTest {
         assertThat(GrpcServer.trimSpacesAroundAgentRollupIdSeparator("a/  b  /c"))
                 .isEqualTo("a/b/c");
     }
+
+    @Test
+    public void testAggregateDelay() {
+        assertThat(GrpcServer.getAggregateDelayMillis("abc"))
+                .isEqualTo(GrpcServer.getAggregateDelayMillis("abc"));
+        assertThat(GrpcServer.getAggregateDelayMillis("abc") % 100).isEqualTo(0);
+        assertThat(GrpcServer.getAggregateDelayMillis("abc"))
+                .isBetween(0, GrpcServer.AGGREGATE_FLUSH_WINDOW_MILLIS - 100);
+        // negative hash code
+        assertThat(GrpcServer.getAggregateDelayMillis("polygenelubricants"))
+                .isBetween(0, GrpcServer.AGGREGATE_FLUSH_WINDOW_MILLIS - 100);
+    }
 }
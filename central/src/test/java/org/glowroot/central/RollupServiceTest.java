@@ -15,17 +15,60 @@
  */
 package org.glowroot.central;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.junit.Test;
 
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RollupServiceTest {
 
     @Test
     public void test() {
-        assertThat(RollupService.millisUntilNextRollup(15000)).isEqualTo(55000);
-        assertThat(RollupService.millisUntilNextRollup(30000)).isEqualTo(40000);
-        assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
-        assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
+        assertThat(RollupService.millisUntilNextRollup(15000, 10000)).isEqualTo(55000);
+        assertThat(RollupService.millisUntilNextRollup(30000, 10000)).isEqualTo(40000);
+        assertThat(RollupService.millisUntilNextRollup(45000, 10000)).isEqualTo(25000);
+        assertThat(RollupService.millisUntilNextRollup(60000, 10000)).isEqualTo(10000);
+    }
+
+    @Test
+    public void testWithFlushWindow() {
+        assertThat(RollupService.millisUntilNextRollup(15000, 40000)).isEqualTo(25000);
+        assertThat(RollupService.millisUntilNextRollup(45000, 40000)).isEqualTo(55000);
+        assertThat(RollupService.millisUntilNextRollup(60000, 40000)).isEqualTo(40000);
+    }
+
+    @Test
+    public void testShard() {
+        assertThat(RollupService.getShard("abc", 64)).isBetween(0, 63);
+        assertThat(RollupService.getShard("abc", 64))
+                .isEqualTo(RollupService.getShard("abc", 64));
+        // negative hash code
+        assertThat(RollupService.getShard("polygenelubricants", 64)).isBetween(0, 63);
+    }
+
+    @Test
+    public void testRollupLag() {
+        assertThat(RollupService.getRollupLagMillis(ImmutableMap.of(), 60000)).isEmpty();
+        assertThat(RollupService.getRollupLagMillis(ImmutableMap.of(0, 60000L, 2, 0L), 120000))
+                .containsExactly(60000, -1, 120000);
+    }
+
+    @Test
+    public void testHasPreRollups() {
+        AgentRollup agent = ImmutableAgentRollup.of("parent::agent", "agent", true, null,
+                ImmutableList.of());
+        AgentRollup parent = ImmutableAgentRollup.of("parent::", "parent", false, null,
+                ImmutableList.of(agent));
+        assertThat(RollupService.hasPreRollups(ImmutableList.of(parent), ImmutableSet.of()))
+                .isFalse();
+        assertThat(RollupService.hasPreRollups(ImmutableList.of(parent),
+                ImmutableSet.of("other"))).isFalse();
+        assertThat(RollupService.hasPreRollups(ImmutableList.of(parent),
+                ImmutableSet.of("parent::agent"))).isTrue();
     }
 }
@@ -29,6 +29,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementLimiter;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
@@ -104,7 +105,7 @@ public class AggregateDaoIT {
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+                new StatementLimiter(session), configRepository, Clock.systemClock());
     }
 
     @AfterClass
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AggregatePreRollup.PreRolledUpAggregate;
+import org.glowroot.central.repo.AggregatePreRollup.TransactionTypeRollup;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregatePreRollupTest {
+
+    private static final long INTERVAL_MILLIS = 300000;
+
+    private Clock clock;
+    private AggregatePreRollup preRollup;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(100000L);
+        preRollup = new AggregatePreRollup(clock);
+    }
+
+    @Test
+    public void shouldRollup() throws Exception {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(500000L);
+        add(uniqueness1, 360000, aggregate(1000, 2, 0));
+        add(uniqueness2, 420000, aggregate(3000, 3, 1));
+
+        // when
+        Map<String, TransactionTypeRollup> rollups = preRollup.close("a", 600000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("Web"));
+
+        // then
+        assertThat(rollups).containsOnlyKeys("Web");
+        TransactionTypeRollup rollup = rollups.get("Web");
+        PreRolledUpAggregate overallAggregate = rollup.getOverallAggregate();
+        assertThat(overallAggregate.getAggregate().getTotalDurationNanos()).isEqualTo(4000);
+        assertThat(overallAggregate.getAggregate().getTransactionCount()).isEqualTo(5);
+        assertThat(overallAggregate.getAggregate().getErrorCount()).isEqualTo(1);
+        // only the transaction count of the aggregate with errors, same as the error summary rows
+        assertThat(overallAggregate.getErrorSummaryTransactionCount()).isEqualTo(3);
+        assertThat(rollup.getTransactionAggregates()).containsOnlyKeys("/abc");
+        assertThat(rollup.getTransactionAggregates().get("/abc").getAggregate()
+                .getTransactionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldRollupQueries() throws Exception {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(500000L);
+        List<Aggregate.SharedQueryText> sharedQueryTexts = ImmutableList.of(
+                Aggregate.SharedQueryText.newBuilder()
+                        .setFullText("select 1")
+                        .build(),
+                Aggregate.SharedQueryText.newBuilder()
+                        .setTruncatedText("select 2")
+                        .setFullTextSha1("abc")
+                        .build());
+        Aggregate aggregate = aggregate(1000, 1, 0).toBuilder()
+                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                        .setType("SQL")
+                        .addQuery(Aggregate.Query.newBuilder()
+                                .setSharedQueryTextIndex(0)
+                                .setTotalDurationNanos(100)
+                                .setExecutionCount(1))
+                        .addQuery(Aggregate.Query.newBuilder()
+                                .setSharedQueryTextIndex(1)
+                                .setTotalDurationNanos(200)
+                                .setExecutionCount(1)))
+                .build();
+        preRollup.add("a", 600000, INTERVAL_MILLIS, uniqueness1, 360000,
+                aggregatesByType(aggregate), sharedQueryTexts, 500, 500);
+        preRollup.add("a", 600000, INTERVAL_MILLIS, uniqueness2, 420000,
+                aggregatesByType(aggregate), sharedQueryTexts, 500, 500);
+
+        // when
+        Map<String, TransactionTypeRollup> rollups = preRollup.close("a", 600000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("Web"));
+
+        // then
+        MutableAggregate overallAggregate =
+                rollups.get("Web").getOverallAggregate().getAggregate();
+        List<MutableQuery> queries = overallAggregate.getQueries().getSortedQueries().get("SQL");
+        assertThat(queries).hasSize(2);
+        assertThat(queries.get(0).getTruncatedText()).isEqualTo("select 2");
+        assertThat(queries.get(0).getFullTextSha1()).isEqualTo("abc");
+        assertThat(queries.get(0).getTotalDurationNanos()).isEqualTo(400);
+        assertThat(queries.get(1).getTruncatedText()).isEqualTo("select 1");
+        assertThat(queries.get(1).getFullTextSha1()).isNull();
+        assertThat(queries.get(1).getExecutionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotRollupWhenMissingUniquenessKey() throws Exception {
+        // given
+        UUID uniqueness = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(500000L);
+        add(uniqueness, 360000, aggregate(1000, 2, 0));
+
+        // when
+        Map<String, TransactionTypeRollup> rollups = preRollup.close("a", 600000,
+                ImmutableSet.of(uniqueness, UUID.randomUUID()), ImmutableSet.of("Web"));
+
+        // then
+        assertThat(rollups).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupIntervalStartedBeforeStartup() throws Exception {
+        // given
+        UUID uniqueness = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(200000L);
+        add(uniqueness, 60000, aggregate(1000, 2, 0));
+
+        // when
+        Map<String, TransactionTypeRollup> rollups = preRollup.close("a", 300000,
+                ImmutableSet.of(uniqueness), ImmutableSet.of("Web"));
+
+        // then
+        assertThat(rollups).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupDuplicateData() throws Exception {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(500000L);
+        add(uniqueness1, 360000, aggregate(1000, 2, 0));
+        add(uniqueness2, 360000, aggregate(1000, 2, 0));
+
+        // when
+        Map<String, TransactionTypeRollup> rollups = preRollup.close("a", 600000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("Web"));
+
+        // then
+        assertThat(rollups).isNull();
+    }
+
+    @Test
+    public void shouldExpire() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(500000L);
+        add(UUID.randomUUID(), 360000, aggregate(1000, 2, 0));
+        assertThat(preRollup.getAgentIds()).containsExactly("a");
+
+        // when
+        when(clock.currentTimeMillis()).thenReturn(1300000L);
+        preRollup.expire(INTERVAL_MILLIS);
+
+        // then
+        assertThat(preRollup.getAgentIds()).isEmpty();
+    }
+
+    private void add(UUID uniqueness, long captureTime, Aggregate aggregate) throws Exception {
+        preRollup.add("a", 600000, INTERVAL_MILLIS, uniqueness, captureTime,
+                aggregatesByType(aggregate), ImmutableList.of(), 500, 500);
+    }
+
+    private static List<OldAggregatesByType> aggregatesByType(Aggregate aggregate) {
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build());
+    }
+
+    private static Aggregate aggregate(double totalDurationNanos, long transactionCount,
+            long errorCount) {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .build();
+    }
+}
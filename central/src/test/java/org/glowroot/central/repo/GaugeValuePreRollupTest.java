@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.GaugeValuePreRollup.WeightedValue;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GaugeValuePreRollupTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+
+    private Clock clock;
+    private GaugeValuePreRollup preRollup;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(100000L);
+        preRollup = new GaugeValuePreRollup(clock);
+    }
+
+    @Test
+    public void shouldRollup() {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(170000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness1,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness2,
+                ImmutableList.of(gaugeValue("g", 130000, 40, 2)));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 180000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).containsOnlyKeys("g");
+        assertThat(values.get("g").getValue()).isEqualTo(30);
+        assertThat(values.get("g").getWeight()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotRollupWhenMissingUniquenessKey() {
+        // given
+        UUID uniqueness = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(170000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 180000,
+                ImmutableSet.of(uniqueness, UUID.randomUUID()), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupIntervalStartedBeforeStartup() {
+        // given
+        UUID uniqueness = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(110000L);
+        preRollup.add("a", 120000, INTERVAL_MILLIS, uniqueness,
+                ImmutableList.of(gaugeValue("g", 105000, 10, 1)));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 120000,
+                ImmutableSet.of(uniqueness), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupAfterLateData() {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(170000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness1,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+        when(clock.currentTimeMillis()).thenReturn(245000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness2,
+                ImmutableList.of(gaugeValue("g", 130000, 40, 2)));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 180000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupDuplicateData() {
+        // given
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(170000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness1,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness2,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 180000,
+                ImmutableSet.of(uniqueness1, uniqueness2), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupTwice() {
+        // given
+        UUID uniqueness = UUID.randomUUID();
+        when(clock.currentTimeMillis()).thenReturn(170000L);
+        preRollup.add("a", 180000, INTERVAL_MILLIS, uniqueness,
+                ImmutableList.of(gaugeValue("g", 125000, 10, 1)));
+        preRollup.close("a", 180000, ImmutableSet.of(uniqueness), ImmutableSet.of("g"));
+
+        // when
+        Map<String, WeightedValue> values = preRollup.close("a", 180000,
+                ImmutableSet.of(uniqueness), ImmutableSet.of("g"));
+
+        // then
+        assertThat(values).isNull();
+    }
+
+    private static GaugeValue gaugeValue(String gaugeName, long captureTime, double value,
+            long weight) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.google.common.collect.Lists;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.util.Sessions;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RollupLeaseDaoIT {
+
+    private static Cluster cluster;
+    private static Session session;
+    private static RollupLeaseDao rollupLeaseDao;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = cluster.newSession();
+        Sessions.createKeyspaceIfNotExists(session, "glowroot_unit_tests");
+        session.execute("use glowroot_unit_tests");
+        rollupLeaseDao = new RollupLeaseDao(session);
+        session.execute("truncate rollup_lease");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Test
+    public void shouldAcquire() throws Exception {
+        // when
+        boolean acquired = rollupLeaseDao.tryAcquire(1, 60000, "node1");
+        boolean reacquired = rollupLeaseDao.tryAcquire(1, 60000, "node1");
+
+        // then
+        assertThat(acquired).isTrue();
+        assertThat(reacquired).isTrue();
+    }
+
+    @Test
+    public void shouldNotAcquireLeaseHeldByAnotherOwner() throws Exception {
+        // given
+        rollupLeaseDao.tryAcquire(2, 60000, "node1");
+
+        // when
+        boolean acquired = rollupLeaseDao.tryAcquire(2, 60000, "node2");
+
+        // then
+        assertThat(acquired).isFalse();
+        assertThat(rollupLeaseDao.tryAcquire(2, 120000, "node2")).isTrue();
+        assertThat(rollupLeaseDao.tryAcquire(3, 60000, "node2")).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyGrantContendedLeaseToOneOwner() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            String owner = "node" + i;
+            futures.add(executor.submit(() -> rollupLeaseDao.tryAcquire(4, 60000, owner)));
+        }
+        int acquiredCount = 0;
+        for (Future<Boolean> future : futures) {
+            if (future.get()) {
+                acquiredCount++;
+            }
+        }
+        executor.shutdown();
+
+        // then
+        assertThat(acquiredCount).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldAcquireAfterExpiration() throws Exception {
+        // given
+        RollupLeaseDao shortLeaseDao = new RollupLeaseDao(session, 1);
+        shortLeaseDao.tryAcquire(5, 60000, "node1");
+        assertThat(shortLeaseDao.tryAcquire(5, 60000, "node2")).isFalse();
+
+        // when
+        Thread.sleep(2000);
+
+        // then
+        assertThat(shortLeaseDao.tryAcquire(5, 60000, "node2")).isTrue();
+        assertThat(shortLeaseDao.tryAcquire(5, 60000, "node1")).isFalse();
+    }
+}
@@ -15,7 +15,10 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.Date;
+
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -34,6 +37,8 @@ import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -212,4 +217,121 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadSlowestPointsByDuration() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 20; i++) {
+            traceDao.store(AGENT_ID, createTrace("by duration", now + i, i * 100));
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("by duration")
+                .from(now)
+                .to(now + 100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 5);
+
+        // then
+        assertThat(queryResult.records()).hasSize(5);
+        assertThat(queryResult.moreAvailable()).isTrue();
+        for (int i = 0; i < 5; i++) {
+            assertThat(queryResult.records().get(i).durationNanos())
+                    .isEqualTo(MILLISECONDS.toNanos((16 + i) * 100));
+        }
+    }
+
+    @Test
+    public void shouldReadAllPointsWhenUnderLimit() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 3; i++) {
+            traceDao.store(AGENT_ID, createTrace("under limit", now + i, i * 100));
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("under limit")
+                .from(now)
+                .to(now + 100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 5);
+
+        // then
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.moreAvailable()).isFalse();
+    }
+
+    @Test
+    public void shouldReadCountFromSettledAndUnsettledMinutes() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        long settled = now - MINUTES.toMillis(30);
+        traceDao.store(AGENT_ID, createTrace("count", settled, 100));
+        traceDao.store(AGENT_ID, createTrace("count", settled + MINUTES.toMillis(1), 100));
+        traceDao.store(AGENT_ID, createTrace("count", settled + MINUTES.toMillis(2), 100));
+        traceDao.store(AGENT_ID, createTrace("count", now - 2000, 100));
+        traceDao.store(AGENT_ID, createTrace("count", now - 1000, 100));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("count")
+                .from(now - MINUTES.toMillis(60))
+                .to(now)
+                .build();
+
+        // when
+        long count = traceDao.readSlowCount(AGENT_ROLLUP, query);
+        long countFromSummaries = traceDao.readSlowCount(AGENT_ROLLUP, query);
+
+        // then
+        assertThat(count).isEqualTo(5);
+        assertThat(countFromSummaries).isEqualTo(5);
+        long summaryCount = 0;
+        for (Row row : readCountByMinute("count")) {
+            // only settled minutes are summarized
+            assertThat(row.getTimestamp(0)).isBefore(new Date(now - MINUTES.toMillis(5)));
+            summaryCount += row.getLong(1);
+        }
+        assertThat(summaryCount).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldInvalidateSettledMinuteOnLateTrace() throws Exception {
+        // given
+        long settled = System.currentTimeMillis() - MINUTES.toMillis(30);
+        traceDao.store(AGENT_ID, createTrace("late", settled, 100));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("late")
+                .from(settled - MINUTES.toMillis(10))
+                .to(settled + MINUTES.toMillis(10))
+                .build();
+        assertThat(traceDao.readSlowCount(AGENT_ROLLUP, query)).isEqualTo(1);
+
+        // when
+        traceDao.store(AGENT_ID, createTrace("late", settled + 1, 100));
+
+        // then
+        assertThat(traceDao.readSlowCount(AGENT_ROLLUP, query)).isEqualTo(2);
+    }
+
+    private static Iterable<Row> readCountByMinute(String transactionType) {
+        return session.execute("select capture_minute, count from trace_tt_count_by_minute"
+                + " where agent_rollup = ? and transaction_type = ? and error_point = ?",
+                AGENT_ROLLUP, transactionType, false);
+    }
+
+    private static Trace createTrace(String transactionType, long captureTime,
+            long durationMillis) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setTransactionType(transactionType)
+                        .setStartTime(captureTime - durationMillis)
+                        .setCaptureTime(captureTime)
+                        .setDurationNanos(MILLISECONDS.toNanos(durationMillis)))
+                .build();
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StatementLimiterTest {
+
+    private List<Statement> executed;
+    private List<TestResultSetFuture> inFlight;
+    private StatementLimiter statementLimiter;
+
+    @Before
+    public void beforeEachTest() {
+        executed = Lists.newArrayList();
+        inFlight = Lists.newArrayList();
+        Session session = mock(Session.class);
+        when(session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            executed.add((Statement) invocation.getArguments()[0]);
+            TestResultSetFuture future = new TestResultSetFuture();
+            inFlight.add(future);
+            return future;
+        });
+        statementLimiter =
+                new StatementLimiter(session, 2, 3, MoreExecutors.newDirectExecutorService());
+    }
+
+    @Test
+    public void shouldLimitInFlight() {
+        // when
+        for (int i = 0; i < 3; i++) {
+            statementLimiter.executeAsync("a", new SimpleStatement("a" + i));
+        }
+
+        // then
+        assertThat(executed).hasSize(2);
+        assertThat(statementLimiter.getInFlightCount()).isEqualTo(2);
+        assertThat(statementLimiter.getQueuedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRoundRobinAcrossKeys() {
+        // given
+        Statement a0 = new SimpleStatement("a0");
+        Statement a1 = new SimpleStatement("a1");
+        Statement a2 = new SimpleStatement("a2");
+        Statement a3 = new SimpleStatement("a3");
+        Statement b0 = new SimpleStatement("b0");
+        statementLimiter.executeAsync("a", a0);
+        statementLimiter.executeAsync("a", a1);
+        statementLimiter.executeAsync("a", a2);
+        statementLimiter.executeAsync("a", a3);
+        statementLimiter.executeAsync("b", b0);
+
+        // when
+        inFlight.get(0).complete();
+        inFlight.get(1).complete();
+
+        // then
+        assertThat(executed).containsExactly(a0, a1, a2, b0);
+    }
+
+    @Test
+    public void shouldCompleteWithResultAndReleaseCapacity() throws Exception {
+        // given
+        ListenableFuture<ResultSet> future =
+                statementLimiter.executeAsync("a", new SimpleStatement("a0"));
+
+        // when
+        inFlight.get(0).complete();
+
+        // then
+        assertThat(future.isDone()).isTrue();
+        assertThat(statementLimiter.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldPropagateFailure() {
+        // given
+        ListenableFuture<ResultSet> future =
+                statementLimiter.executeAsync("a", new SimpleStatement("a0"));
+
+        // when
+        inFlight.get(0).fail(new IllegalStateException());
+
+        // then
+        assertThat(future.isDone()).isTrue();
+        assertThat(statementLimiter.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotifyWhenNoLongerSaturated() {
+        // given
+        for (int i = 0; i < 5; i++) {
+            statementLimiter.executeAsync("a", new SimpleStatement("a" + i));
+        }
+        AtomicBoolean notified = new AtomicBoolean();
+
+        // when
+        statementLimiter.whenNotSaturated(() -> notified.set(true));
+
+        // then
+        assertThat(notified.get()).isFalse();
+        inFlight.get(0).complete();
+        assertThat(notified.get()).isTrue();
+    }
+
+    @Test
+    public void shouldCompleteOnExecutorInsteadOfDriverThread() throws Exception {
+        // given
+        Session session = mock(Session.class);
+        TestResultSetFuture driverFuture = new TestResultSetFuture();
+        when(session.executeAsync(any(Statement.class))).thenReturn(driverFuture);
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, "test-executor"));
+        StatementLimiter statementLimiter = new StatementLimiter(session, 2, 3, executor);
+        ListenableFuture<ResultSet> future =
+                statementLimiter.executeAsync("a", new SimpleStatement("a0"));
+        AtomicReference<String> callbackThreadName = new AtomicReference<>();
+        future.addListener(() -> callbackThreadName.set(Thread.currentThread().getName()),
+                MoreExecutors.directExecutor());
+
+        // when
+        driverFuture.complete();
+        future.get(10, SECONDS);
+        statementLimiter.close();
+        executor.awaitTermination(10, SECONDS);
+
+        // then
+        assertThat(callbackThreadName.get()).isEqualTo("test-executor");
+    }
+
+    private static class TestResultSetFuture extends AbstractFuture<ResultSet>
+            implements ResultSetFuture {
+
+        private void complete() {
+            set(mock(ResultSet.class));
+        }
+
+        private void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            return Uninterruptibles.getUninterruptibly(this);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+        }
+    }
+}
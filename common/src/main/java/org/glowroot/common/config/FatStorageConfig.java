@@ -67,6 +67,12 @@ public abstract class FatStorageConfig implements StorageConfig {
         return 500;
     }
 
+    // "lzf" or "deflate-dictionary"
+    @Value.Default
+    public String cappedDatabaseCodec() {
+        return "lzf";
+    }
+
     @Value.Derived
     @JsonIgnore
     public String version() {
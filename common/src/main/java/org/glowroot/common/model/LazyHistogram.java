@@ -28,21 +28,47 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    private static final int MIN_SIGNIFICANT_DIGITS = 2;
+    private static final int MAX_SIGNIFICANT_DIGITS = 5;
+
+    // the memory footprint of the underlying HdrHistogram grows by roughly an order of magnitude
+    // with each significant digit, so this can be reduced when there are many transaction names
+    // with enough samples per interval to be converted from raw values to a histogram
+    private static final int DEFAULT_SIGNIFICANT_DIGITS = Math.max(MIN_SIGNIFICANT_DIGITS,
+            Math.min(MAX_SIGNIFICANT_DIGITS, Integer.getInteger(
+                    "glowroot.histogram.significantDigits", MAX_SIGNIFICANT_DIGITS)));
+
     private static final int MAX_VALUES = 1024;
 
+    private static final long[] EMPTY_VALUES = new long[0];
+
+    private final int significantDigits;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
     private @MonotonicNonNull Histogram histogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(DEFAULT_SIGNIFICANT_DIGITS);
+    }
+
+    public LazyHistogram(int significantDigits) {
+        checkArgument(significantDigits >= MIN_SIGNIFICANT_DIGITS
+                && significantDigits <= MAX_SIGNIFICANT_DIGITS,
+                "significantDigits must be between %s and %s", MIN_SIGNIFICANT_DIGITS,
+                MAX_SIGNIFICANT_DIGITS);
+        this.significantDigits = significantDigits;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        significantDigits = DEFAULT_SIGNIFICANT_DIGITS;
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
@@ -152,13 +178,20 @@ public class LazyHistogram {
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
+        long maxValue = 0;
+        for (int i = 0; i < size; i++) {
+            maxValue = Math.max(maxValue, values[i]);
+        }
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        //
+        // sized up front to cover the values recorded so far, instead of starting small and
+        // relying on auto resize, which re-allocates and copies the counts array on each resize
+        histogram = new Histogram(1000, Math.max(2000, maxValue), significantDigits);
         histogram.setAutoResize(true);
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
-        values = new long[0];
+        values = EMPTY_VALUES;
     }
 
     private void sortValues() {
@@ -75,6 +75,10 @@ public class MutableProfile {
         merger.merge(profile.getNodeList(), rootNodes);
     }
 
+    public NodeMerger newNodeMerger() {
+        return new NodeMerger();
+    }
+
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
         PeekingIterator<StackTraceElement> i =
                 Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
@@ -278,6 +282,24 @@ public class MutableProfile {
         }
     }
 
+    private ProfileNode mergeNode(List<ProfileNode> destinationNodes, int packageNameIndex,
+            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
+            Profile.LeafThreadState leafThreadState, long sampleCount) {
+        for (ProfileNode destinationNode : destinationNodes) {
+            if (isMatch(destinationNode, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState)) {
+                destinationNode.sampleCount += sampleCount;
+                return destinationNode;
+            }
+        }
+        // no match found
+        ProfileNode destinationNode = new ProfileNode(packageNameIndex, classNameIndex,
+                methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+        destinationNodes.add(destinationNode);
+        destinationNode.sampleCount += sampleCount;
+        return destinationNode;
+    }
+
     private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
             int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
             Profile.LeafThreadState leafThreadState) {
@@ -402,34 +424,39 @@ public class MutableProfile {
 
         private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
                 List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
-            }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
+            return mergeNode(destinationNodes,
+                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber(), toBeMergedNode.getLeafThreadState(),
+                    toBeMergedNode.getSampleCount());
         }
+    }
+
+    // merges a flattened (pre-order, with depth) tree one node at a time, without requiring the
+    // caller to first build a Profile proto with its own name tables
+    public class NodeMerger {
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+        private final List<ProfileNode> currentPath = Lists.newArrayList();
+
+        private NodeMerger() {}
+
+        public void mergeNode(int depth, String packageName, String className, String methodName,
+                String fileName, int lineNumber, Profile.LeafThreadState leafThreadState,
+                long sampleCount) {
+            while (currentPath.size() > depth) {
+                currentPath.remove(currentPath.size() - 1);
+            }
+            List<ProfileNode> destinationNodes =
+                    depth == 0 ? rootNodes : currentPath.get(depth - 1).childNodes;
+            ProfileNode destinationNode = MutableProfile.this.mergeNode(destinationNodes,
+                    getNameIndex(packageName, packageNameIndexes, packageNames),
+                    getNameIndex(className, classNameIndexes, classNames),
+                    getNameIndex(methodName, methodNameIndexes, methodNames),
+                    getNameIndex(fileName, fileNameIndexes, fileNames), lineNumber,
+                    leafThreadState, sampleCount);
+            currentPath.add(destinationNode);
         }
     }
 
@@ -78,6 +78,44 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestPercentilesWithReducedPrecision() {
+        for (int significantDigits = 2; significantDigits <= 5; significantDigits++) {
+            // given
+            LazyHistogram lazyHistogram = new LazyHistogram(significantDigits);
+            // when
+            for (int i = 10000000; i > 0; i -= 1000) {
+                lazyHistogram.add(i);
+            }
+            // then
+            long value = lazyHistogram.getValueAtPercentile(50);
+            // values are only tracked at microsecond precision
+            double tolerance = Math.max(2 * Math.pow(10, -significantDigits), 0.001);
+            assertThat(value).isBetween((long) (5000000 * (1 - tolerance)),
+                    (long) (5000000 * (1 + tolerance)));
+        }
+    }
+
+    @Test
+    public void shouldTestEncodeDecodeWithReducedPrecision() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(2);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram();
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(lazyHistogram.getValueAtPercentile(50)).isBetween(4900000L, 5100000L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowSignificantDigitsOutOfRange() {
+        new LazyHistogram(6);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -425,6 +425,7 @@ class AdminJsonService {
         abstract int fullQueryTextExpirationHours();
         abstract ImmutableList<Integer> rollupCappedDatabaseSizesMb();
         abstract int traceCappedDatabaseSizeMb();
+        abstract String cappedDatabaseCodec();
         abstract String version();
 
         private FatStorageConfig convert() {
@@ -434,6 +435,7 @@ class AdminJsonService {
                     .fullQueryTextExpirationHours(fullQueryTextExpirationHours())
                     .rollupCappedDatabaseSizesMb(rollupCappedDatabaseSizesMb())
                     .traceCappedDatabaseSizeMb(traceCappedDatabaseSizeMb())
+                    .cappedDatabaseCodec(cappedDatabaseCodec())
                     .build();
         }
 
@@ -444,6 +446,7 @@ class AdminJsonService {
                     .fullQueryTextExpirationHours(config.fullQueryTextExpirationHours())
                     .addAllRollupCappedDatabaseSizesMb(config.rollupCappedDatabaseSizesMb())
                     .traceCappedDatabaseSizeMb(config.traceCappedDatabaseSizeMb())
+                    .cappedDatabaseCodec(config.cappedDatabaseCodec())
                     .version(config.version())
                     .build();
         }
@@ -195,7 +195,8 @@ class ConfigJsonService {
     }
 
     // these DTOs are only different from underlying config objects in that they contain the version
-    // attribute, and that they have no default attribute values
+    // attribute, and that they have no default attribute values (except for newly added attributes
+    // that older clients may not send)
 
     @Value.Immutable
     abstract static class TransactionConfigDto {
@@ -203,6 +204,10 @@ class ConfigJsonService {
         abstract int slowThresholdMillis();
         abstract int profilingIntervalMillis();
         abstract boolean captureThreadStats();
+        @Value.Default
+        int fullCaptureTransactionsPerSecond() {
+            return 0;
+        }
         abstract String version();
 
         private TransactionConfig convert() {
@@ -210,6 +215,7 @@ class ConfigJsonService {
                     .setSlowThresholdMillis(of(slowThresholdMillis()))
                     .setProfilingIntervalMillis(of(profilingIntervalMillis()))
                     .setCaptureThreadStats(captureThreadStats())
+                    .setFullCaptureTransactionsPerSecond(fullCaptureTransactionsPerSecond())
                     .build();
         }
         private static TransactionConfigDto create(TransactionConfig config) {
@@ -217,6 +223,8 @@ class ConfigJsonService {
                     .slowThresholdMillis(config.getSlowThresholdMillis().getValue())
                     .profilingIntervalMillis(config.getProfilingIntervalMillis().getValue())
                     .captureThreadStats(config.getCaptureThreadStats())
+                    .fullCaptureTransactionsPerSecond(
+                            config.getFullCaptureTransactionsPerSecond())
                     .version(Versions.getVersion(config))
                     .build();
         }
@@ -375,6 +383,14 @@ class ConfigJsonService {
         abstract int maxAggregateServiceCallsPerType();
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
+        @Value.Default
+        int maxStackTraceDepth() { // ignored for rollup config
+            return 0;
+        }
+        @Value.Default
+        int maxStackTraceThreadsPerCapture() { // ignored for rollup config
+            return 0;
+        }
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
         abstract String version();
 
@@ -392,6 +408,8 @@ class ConfigJsonService {
                                 of(checkNotNull(maxTraceEntriesPerTransaction())))
                         .setMaxStackTraceSamplesPerTransaction(
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
+                        .setMaxStackTraceDepth(maxStackTraceDepth())
+                        .setMaxStackTraceThreadsPerCapture(maxStackTraceThreadsPerCapture())
                         .setMbeanGaugeNotFoundDelaySeconds(
                                 of(checkNotNull(mbeanGaugeNotFoundDelaySeconds())))
                         .build();
@@ -419,6 +437,8 @@ class ConfigJsonService {
                                 config.getMaxTraceEntriesPerTransaction().getValue())
                         .maxStackTraceSamplesPerTransaction(
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
+                        .maxStackTraceDepth(config.getMaxStackTraceDepth())
+                        .maxStackTraceThreadsPerCapture(config.getMaxStackTraceThreadsPerCapture())
                         .mbeanGaugeNotFoundDelaySeconds(
                                 config.getMbeanGaugeNotFoundDelaySeconds().getValue())
                         .version(Versions.getVersion(config))